@@ -1,4 +1,4 @@
-﻿// Copyright 2010 Atos Worldline
+// Copyright 2010 Atos Worldline
 //
 // Inspired from Backelite bkxititag library for iPhone
 // Copyright 2009 Backelite
@@ -32,7 +32,7 @@ import android.util.Log;
 
 /**
  * Retrieves some information to be sent to Xiti and put it in 
- * an HashMap.
+ * an HashMap. XitiTag builds it lazily, on a worker thread (see XitiTagDeviceInfo).
  * keys:
  *<ul>
  * <li>lng : locale (fr_fr, en)</li>
@@ -115,7 +115,7 @@ public class PhoneInformation extends HashMap<String,String>{
 	 * @param in the string to remove spaces from
 	 * @return the lower case 'in' string without any space
 	 */
-	private String removeSpaces(String in) {
+	private static String removeSpaces(String in) {
 		
 		if ( in == null ) 
 		{
@@ -126,12 +126,21 @@ public class PhoneInformation extends HashMap<String,String>{
 			return in;
 		}
 		
-		return in.replace("-", "")
-				.replace(" ", "")
-				.replace("'", "")
-				.replace("’", "")
-				.replace("?", "")
-				.toLowerCase();
+		// one pass over the string instead of one per removed character
+		StringBuilder buf = null;
+		for ( int i = 0; i < in.length(); i++ ) {
+			char c = in.charAt(i);
+			if ( c == '-' || c == ' ' || c == '\'' || c == '’' || c == '?' ) {
+				if ( buf == null ) {
+					buf = new StringBuilder(in.length());
+					buf.append(in, 0, i);
+				}
+			} else if ( buf != null ) {
+				buf.append(c);
+			}
+		}
+		
+		return ( buf != null ? buf.toString() : in ).toLowerCase();
 		
 	}
 	
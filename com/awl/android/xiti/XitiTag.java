@@ -1,4 +1,4 @@
-﻿// Copyright 2010 Atos Worldline
+// Copyright 2010 Atos Worldline
 //
 // Inspired from Backelite bkxititag library for iPhone
 // Copyright 2009 Backelite
@@ -19,20 +19,21 @@
 
 package com.awl.android.xiti;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.URLEncoder;
-import java.util.Vector;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import android.content.Context;
 import android.util.Log;
 
+import com.awl.android.xiti.XitiTagConfig.XitiTagOverflowPolicy;
+import com.awl.android.xiti.XitiTagRetryPolicy.Outcome;
+
 /**
  * Helper class to send Xiti stats.
  *
@@ -44,14 +45,24 @@ import android.util.Log;
  *  <li>At the end of your application life cycle, call XitiTag.terminate()</li>
  *</ul>
  *
- * When tagAction or tagPage is called, a XitiTagOperation is created and queued in the operationQueue of XitiTag.
- * The operation queue is set to launch one operation at a time.
- * A call to Xiti is then made during the operation with the given parameters + information about the device running the application (see PhoneInformation for more information about what is sent).
+ * To tag other sites, create a XitiTagTracker per site: every tracker shares the queue, workers, transport and journal of XitiTag.
+ * init and terminate are thread-safe, and XitiTag can be initialized again after terminate.
+ *
+ * When tagAction or tagPage is called, a XitiTagOperation capturing the raw hit is created and queued in the operationQueue of XitiTag,
+ * without taking any lock but the short one of the session engine when the sessions are tracked (see XitiTagConfig.setSessionTimeout):
+ * the names are only interned (see XitiTagNameCache), they are escaped and url encoded by the worker.
+ * The url is built later by the worker sending the hit.
+ * The operation queue is bounded (see XitiTagConfig.setQueueCapacity) and drained by several workers (see XitiTagConfig.setWorkerCount).
+ * A page hit and the actions tagged after it are sent in order, whatever their priorities, hits of different pages may be sent in parallel.
+ * A call to Xiti is then made through the XitiTagTransport of the configuration during the operation with the given parameters + information about the device running the application (see PhoneInformation for more information about what is sent).
+ * Oversized hits, or whole batches, can instead be posted in a gzip compressed body carrying the device information once (see XitiTagConfig.setPostMode).
+ * Queued operations are also journaled on disk (see XitiTagJournal): the ones not sent before the process dies are sent after the next init.
+ * flush(timeout) and terminate(timeout) send the pending hits within a deadline and tell what was sent, spilled to the journal or lost.
  *
  * @see com.awl.android.xiti.PhoneInformation
  * @author Cyril Cauchois
  */
-public class XitiTag implements Runnable{
+public class XitiTag {
 	
 	
 	/**
@@ -64,6 +75,33 @@ public class XitiTag implements Runnable{
 	 */
 	private final static String LOG_TAG = "AWLXITI" ;
 
+	/**
+	 * Directory of the journal, in the application files directory
+	 */
+	private final static String JOURNAL_DIRECTORY = "xititag";
+
+	/**
+	 * Session state file, in JOURNAL_DIRECTORY
+	 */
+	private final static String SESSION_FILE = "session.state";
+
+	/**
+	 * Initial capacity of the url builders
+	 */
+	private final static int URL_CAPACITY = 512;
+
+	/**
+	 * Maximum wait for the journal to write the hits left at the end of a flush (ms)
+	 */
+	private final static long SPILL_TIMEOUT = 1000;
+
+	/**
+	 * Media type and encoding of the posted hits (see XitiTagConfig.setPostMode)
+	 */
+	private final static String POST_CONTENT_TYPE = "text/plain; charset=UTF-8";
+	private final static String POST_CONTENT_ENCODING = "gzip";
+	private final static String POST_CHARSET = "UTF-8";
+
 	/**
 	 * Enum used by tagAction to send actions to Xiti.
 	 * Actions are defined with the url parameter "clic"
@@ -77,199 +115,202 @@ public class XitiTag implements Runnable{
 	
 		
 	/**
-	 * subdomain of xiti tag	
+	 * Tracker used by the static tag methods
 	 */
-	private String subdomain;
+	private XitiTagTracker defaultTracker;
 	
 	/**
-	 * website xiti id
+	 * Phone information parameters, appended to every url
 	 */
-	private String siteId;
-	
+	private XitiTagDeviceInfo deviceInfo;
+
 	/**
-	 * subsite xiti id
+	 * Url builder reused by each thread calling buildUrl
 	 */
-	private String subsiteId;
+	private final ThreadLocal<StringBuilder> urlBuilder = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(URL_CAPACITY);
+		}
+	};
 	
 	/**
-	 * Phone information
+	 * Transport shared by all requests (see XitiTagConfig.setTransport)
 	 */
-	private PhoneInformation phoneInfo;
-	
+	private XitiTagTransport transport;
+
 	/**
-	 * Operations queue
+	 * Url receiving the posted hits, null if hits are never posted
 	 */
-	private BlockingQueue<XitiTagOperation> operationQueue;
-	
+	private String postUrl;
+
+	/**
+	 * Length of the url above which a hit is posted
+	 */
+	private int maxUrlLength;
+
+	/**
+	 * Operations queue and workers sending its operations
+	 */
+	private XitiTagDispatcher dispatcher;
+
+	/**
+	 * On-disk journal of the queued operations, null if disabled
+	 */
+	private XitiTagJournal journal;
+
+	/**
+	 * true once the journal was handed over to the next instance, which closes it
+	 */
+	private boolean journalHandedOver;
+
+	/**
+	 * Session engine, null if the sessions are not tracked
+	 */
+	private XitiTagSession session;
+
+	/**
+	 * true once the transport and the journal are released
+	 */
+	private boolean released;
+
 	/**
 	 * XitiTag is a singleton.
 	 */
-	private static XitiTag instance = null;
-	
+	private static volatile XitiTag instance = null;
+
+	/**
+	 * Terminated instance whose workers are still sending the pending hits, guarded by XitiTag.class
+	 */
+	private static XitiTag terminated = null;
 	
-	/** Index du 1er caractere accentué **/
-    private static final int MIN = 192;
-    /** Index du dernier caractere accentué **/
-    private static final int MAX = 255;
 	
-    /** Vecteur de correspondance entre accent / sans accent **/
-    private static final Vector<String> map = initMap();
-    
-    /** Initialisation du tableau de correspondance entre les caractéres accentués
-       * et leur homologues non accentués 
-       */
-    private static Vector<String> initMap()
-    {  Vector<String> result         = new Vector<String>();
-       java.lang.String car  = null;
-      
-       car = new java.lang.String("A");
-       result.add( car );            /* '\u00C0'   À   alt-0192  */ 
-       result.add( car );            /* '\u00C1'   Á   alt-0193  */
-       result.add( car );            /* '\u00C2'   Â   alt-0194  */
-       result.add( car );            /* '\u00C3'   Ã   alt-0195  */
-       result.add( car );            /* '\u00C4'   Ä   alt-0196  */
-       result.add( car );            /* '\u00C5'   Å   alt-0197  */
-       car = new java.lang.String("AE");
-       result.add( car );            /* '\u00C6'   Æ   alt-0198  */
-       car = new java.lang.String("C");
-       result.add( car );            /* '\u00C7'   Ç   alt-0199  */
-       car = new java.lang.String("E");
-       result.add( car );            /* '\u00C8'   È   alt-0200  */
-       result.add( car );            /* '\u00C9'   É   alt-0201  */
-       result.add( car );            /* '\u00CA'   Ê   alt-0202  */
-       result.add( car );            /* '\u00CB'   Ë   alt-0203  */
-       car = new java.lang.String("I");
-       result.add( car );            /* '\u00CC'   Ì   alt-0204  */
-       result.add( car );            /* '\u00CD'   Í   alt-0205  */
-       result.add( car );            /* '\u00CE'   Î   alt-0206  */
-       result.add( car );            /* '\u00CF'   Ï   alt-0207  */
-       car = new java.lang.String("D");
-       result.add( car );            /* '\u00D0'   Ð   alt-0208  */
-       car = new java.lang.String("N");
-       result.add( car );            /* '\u00D1'   Ñ   alt-0209  */
-       car = new java.lang.String("O");
-       result.add( car );            /* '\u00D2'   Ò   alt-0210  */
-       result.add( car );            /* '\u00D3'   Ó   alt-0211  */
-       result.add( car );            /* '\u00D4'   Ô   alt-0212  */
-       result.add( car );            /* '\u00D5'   Õ   alt-0213  */
-       result.add( car );            /* '\u00D6'   Ö   alt-0214  */
-       car = new java.lang.String("*");
-       result.add( car );            /* '\u00D7'   ×   alt-0215  */
-       car = new java.lang.String("0");
-       result.add( car );            /* '\u00D8'   Ø   alt-0216  */
-       car = new java.lang.String("U");
-       result.add( car );            /* '\u00D9'   Ù   alt-0217  */
-       result.add( car );            /* '\u00DA'   Ú   alt-0218  */
-       result.add( car );            /* '\u00DB'   Û   alt-0219  */
-       result.add( car );            /* '\u00DC'   Ü   alt-0220  */
-       car = new java.lang.String("Y");
-       result.add( car );            /* '\u00DD'   Ý   alt-0221  */
-       car = new java.lang.String("Þ");
-       result.add( car );            /* '\u00DE'   Þ   alt-0222  */
-       car = new java.lang.String("B");
-       result.add( car );            /* '\u00DF'   ß   alt-0223  */
-       car = new java.lang.String("a");
-       result.add( car );            /* '\u00E0'   à   alt-0224  */
-       result.add( car );            /* '\u00E1'   á   alt-0225  */
-       result.add( car );            /* '\u00E2'   â   alt-0226  */
-       result.add( car );            /* '\u00E3'   ã   alt-0227  */
-       result.add( car );            /* '\u00E4'   ä   alt-0228  */
-       result.add( car );            /* '\u00E5'   å   alt-0229  */
-       car = new java.lang.String("ae");
-       result.add( car );            /* '\u00E6'   æ   alt-0230  */
-       car = new java.lang.String("c");
-       result.add( car );            /* '\u00E7'   ç   alt-0231  */
-       car = new java.lang.String("e");
-       result.add( car );            /* '\u00E8'   è   alt-0232  */
-       result.add( car );            /* '\u00E9'   é   alt-0233  */
-       result.add( car );            /* '\u00EA'   ê   alt-0234  */
-       result.add( car );            /* '\u00EB'   ë   alt-0235  */
-       car = new java.lang.String("i");
-       result.add( car );            /* '\u00EC'   ì   alt-0236  */
-       result.add( car );            /* '\u00ED'   í   alt-0237  */
-       result.add( car );            /* '\u00EE'   î   alt-0238  */
-       result.add( car );            /* '\u00EF'   ï   alt-0239  */
-       car = new java.lang.String("d");
-       result.add( car );            /* '\u00F0'   ð   alt-0240  */
-       car = new java.lang.String("n");
-       result.add( car );            /* '\u00F1'   ñ   alt-0241  */
-       car = new java.lang.String("o");
-       result.add( car );            /* '\u00F2'   ò   alt-0242  */
-       result.add( car );            /* '\u00F3'   ó   alt-0243  */
-       result.add( car );            /* '\u00F4'   ô   alt-0244  */
-       result.add( car );            /* '\u00F5'   õ   alt-0245  */
-       result.add( car );            /* '\u00F6'   ö   alt-0246  */
-       car = new java.lang.String("/");
-       result.add( car );            /* '\u00F7'   ÷   alt-0247  */
-       car = new java.lang.String("0");
-       result.add( car );            /* '\u00F8'   ø   alt-0248  */
-       car = new java.lang.String("u");
-       result.add( car );            /* '\u00F9'   ù   alt-0249  */
-       result.add( car );            /* '\u00FA'   ú   alt-0250  */
-       result.add( car );            /* '\u00FB'   û   alt-0251  */
-       result.add( car );            /* '\u00FC'   ü   alt-0252  */
-       car = new java.lang.String("y");
-       result.add( car );            /* '\u00FD'   ý   alt-0253  */
-       car = new java.lang.String("þ");
-       result.add( car );            /* '\u00FE'   þ   alt-0254  */
-       car = new java.lang.String("y");
-       result.add( car );            /* '\u00FF'   ÿ   alt-0255  */
-       result.add( car );            /* '\u00FF'       alt-0255  */
-      
-       return result;
-    }
-
-    /** Transforme une chaine pouvant contenir des accents dans une version sans accent
-     *  @param chaine Chaine a convertir sans accent
-     *  @return Chaine dont les accents ont été supprimé
-     **/
-    public static String sansAccent(String chaine)
-    {  StringBuffer res  = new StringBuffer(chaine);
-      
-       for(int bcl = 0 ; bcl < res.length() ; bcl++)
-       {   int carVal = chaine.charAt(bcl);
-           if( carVal >= MIN && carVal <= MAX )
-           {  // Remplacement
-              java.lang.String newVal = (java.lang.String)map.get( carVal - MIN );
-              res.replace(bcl, bcl+1,newVal);
-           }   
-       }
-       return res.toString();
-   }
+	/** Transforme une chaine pouvant contenir des accents dans une version sans accent
+	 *  @param chaine Chaine a convertir sans accent
+	 *  @return Chaine dont les accents ont été supprimé (chaine elle-même si elle n'a pas d'accent)
+	 **/
+	public static String sansAccent(String chaine) {
+		return XitiTagEscaper.sansAccent(chaine);
+	}
 	
 	
 	/**
 	 * Build the single instance
 	 * @param context application context
-	 * @param subdomain subdomain of xiti tag
-	 * @param siteId website xiti id
-	 * @param subsiteId subsite xiti id
+	 * @param defaultTracker tracker of the static tag methods
+	 * @param config configuration of the workers and of the transport
+	 * @param previous terminated instance still sending its hits, null if none
 	 */
-	private XitiTag(Context context, String subdomain, String siteId, String subsiteId) {
+	private XitiTag(Context context, XitiTagTracker defaultTracker, XitiTagConfig config, XitiTag previous) {
 		
-		this.subdomain = subdomain;
-		this.siteId = siteId;
-		this.subsiteId = subsiteId;
+		this.defaultTracker = defaultTracker;
 		
-		phoneInfo = new PhoneInformation(context);
-		operationQueue = new LinkedBlockingQueue<XitiTagOperation>();
+		transport = config.getTransport();
+		if ( transport == null ) {
+			// one pooled connection per worker, or per send in progress
+			transport = new XitiTagApacheTransport(Math.max(config.getWorkerCount(), config.getMaxInFlight()),
+					config.getConnectTimeout(), config.getReadTimeout());
+		} else {
+			transport.setTimeouts(config.getConnectTimeout(), config.getReadTimeout());
+		}
+
+		postUrl = config.getPostUrl();
+		maxUrlLength = config.getMaxUrlLength();
+
+		XitiTagConnectivity connectivity = config.getConnectivity();
+		boolean ownsConnectivity = connectivity == null;
+		if ( connectivity == null && config.isNetworkAware() ) {
+			// registered by the first worker reading the network state, not on the startup path
+			connectivity = new XitiTagAndroidConnectivity(context);
+		}
+
+		// collected by the first worker sending a hit, not on the startup path
+		deviceInfo = new XitiTagDeviceInfo(context, connectivity);
+
+		XitiTagNetworkScheduler networkScheduler = null;
+		if ( config.isNetworkAware() ) {
+			// only the connectivity created here is closed with the scheduler
+			networkScheduler = new XitiTagNetworkScheduler(connectivity, ownsConnectivity, config.getWifiMaxDelay());
+		}
+		dispatcher = new XitiTagDispatcher(this, config, END_SIGNAL, networkScheduler);
+
+		if ( config.isJournalEnabled() && previous != null && previous.handOverJournal() ) {
+			// the previous instance still journals its pending hits: share its journal instead of replaying it
+			journal = previous.journal;
+		} else if ( config.isJournalEnabled() ) {
+			try {
+				journal = new XitiTagJournal(new File(context.getFilesDir(), JOURNAL_DIRECTORY),
+						config.getJournalBatchSize(), config.getJournalFlushInterval());
+			} catch ( Throwable t ) {
+				Log.d(LOG_TAG, "XitiTag() Unable to create journal", t);
+			}
+		}
+
+		if ( config.getSessionTimeout() > 0 ) {
+			if ( previous != null && previous.session != null ) {
+				// same state file, the previous instance does not tag anymore
+				session = previous.session;
+			} else {
+				// mapped by the first worker, not on the startup path
+				session = new XitiTagSession(new File(new File(context.getFilesDir(), JOURNAL_DIRECTORY), SESSION_FILE), config.getSessionTimeout());
+			}
+		}
 	}
-	
+
 	/** 
 	 * This method must be called to configure XitiTag before any other call.
 	 * @param context application or activity context
 	 * @param subdomain xiti subdomain. Identifies the server to call for Xiti stats. e.g: http://subd1.xiti.com , subdomain should be "subd1"
 	 * @param siteId id of the site
 	 * @param subsiteId id of the subsite. can be null (optionnal)
+	 * @throws IllegalArgumentException if subdomain or siteId is null
 	 */
 	public static XitiTag init(Context context, String subdomain, String siteId, String subsiteId) {
-		if ( instance == null ) {
-			instance = new XitiTag(context, subdomain, siteId, subsiteId);
-			// start the thread in charge of XitiTagOperations in operationQueue.
-			new Thread(instance).start(); 
+		return init(context, subdomain, siteId, subsiteId, new XitiTagConfig());
+	}
+
+	/** 
+	 * This method must be called to configure XitiTag before any other call.
+	 * @param context application or activity context
+	 * @param subdomain xiti subdomain. Identifies the server to call for Xiti stats. e.g: http://subd1.xiti.com , subdomain should be "subd1"
+	 * @param siteId id of the site
+	 * @param subsiteId id of the subsite. can be null (optionnal)
+	 * @param config workers and http client configuration
+	 * @throws IllegalArgumentException if subdomain or siteId is null: the previous versions accepted them and sent the hits to http://null.xiti.com
+	 */
+	public static synchronized XitiTag init(Context context, String subdomain, String siteId, String subsiteId, XitiTagConfig config) {
+		if ( instance != null ) {
+			if ( !instance.defaultTracker.isSameSite(new XitiTagTracker(subdomain, siteId, subsiteId)) ) {
+				Log.d(LOG_TAG, "XitiTag.init() XitiTag is already initialized for another site, use a XitiTagTracker to tag site " + siteId);
+			}
+			return instance;
 		}
-		
-		return instance;
+
+		XitiTag previous = terminated;
+		XitiTag tag = new XitiTag(context, new XitiTagTracker(subdomain, siteId, subsiteId), config, previous);
+		// start the workers in charge of XitiTagOperations in operationQueue, the first one maps the session state
+		final XitiTagSession session = tag.session;
+		tag.dispatcher.start(config.getWorkerCount(), config.getExecutor(), session == null ? null : new Runnable() {
+			@Override
+			public void run() {
+				session.open();
+			}
+		});
+
+		// send the hits left by the previous run (unless the journal comes from the previous instance, which still sends them),
+		// read back by the journal thread, not on the caller's
+		if ( tag.journal != null && ( previous == null || tag.journal != previous.journal ) ) {
+			final XitiTagDispatcher dispatcher = tag.dispatcher;
+			tag.journal.open(new XitiTagJournal.Replay() {
+				@Override
+				public void replay(XitiTagOperation operation) {
+					dispatcher.enqueue(operation);
+				}
+			});
+		}
+
+		instance = tag;
+		return tag;
 	}
 	
 	/** 
@@ -303,16 +344,119 @@ public class XitiTag implements Runnable{
 			
 		}
 		
+	/**
+	 * Set the connect and read timeouts of the requests sent to Xiti.
+	 * @param connectTimeout connect timeout in milliseconds (0 means infinite)
+	 * @param readTimeout read timeout in milliseconds (0 means infinite)
+	 */
+	public static void setTimeouts(int connectTimeout, int readTimeout) {
+		current().transport.setTimeouts(connectTimeout, readTimeout);
+	}
+
 	/**
 	 * This method must be called at the end of the life cycle of your activity or application
-	 * in order to stop the thread in charge of XitiTagOperations in operationQueue.
+	 * in order to stop the workers in charge of XitiTagOperations in operationQueue.
+	 * The pooled connections are closed once the pending operations are done.
+	 * XitiTag can be initialized again afterwards.
+	 * It does not wait, even when the queue is full: it can be called on the main thread.
 	 */
 	public static void terminate() {
-		if ( instance == null ) {
+		XitiTag tag;
+
+		// the stop is outside the lock, init is never held by it
+		synchronized ( XitiTag.class ) {
+			tag = current();
+			instance = null;
+			terminated = tag;
+		}
+
+		tag.dispatcher.stop();
+	}
+
+	/**
+	 * Stop like terminate(), but wait for the pending hits to be sent, at most timeout ms.
+	 * The high priority hits are sent first (see XitiTagConfig.setActionPriority).
+	 * Hits not sent by then are left in the journal, which is written before returning, and sent after the next init.
+	 * Must not be called on the main thread: it waits for the network.
+	 * @param timeout maximum wait in milliseconds
+	 * @return number of hits sent, spilled to the journal and dropped
+	 */
+	public static XitiTagFlushResult terminate(long timeout) {
+		XitiTag tag;
+
+		// do not hold the lock while waiting, init may be called meanwhile
+		synchronized ( XitiTag.class ) {
+			tag = current();
+			instance = null;
+			terminated = tag;
+		}
+
+		return tag.dispatcher.flush(timeout, true);
+	}
+
+	/**
+	 * Send the pending hits at once, without waiting for a cheaper network, and wait for them at most timeout ms,
+	 * e.g. when the application goes to the background. Hits tagged meanwhile are sent too.
+	 * The hits not sent by then are still queued, and safe in the journal.
+	 * Must not be called on the main thread: it waits for the network.
+	 * @param timeout maximum wait in milliseconds
+	 * @return number of hits sent, spilled to the journal (still pending) and dropped during the call
+	 */
+	public static XitiTagFlushResult flush(long timeout) {
+		return current().dispatcher.flush(timeout, false);
+	}
+
+	/**
+	 * @return the initialized instance
+	 * @throws IllegalStateException if XitiTag is not initialized
+	 */
+	static XitiTag current() {
+		XitiTag tag = instance;
+		if ( tag == null ) {
 			throw new IllegalStateException("Xiti tag must be initialized before use.");
 		}
-		
-		instance.launchRequest(END_SIGNAL);
+		return tag;
+	}
+
+	/**
+	 * Collect the device information sent with the hits again (locale, application version...), e.g. after a configuration change.
+	 * The connection type does not need it: it follows the connectivity changes.
+	 */
+	public static void refreshDeviceInfo() {
+		current().deviceInfo.refresh();
+	}
+
+	/**
+	 * @return tracker used by the static tag methods, i.e. the site given to init
+	 */
+	public static XitiTagTracker getDefaultTracker() {
+		return current().defaultTracker;
+	}
+
+	/**
+	 * Number of hits lost because the operation queue was full.
+	 * @param policy overflow policy that was in use
+	 * @return number of hits lost under the given policy since init
+	 */
+	public static long getDroppedCount(XitiTagOverflowPolicy policy) {
+		return current().dispatcher.getDroppedCount(policy);
+	}
+
+	/**
+	 * Sizes of the batches of hits sent so far (see XitiTagConfig.setBatchSize).
+	 * @return number of batches sent, indexed by batch size
+	 */
+	public static long[] getBatchSizeHistogram() {
+		return current().dispatcher.getBatchSizeHistogram();
+	}
+
+	/**
+	 * Current metrics of the tagging pipeline: queue size, hits sent, failed and dropped,
+	 * latencies (see XitiTagMetrics and XitiTagConfig.setMetricsEnabled).
+	 * @return snapshot of the metrics since init
+	 */
+	public static XitiTagMetrics.Snapshot getMetrics() {
+		return current().dispatcher.getMetrics();
 	}
 	
 	/**
@@ -320,13 +464,7 @@ public class XitiTag implements Runnable{
 	 * @param page name of the page to tag. 'page' will appear in your xiti tag page.
 	 */
 	public static void tagPage(String page) {
-		
-		if ( instance == null ) {
-			throw new IllegalStateException("Xiti tag must be initialized before use.");
-		}
-		
-		instance.launchRequest("p='"+page+"'");
-		
+		current().defaultTracker.tagPage(page);
 	}
 	
 	/**
@@ -336,11 +474,7 @@ public class XitiTag implements Runnable{
 	 */
 	public static void tagPage(String page, String subsiteId) 
 	{
-		if ( instance == null ) {
-			throw new IllegalStateException("Xiti tag must be initialized before use.");
-		}
-		
-		instance.launchRequest("p='"+page+"'", subsiteId);
+		current().defaultTracker.tagPage(page, subsiteId);
 	}
 	
 	/**
@@ -348,12 +482,7 @@ public class XitiTag implements Runnable{
 	 * @param action name of the action to tag. 'action' will appear in your xiti tag page.
 	 */
 	public static void tagAction(String action, XitiTagActionType actionType) {
-		
-		if ( instance == null ) {
-			throw new IllegalStateException("Xiti tag must be initialized before use.");
-		}
-		
-		instance.launchRequest("p='"+action+"'&clic='"+stringForActionType(actionType)+"'");
+		current().defaultTracker.tagAction(action, actionType);
 	}
 	
 	/**
@@ -362,12 +491,7 @@ public class XitiTag implements Runnable{
 	 * @param subsiteId id of the subsite to use
 	 */
 	public static void tagAction(String action, XitiTagActionType actionType, String subsiteId) {
-		
-		if ( instance == null ) {
-			throw new IllegalStateException("Xiti tag must be initialized before use.");
-		}
-		
-		instance.launchRequest("p='"+action+"'&clic='"+stringForActionType(actionType)+"'", subsiteId);
+		current().defaultTracker.tagAction(action, actionType, subsiteId);
 	}
 	
 	/**
@@ -387,112 +511,306 @@ public class XitiTag implements Runnable{
 		
 		return result;
 	}
-	
+
 	/**
-	 * put the request into the operationQueue
-	 * @param toAppend additional parameters
+	 * Append a sample rate as a fixed decimal of at most 6 digits, e.g. 0.0001 where append(float) gives 1.0E-4
+	 * @param rate sample rate, more than 0 and at most 1
+	 * @param buf builder receiving the rate
 	 */
-	private void launchRequest(String toAppend) {
-		
-		operationQueue.offer(new XitiTagOperation(buildUrl(toAppend, this.subsiteId)));
-		
+	static void appendSampleRate(float rate, StringBuilder buf) {
+
+		// in millionths, as journaled (see XitiTagHitCodec)
+		long value = Math.max(1, Math.round(rate * 1000000.0));
+		if ( value >= 1000000 ) {
+			buf.append('1');
+			return;
+		}
+
+		int digits = 6;
+		while ( value % 10 == 0 ) {
+			value /= 10;
+			digits--;
+		}
+
+		// leading zeros of the fraction
+		int length = 1;
+		for ( long bound = 10; bound <= value; bound *= 10 ) {
+			length++;
+		}
+		buf.append("0.");
+		for ( int i = length; i < digits; i++ ) {
+			buf.append('0');
+		}
+		buf.append(value);
 	}
 	
 	/**
-	 * put the request into the operationQueue
-	 * @param toAppend additional parameters
+	 * put the request into the operationQueue.
+	 * Only the raw hit is captured here, without lock but the one of the session engine: the url is built by the worker sending it.
+	 * @param tracker site of the request
+	 * @param page name of the page or of the action
+	 * @param actionType type of the action, null for a page hit
+	 * @param subsiteId subsite id of the request
+	 * @param orderingKey requests with the same key are sent in order (null if the order does not matter)
 	 */
-	private void launchRequest(String toAppend, String subsiteId) {
+	void launchRequest(XitiTagTracker tracker, String page, XitiTagActionType actionType, String subsiteId, String orderingKey) {
 		
-		operationQueue.offer(new XitiTagOperation(buildUrl(toAppend, subsiteId)));
+		float sampleRate = dispatcher.accept(tracker, page, actionType, subsiteId);
+		if ( sampleRate <= 0 ) {
+			return;
+		}
+
+		XitiTagOperation operation = new XitiTagOperation(tracker, page, actionType, subsiteId, orderingKey, System.currentTimeMillis());
+		operation.setSampleRate(sampleRate);
+
+		if ( dispatcher.isDuplicate(operation) ) {
+			return;
+		}
+
+		if ( session != null ) {
+			session.onHit(operation);
+		}
+
+		if ( journal != null ) {
+			journal.append(operation);
+		}
+
+		dispatcher.enqueue(operation);
 	}
 	
 	/**
-	 * Build the url with the given xiti parameters
-	 * @param toAppend other parameters to append
+	 * Build the url of a hit. Called by the worker sending it.
+	 * Only the parameters of the hit are appended to the prefix of its site and to the pre-encoded device parameters.
+	 * @param operation hit to send
 	 * @return the url ready to be requested at Xiti servers
 	 */
-	private String buildUrl(String toAppend, String subsiteId) {
-		
-		//TODO some part of the url could be built once
-		
-		StringBuffer buf = new StringBuffer("http://");
-		
-		buf.append(subdomain)
-		   .append(".xiti.com/hit.xiti?s=").append(this.siteId)
-		   .append("&").append(toAppend);
-		
-		if ( subsiteId != null ) {
-			buf.append("&s2=").append(subsiteId);
+	String buildUrl(XitiTagOperation operation) {
+
+		StringBuilder buf = urlBuilder.get();
+		buf.setLength(0);
+
+		appendHit(operation, buf);
+		buf.append(deviceInfo.getUrlSuffix());
+
+		return buf.toString();
+
+	}
+
+	/**
+	 * Append the url of a hit, without the device parameters
+	 * @param operation hit to send
+	 * @param buf builder receiving the url
+	 */
+	private void appendHit(XitiTagOperation operation, StringBuilder buf) {
+
+		XitiTagTracker tracker = operation.getTracker() != null ? operation.getTracker() : defaultTracker;
+		buf.append(tracker.getUrlPrefix()).append("p='").append(encodedName(operation.getPage())).append("'");
+
+		if ( operation.getActionType() != null ) {
+			buf.append("&clic='").append(stringForActionType(operation.getActionType())).append("'");
 		}
-		
-		for (String key : phoneInfo.keySet()) {
-			if ( phoneInfo.get(key) != null ) {
-				buf.append("&").append(key).append("=").append(URLEncoder.encode(phoneInfo.get(key)));
+
+		if ( operation.getSubsiteId() != null ) {
+			buf.append("&s2=").append(operation.getSubsiteId());
+		}
+
+		if ( operation.getSampleRate() < 1 ) {
+			buf.append("&sr=");
+			appendSampleRate(operation.getSampleRate(), buf);
+		}
+
+		if ( operation.getSessionId() != 0 ) {
+			buf.append("&sid=").append(operation.getSessionId()).append("&sq=").append(operation.getSessionSequence());
+			if ( operation.getPreviousPage() != null ) {
+				buf.append("&pp='").append(encodedName(operation.getPreviousPage())).append("'&tp=").append(operation.getPreviousPageDuration());
 			}
 		}
-		
-		buf.append("&na=").append(System.currentTimeMillis());
-		
-		Log.d(LOG_TAG, "XitiTag.BuildUrl returns : "+buf.toString());
-		
-		return buf.toString();
-		
+
+		buf.append("&na=").append(operation.getCreationTime());
 	}
 
 	/**
-	 * Do not use this method.
-	 * XitiTag use it for you.
+	 * @param name page or action name, may be null
+	 * @return url encoded name, from the name cache
 	 */
-	@Override
-	public void run() {
-		
-		XitiTagOperation operation = null;
-		
-		while ( true ) {
-			
-			try {
-				operation = operationQueue.take(); // take a XitiTagOperaion from the operationQueue
-				
-				if ( END_SIGNAL.equals(operation.getOperation()) ) {
-					break; // end of thread
-				}
-				
-				doRequest(operation.getOperation());
-				
-			} catch (Throwable t) {} 
-			
+	private static String encodedName(String name) {
+		return name != null ? XitiTagNameCache.SHARED.get(name).encoded() : null;
+	}
+
+	/**
+	 * Build the body posting several hits: the device parameters on the first line, then one line per hit.
+	 * @param operations hits to send
+	 * @return the gzip compressed body
+	 */
+	private byte[] buildBody(List<XitiTagOperation> operations) throws IOException {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 + 64 * operations.size());
+		Writer out = new OutputStreamWriter(new GZIPOutputStream(bytes), POST_CHARSET);
+
+		// sent once for every hit of the request
+		out.write(deviceInfo.getUrlSuffix());
+
+		StringBuilder buf = urlBuilder.get();
+		for ( XitiTagOperation operation : operations ) {
+			buf.setLength(0);
+			appendHit(operation, buf);
+			out.write('\n');
+			out.append(buf);
 		}
+
+		out.close();
+		return bytes.toByteArray();
 	}
-	
+
+	/**
+	 * Send an operation once. Called by the workers of the dispatcher, which retry it if needed.
+	 * @param operation operation to send
+	 * @return outcome of the attempt
+	 */
+	Outcome send(XitiTagOperation operation) {
+
+		// the url only lives for the attempt, the queued operation keeps its compact form
+		String url = operation.getOperation() != null ? operation.getOperation() : buildUrl(operation);
+
+		Outcome outcome;
+		if ( postUrl != null && url.length() > maxUrlLength && operation.getOperation() == null ) {
+			// too long for the proxies
+			outcome = doPost(Collections.singletonList(operation));
+		} else {
+			dispatcher.recordBytes(1, url.length());
+			outcome = doRequest(url);
+		}
+
+		// a failed hit stays in the journal until it is sent or given up
+		if ( journal != null && outcome == Outcome.SENT ) {
+			journal.ack(operation);
+		}
+
+		return outcome;
+	}
+
+	/**
+	 * Send several hits in one POST (see XitiTagConfig.setPostMode). Called by the workers of the dispatcher, which retry it if needed.
+	 * @param operations hits to send
+	 * @return outcome of the attempt, for every hit
+	 */
+	Outcome send(List<XitiTagOperation> operations) {
+
+		Outcome outcome = doPost(operations);
+
+		if ( journal != null && outcome == Outcome.SENT ) {
+			for ( XitiTagOperation operation : operations ) {
+				journal.ack(operation);
+			}
+		}
+
+		return outcome;
+	}
+
+	/**
+	 * Forget an operation dropped by the dispatcher (queue full, or permanent failure).
+	 * @param operation dropped operation
+	 */
+	void discard(XitiTagOperation operation) {
+		if ( journal != null ) {
+			journal.ack(operation);
+		}
+	}
+
+	/**
+	 * Make sure the hits not sent yet are written in the journal, before the process may be killed.
+	 * @return false if there is no journal, or if it could not be written
+	 */
+	boolean spill() {
+		return journal != null && journal.sync(SPILL_TIMEOUT);
+	}
+
+	/**
+	 * Close the transport and the journal. Called by the dispatcher once every worker has stopped.
+	 */
+	void release() {
+		transport.close();
+
+		if ( session != null ) {
+			session.close();
+		}
+
+		synchronized ( this ) {
+			released = true;
+			if ( journal != null && !journalHandedOver ) {
+				journal.close();
+			}
+		}
+
+		synchronized ( XitiTag.class ) {
+			if ( terminated == this ) {
+				terminated = null;
+			}
+		}
+	}
+
+	/**
+	 * Give the journal to the next instance, which closes it when it is released.
+	 * @return false if there is no journal to hand over (disabled, or already closed)
+	 */
+	private synchronized boolean handOverJournal() {
+		if ( journal == null || released ) {
+			return false;
+		}
+		journalHandedOver = true;
+		return true;
+	}
+
 	/**
 	 * Do the http request
 	 * @param url url of the request
+	 * @return outcome of the request
 	 */
-	private static void doRequest(String url) {
-		
+	private Outcome doRequest(String url) {
+
 		try {
-			final HttpClient httpClient  = new DefaultHttpClient();
-			final HttpGet httpGet = new HttpGet(url);
-			httpClient.execute(httpGet);
+			return XitiTagRetryPolicy.outcomeForStatus(transport.send(url));
+		} catch (IllegalArgumentException e) {
+			// malformed url: it will never go through
+			Log.d(LOG_TAG, "XitiTag.doRequest("+url+") failed ! ", e);
+			return Outcome.PERMANENT_FAILURE;
 		} catch (Throwable t) {
 			Log.d(LOG_TAG, "XitiTag.doRequest("+url+") failed ! ", t);
 		}
-			
 
+		return Outcome.RETRYABLE_FAILURE;
 	}
 	
-	public static String escapePageName(String dynamicPageName) {
-		
-		return sansAccent(dynamicPageName
-				.replace(" ", "")
-				.replace(" ", "")
-				.replace("-", "")
-				.replace("Â ", "")
-				.replace("'", "")
-				.replace("â€™", "")
-				.replace("’", "")
-				.replace("?", ""));
+	/**
+	 * Post hits to the url of XitiTagConfig.setPostMode
+	 * @param operations hits to send
+	 * @return outcome of the request
+	 */
+	private Outcome doPost(List<XitiTagOperation> operations) {
+
+		try {
+			byte[] body = buildBody(operations);
+			dispatcher.recordBytes(operations.size(), postUrl.length() + body.length);
+			return XitiTagRetryPolicy.outcomeForStatus(transport.post(postUrl, body, POST_CONTENT_TYPE, POST_CONTENT_ENCODING));
+		} catch (IllegalArgumentException e) {
+			// malformed url: it will never go through
+			Log.d(LOG_TAG, "XitiTag.doPost("+postUrl+") failed ! ", e);
+			return Outcome.PERMANENT_FAILURE;
+		} catch (Throwable t) {
+			Log.d(LOG_TAG, "XitiTag.doPost("+postUrl+") failed ! ", t);
+		}
+
+		return Outcome.RETRYABLE_FAILURE;
+	}
 
+	/**
+	 * Make a dynamic name usable as a Xiti page name:
+	 * spaces, no-break spaces, '-', quotes and '?' are removed and accented characters are replaced (see sansAccent).
+	 * @param dynamicPageName page name
+	 * @return escaped page name, cached for the next calls with the same name (see XitiTagNameCache)
+	 */
+	public static String escapePageName(String dynamicPageName) {
+		// apps escape the same few hundred names again and again
+		return XitiTagNameCache.SHARED.get(dynamicPageName).escaped();
 	}
 }
@@ -0,0 +1,158 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * Network state read from the ConnectivityManager and refreshed by the CONNECTIVITY_ACTION broadcast,
+ * so that isConnected and isWifi only read cached values.
+ * The network is first read, and the receiver registered, by the first worker asking for the network state:
+ * creating it on the init path costs no Binder call.
+ *
+ * The application needs the android.permission.ACCESS_NETWORK_STATE permission.
+ * Without it, the network is considered always connected.
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagAndroidConnectivity extends BroadcastReceiver implements XitiTagConnectivity {
+
+	/**
+	 * Log tag
+	 */
+	private final static String LOG_TAG = "AWLXITI" ;
+
+	private final Context context;
+
+	private volatile boolean connected = true;
+	private volatile boolean wifi = false;
+	private volatile Listener listener;
+
+	/**
+	 * true once the network was read and the broadcast receiver registered (or closed before)
+	 */
+	private volatile boolean started;
+
+	/**
+	 * true if the broadcast receiver is registered
+	 */
+	private boolean registered;
+
+	/**
+	 * @param context application or activity context (the application context is kept)
+	 */
+	public XitiTagAndroidConnectivity(Context context) {
+		this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+	}
+
+	/**
+	 * Read the network and watch its changes, on the first call
+	 */
+	private void ensureStarted() {
+		if ( !started ) {
+			start();
+		}
+	}
+
+	private synchronized void start() {
+
+		if ( started ) {
+			return;
+		}
+
+		refresh();
+
+		try {
+			context.registerReceiver(this, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+			registered = true;
+		} catch ( Throwable t ) {
+			Log.d(LOG_TAG, "XitiTagAndroidConnectivity.start() Unable to watch connectivity", t);
+		}
+
+		started = true;
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+
+		refresh();
+
+		Listener current = listener;
+		if ( current != null ) {
+			current.onConnectivityChanged();
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		ensureStarted();
+		return connected;
+	}
+
+	@Override
+	public boolean isWifi() {
+		ensureStarted();
+		return wifi;
+	}
+
+	@Override
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public synchronized void close() {
+
+		listener = null;
+		started = true; // never registered after close
+
+		if ( registered ) {
+			try {
+				context.unregisterReceiver(this);
+			} catch ( Throwable t ) {
+				Log.d(LOG_TAG, "XitiTagAndroidConnectivity.close() failed", t);
+			}
+			registered = false;
+		}
+	}
+
+	/**
+	 * Read the active network from the ConnectivityManager
+	 */
+	private void refresh() {
+
+		try {
+			ConnectivityManager connectivityMgr = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+			NetworkInfo info = connectivityMgr.getActiveNetworkInfo();
+			connected = info != null && info.isConnected();
+			wifi = connected && info.getType() == ConnectivityManager.TYPE_WIFI;
+		} catch ( Throwable t ) {
+			// no ACCESS_NETWORK_STATE permission: send as if always connected
+			connected = true;
+			wifi = false;
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * Transport based on the Apache HttpClient bundled with Android (default transport of XitiTag).
+ *
+ * A thread safe connection manager keeps a small pool of connections
+ * so that consecutive hits reuse the same socket (no new TCP connect / DNS lookup per hit).
+ * Both http and https urls are supported, e.g. an https collector for the posts (see XitiTagConfig.setPostMode).
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagApacheTransport implements XitiTagTransport {
+
+	/**
+	 * Idle pooled connections are closed after this delay (ms)
+	 */
+	private final static long IDLE_CONNECTION_TIMEOUT = 30000;
+
+	/**
+	 * Http client shared by all requests. Connections to the xiti server are pooled and kept alive.
+	 */
+	private final HttpClient httpClient;
+
+	/**
+	 * @param maxConnections size of the connection pool, usually the number of workers
+	 * @param connectTimeout connect timeout in milliseconds (0 means infinite)
+	 * @param readTimeout read timeout in milliseconds (0 means infinite)
+	 */
+	public XitiTagApacheTransport(int maxConnections, int connectTimeout, int readTimeout) {
+
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setUseExpectContinue(params, false);
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, readTimeout);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+		ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+		ConnManagerParams.setTimeout(params, connectTimeout);
+
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+		httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+	}
+
+	@Override
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		HttpParams params = httpClient.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, readTimeout);
+	}
+
+	@Override
+	public int send(String url) throws IOException {
+		return execute(new HttpGet(url));
+	}
+
+	@Override
+	public int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+
+		ByteArrayEntity entity = new ByteArrayEntity(body);
+		entity.setContentType(contentType);
+		if ( contentEncoding != null ) {
+			entity.setContentEncoding(contentEncoding);
+		}
+
+		HttpPost httpPost = new HttpPost(url);
+		httpPost.setEntity(entity);
+		return execute(httpPost);
+	}
+
+	private int execute(HttpUriRequest request) throws IOException {
+
+		ClientConnectionManager connectionManager = httpClient.getConnectionManager();
+		connectionManager.closeExpiredConnections();
+		connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+
+		HttpResponse response = httpClient.execute(request);
+
+		// the response must be consumed to give the connection back to the pool
+		HttpEntity entity = response.getEntity();
+		if ( entity != null ) {
+			entity.consumeContent();
+		}
+
+		return response.getStatusLine().getStatusCode();
+	}
+
+	@Override
+	public void close() {
+		httpClient.getConnectionManager().shutdown();
+	}
+
+}
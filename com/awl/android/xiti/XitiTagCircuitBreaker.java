@@ -0,0 +1,146 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+/**
+ * Stops sending while the Xiti collector keeps failing.
+ *
+ *<ul>
+ * <li>CLOSED: hits are sent. After XitiTagConfig.getCircuitFailureThreshold() consecutive retryable failures, the circuit opens.</li>
+ * <li>OPEN: workers wait, no connection is opened. When the open duration is over, the circuit is half open.</li>
+ * <li>HALF_OPEN: a single worker sends a probe hit. Success closes the circuit,
+ * failure opens it again for twice the previous duration (up to XitiTagConfig.getRetryMaxDelay()).</li>
+ *</ul>
+ *
+ * @author Cyril Cauchois
+ */
+class XitiTagCircuitBreaker {
+
+	private enum State { CLOSED, OPEN, HALF_OPEN };
+
+	private final int failureThreshold;
+	private final long baseOpenDuration;
+	private final long maxOpenDuration;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openDuration;
+	private long openUntil;
+
+	/**
+	 * true while the probe of the HALF_OPEN state is being sent
+	 */
+	private boolean probing;
+
+	/**
+	 * @param config circuit breaker configuration
+	 */
+	XitiTagCircuitBreaker(XitiTagConfig config) {
+		this.failureThreshold = config.getCircuitFailureThreshold();
+		this.baseOpenDuration = config.getCircuitOpenDuration();
+		this.maxOpenDuration = Math.max(config.getCircuitOpenDuration(), config.getRetryMaxDelay());
+		this.openDuration = baseOpenDuration;
+	}
+
+	/**
+	 * Wait until a hit may be sent. Every successful call must be followed by onSuccess or onFailure.
+	 * @param deadline time after which the worker gives up waiting (ms), Long.MAX_VALUE to wait as long as needed
+	 * @return false if the hit may still not be sent at the deadline
+	 * @throws InterruptedException if the worker is interrupted while waiting
+	 */
+	synchronized boolean acquire(long deadline) throws InterruptedException {
+
+		while ( true ) {
+			long now = System.currentTimeMillis();
+			switch ( state ) {
+			case CLOSED :
+				return true;
+			case OPEN :
+				if ( now >= openUntil ) {
+					state = State.HALF_OPEN;
+					probing = false;
+					break;
+				}
+				if ( now >= deadline ) {
+					return false;
+				}
+				wait(Math.min(openUntil, deadline) - now);
+				break;
+			case HALF_OPEN :
+				if ( !probing ) {
+					probing = true; // this worker sends the probe
+					return true;
+				}
+				if ( now >= deadline ) {
+					return false;
+				}
+				if ( deadline == Long.MAX_VALUE ) {
+					wait();
+				} else {
+					wait(deadline - now);
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * The collector answered
+	 */
+	synchronized void onSuccess() {
+
+		consecutiveFailures = 0;
+
+		if ( state != State.CLOSED ) {
+			state = State.CLOSED;
+			openDuration = baseOpenDuration;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * The collector failed (retryable failure)
+	 */
+	synchronized void onFailure() {
+
+		consecutiveFailures++;
+
+		if ( state == State.HALF_OPEN ) {
+			openDuration = Math.min(openDuration * 2, maxOpenDuration);
+			open();
+		} else if ( state == State.CLOSED && consecutiveFailures >= failureThreshold ) {
+			open();
+		}
+	}
+
+	/**
+	 * @return true if hits are currently not sent
+	 */
+	synchronized boolean isOpen() {
+		return state != State.CLOSED;
+	}
+
+	private void open() {
+		state = State.OPEN;
+		openUntil = System.currentTimeMillis() + openDuration;
+		probing = false;
+		notifyAll();
+	}
+
+}
@@ -0,0 +1,983 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * Optional configuration given to XitiTag.init().
+ * Every setter returns the configuration itself so calls can be chained:
+ *
+ * <pre>
+ * XitiTag.init(context, "subd1", "12345", null, new XitiTagConfig().setWorkerCount(4));
+ * </pre>
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagConfig {
+
+	/**
+	 * What to do when a hit is tagged while the operation queue is full
+	 */
+	public enum XitiTagOverflowPolicy {
+		/** the new hit is dropped */
+		XitiTagOverflowPolicyDropNewest,
+		/** the oldest queued hit is dropped to make room for the new one */
+		XitiTagOverflowPolicyDropOldest,
+		/** the new hit is dropped if the same hit is already queued, otherwise the oldest queued hit is dropped */
+		XitiTagOverflowPolicyCoalesce,
+		/** the caller waits up to getBlockTimeout() for room, then the new hit is dropped */
+		XitiTagOverflowPolicyBlock
+	};
+
+	/**
+	 * Lane of the operation queue a hit is queued in
+	 */
+	public enum XitiTagPriority {
+		/** hits that must go out before the process dies (e.g. downloads and exits) */
+		XitiTagPriorityHigh,
+		/** pages and actions */
+		XitiTagPriorityNormal,
+		/** hits that may wait (e.g. navigation clicks) */
+		XitiTagPriorityLow
+	};
+
+	/**
+	 * When hits are sent in the gzip compressed body of a POST request instead of one GET per hit
+	 */
+	public enum XitiTagPostMode {
+		/** every hit is sent in its own GET request */
+		XitiTagPostModeNever,
+		/** hits whose url is longer than getMaxUrlLength() are posted */
+		XitiTagPostModeOversized,
+		/** every batch of several hits (see setBatchSize) is posted in one request, and so are the oversized hits */
+		XitiTagPostModeBatch
+	};
+
+	/**
+	 * Default capacity of the operation queue
+	 */
+	public final static int DEFAULT_QUEUE_CAPACITY = 500;
+
+	/**
+	 * Default wait of XitiTagOverflowPolicyBlock (ms)
+	 */
+	public final static long DEFAULT_BLOCK_TIMEOUT = 100;
+
+	/**
+	 * Default maximum time a non empty lane of the queue may be skipped (ms)
+	 */
+	public final static long DEFAULT_MAX_LANE_WAIT = 5000;
+
+	/**
+	 * Default maximum number of hits sent in a batch
+	 */
+	public final static int DEFAULT_BATCH_SIZE = 10;
+
+	/**
+	 * Default length of the url above which a hit is posted (see XitiTagPostModeOversized)
+	 */
+	public final static int DEFAULT_MAX_URL_LENGTH = 2000;
+
+	/**
+	 * Default maximum number of attempts to send a hit
+	 */
+	public final static int DEFAULT_MAX_ATTEMPTS = 4;
+
+	/**
+	 * Default base delay of the exponential backoff (ms)
+	 */
+	public final static long DEFAULT_RETRY_BASE_DELAY = 1000;
+
+	/**
+	 * Default maximum delay between two attempts (ms)
+	 */
+	public final static long DEFAULT_RETRY_MAX_DELAY = 60000;
+
+	/**
+	 * Default fraction of a retry earned by each hit sent
+	 */
+	public final static double DEFAULT_RETRY_BUDGET_RATIO = 0.2;
+
+	/**
+	 * Default number of consecutive failures opening the circuit breaker
+	 */
+	public final static int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 5;
+
+	/**
+	 * Default time the circuit breaker stays open before a probe (ms)
+	 */
+	public final static long DEFAULT_CIRCUIT_OPEN_DURATION = 30000;
+
+	/**
+	 * Default number of journal records written together
+	 */
+	public final static int DEFAULT_JOURNAL_BATCH_SIZE = 20;
+
+	/**
+	 * Default maximum time a hit waits in memory before being written to the journal (ms)
+	 */
+	public final static long DEFAULT_JOURNAL_FLUSH_INTERVAL = 2000;
+
+	/**
+	 * Default interval between two reports of the metrics (ms)
+	 */
+	public final static long DEFAULT_METRICS_REPORT_INTERVAL = 60000;
+
+	/**
+	 * Default number of workers sending the XitiTagOperations
+	 */
+	public final static int DEFAULT_WORKER_COUNT = 2;
+
+	/**
+	 * Default connect timeout (ms)
+	 */
+	public final static int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	/**
+	 * Default read timeout (ms)
+	 */
+	public final static int DEFAULT_READ_TIMEOUT = 10000;
+
+	private int workerCount = DEFAULT_WORKER_COUNT;
+	private Executor executor;
+	private Executor sendExecutor;
+	private int maxInFlight = 0;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+	private XitiTagTransport transport;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private XitiTagOverflowPolicy overflowPolicy = XitiTagOverflowPolicy.XitiTagOverflowPolicyDropOldest;
+	private long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+	private long dedupWindow = 0;
+	private long sessionTimeout = 0;
+	private final HashMap<String, Float> pageSampleRates = new HashMap<String, Float>();
+	private final float[] actionSampleRates = { 1, 1, 1, 1 };
+	private double rateLimit = 0;
+	private int rateLimitBurst = 1;
+	private XitiTagPriority pagePriority = XitiTagPriority.XitiTagPriorityNormal;
+	private final XitiTagPriority[] actionPriorities = {
+			XitiTagPriority.XitiTagPriorityNormal, // XitiTagActionTypeAction
+			XitiTagPriority.XitiTagPriorityHigh, // XitiTagActionTypeExit
+			XitiTagPriority.XitiTagPriorityLow, // XitiTagActionTypeNavigation
+			XitiTagPriority.XitiTagPriorityHigh // XitiTagActionTypeDownload
+	};
+	private final int[] laneWeights = { 4, 2, 1 };
+	private long maxLaneWait = DEFAULT_MAX_LANE_WAIT;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private long batchLinger = 0;
+	private XitiTagPostMode postMode = XitiTagPostMode.XitiTagPostModeNever;
+	private String postUrl;
+	private int maxUrlLength = DEFAULT_MAX_URL_LENGTH;
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long retryBaseDelay = DEFAULT_RETRY_BASE_DELAY;
+	private long retryMaxDelay = DEFAULT_RETRY_MAX_DELAY;
+	private double retryBudgetRatio = DEFAULT_RETRY_BUDGET_RATIO;
+	private int circuitFailureThreshold = DEFAULT_CIRCUIT_FAILURE_THRESHOLD;
+	private long circuitOpenDuration = DEFAULT_CIRCUIT_OPEN_DURATION;
+	private boolean networkAware = true;
+	private XitiTagConnectivity connectivity;
+	private long wifiMaxDelay = 0;
+	private boolean journalEnabled = true;
+	private int journalBatchSize = DEFAULT_JOURNAL_BATCH_SIZE;
+	private long journalFlushInterval = DEFAULT_JOURNAL_FLUSH_INTERVAL;
+	private boolean metricsEnabled = true;
+	private XitiTagMetricsReporter metricsReporter;
+	private long metricsReportInterval = DEFAULT_METRICS_REPORT_INTERVAL;
+
+	/**
+	 * @return number of workers draining the operation queue
+	 */
+	public int getWorkerCount() {
+		return workerCount;
+	}
+
+	/**
+	 * Set the number of workers draining the operation queue.
+	 * It is also the size of the connection pool of the default transport.
+	 * @param workerCount number of workers (at least 1)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setWorkerCount(int workerCount) {
+		if ( workerCount < 1 ) {
+			throw new IllegalArgumentException("workerCount must be at least 1");
+		}
+		this.workerCount = workerCount;
+		return this;
+	}
+
+	/**
+	 * @return executor running the workers, null if XitiTag starts its own threads
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Set the executor running the workers. Each worker occupies one task of the executor
+	 * until XitiTag.terminate() is called, so the executor must be able to run getWorkerCount() tasks at once.
+	 * @param executor executor supplied by the application, null to let XitiTag start its own threads
+	 * @return this configuration
+	 */
+	public XitiTagConfig setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * @return executor sending the hits, null if the workers send them
+	 */
+	public Executor getSendExecutor() {
+		return sendExecutor;
+	}
+
+	/**
+	 * @return maximum number of sends in progress on the send executor, 0 if the workers send the hits
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Send the hits on tasks of an executor instead of on the workers, for servers relaying many hits:
+	 * the workers only take the hits from the queue, and each hit (or posted batch) is sent by its own task,
+	 * with at most maxInFlight sends in progress. On Java 21, Executors.newVirtualThreadPerTaskExecutor()
+	 * sends thousands of hits at once with a few kB per send. The hits of the same page are still sent in order.
+	 * XitiTag.terminate() waits for the sends in progress before closing the transport; the executor is not shut down.
+	 * The default transport pools max(getWorkerCount(), maxInFlight) connections.
+	 * @param maxInFlight maximum number of sends in progress (must be > 0), 0 to let the workers send the hits (default)
+	 * @param sendExecutor executor running the sends, must not be null unless maxInFlight is 0
+	 * @return this configuration
+	 */
+	public XitiTagConfig setAsyncSend(int maxInFlight, Executor sendExecutor) {
+		if ( maxInFlight < 0 ) {
+			throw new IllegalArgumentException("maxInFlight must not be negative");
+		}
+		if ( maxInFlight > 0 && sendExecutor == null ) {
+			throw new IllegalArgumentException("sendExecutor must not be null");
+		}
+		this.maxInFlight = maxInFlight;
+		this.sendExecutor = maxInFlight > 0 ? sendExecutor : null;
+		return this;
+	}
+
+	/**
+	 * @return connect timeout in milliseconds
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * @param connectTimeout connect timeout in milliseconds (0 means infinite)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	/**
+	 * @return read timeout in milliseconds
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * @param readTimeout read timeout in milliseconds (0 means infinite)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
+	/**
+	 * @return transport sending the hits, null for the default XitiTagApacheTransport
+	 */
+	public XitiTagTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * @param transport transport sending the hits (see XitiTagTransport), null (default) for a XitiTagApacheTransport
+	 * with one pooled connection per worker. The connect and read timeouts of this configuration are applied to it.
+	 * @return this configuration
+	 */
+	public XitiTagConfig setTransport(XitiTagTransport transport) {
+		this.transport = transport;
+		return this;
+	}
+
+	/**
+	 * @return maximum number of operations waiting in the queue
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @param queueCapacity maximum number of operations waiting in the queue (at least 1)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setQueueCapacity(int queueCapacity) {
+		if ( queueCapacity < 1 ) {
+			throw new IllegalArgumentException("queueCapacity must be at least 1");
+		}
+		this.queueCapacity = queueCapacity;
+		return this;
+	}
+
+	/**
+	 * @return what is done when a hit is tagged while the queue is full
+	 */
+	public XitiTagOverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * @param overflowPolicy what is done when a hit is tagged while the queue is full
+	 * @return this configuration
+	 */
+	public XitiTagConfig setOverflowPolicy(XitiTagOverflowPolicy overflowPolicy) {
+		if ( overflowPolicy == null ) {
+			throw new IllegalArgumentException("overflowPolicy must not be null");
+		}
+		this.overflowPolicy = overflowPolicy;
+		return this;
+	}
+
+	/**
+	 * @return how long the caller waits for room with XitiTagOverflowPolicyBlock (ms)
+	 */
+	public long getBlockTimeout() {
+		return blockTimeout;
+	}
+
+	/**
+	 * @param blockTimeout how long the caller waits for room with XitiTagOverflowPolicyBlock (ms)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setBlockTimeout(long blockTimeout) {
+		this.blockTimeout = blockTimeout;
+		return this;
+	}
+
+	/**
+	 * @return window during which a hit identical to a previous one is dropped (ms), 0 if disabled
+	 */
+	public long getDedupWindow() {
+		return dedupWindow;
+	}
+
+	/**
+	 * Drop the hits identical to a hit tagged less than dedupWindow ago (same site, page, action type and subsite),
+	 * e.g. the page tagged again by a screen rotation. Dropped hits are counted (see XitiTagMetrics.Snapshot.getSuppressed).
+	 * @param dedupWindow window in ms, 0 (default) to send every hit
+	 * @return this configuration
+	 */
+	public XitiTagConfig setDedupWindow(long dedupWindow) {
+		if ( dedupWindow < 0 ) {
+			throw new IllegalArgumentException("dedupWindow must not be negative");
+		}
+		this.dedupWindow = dedupWindow;
+		return this;
+	}
+
+	/**
+	 * @return inactivity ending a session (ms), 0 if the sessions are not tracked
+	 */
+	public long getSessionTimeout() {
+		return sessionTimeout;
+	}
+
+	/**
+	 * Track the sessions of the visitor: every hit is sent with the id of its session (sid), its sequence number
+	 * in the session (sq), the previous page (pp) and the time spent on it in ms (tp).
+	 * A session ends after sessionTimeout without hit, and goes on when the application is restarted within sessionTimeout.
+	 * @param sessionTimeout inactivity in ms, usually 1800000 (30 min). 0 (default) to not track the sessions.
+	 * @return this configuration
+	 */
+	public XitiTagConfig setSessionTimeout(long sessionTimeout) {
+		if ( sessionTimeout < 0 ) {
+			throw new IllegalArgumentException("sessionTimeout must not be negative");
+		}
+		this.sessionTimeout = sessionTimeout;
+		return this;
+	}
+
+	/**
+	 * @return sample rate of the page hits, by page name
+	 */
+	public Map<String, Float> getPageSampleRates() {
+		return Collections.unmodifiableMap(pageSampleRates);
+	}
+
+	/**
+	 * Only send a fraction of the hits of a page. The rate is sent with the hit (parameter "sr")
+	 * so that the counts can be scaled back up.
+	 * @param page name of the page, as given to tagPage
+	 * @param sampleRate fraction of the hits sent, between 0 and 1 (default)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setPageSampleRate(String page, float sampleRate) {
+		if ( sampleRate < 0 || sampleRate > 1 ) {
+			throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+		}
+		pageSampleRates.put(page, sampleRate);
+		return this;
+	}
+
+	/**
+	 * @return fraction of the actions of the given type that are sent
+	 */
+	public float getActionSampleRate(XitiTagActionType actionType) {
+		return actionSampleRates[actionType.ordinal()];
+	}
+
+	/**
+	 * Only send a fraction of the actions of a type (e.g. the navigation actions of a carousel).
+	 * The rate is sent with the hit (parameter "sr") so that the counts can be scaled back up.
+	 * @param actionType type of the actions
+	 * @param sampleRate fraction of the actions sent, between 0 and 1 (default)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setActionSampleRate(XitiTagActionType actionType, float sampleRate) {
+		if ( sampleRate < 0 || sampleRate > 1 ) {
+			throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+		}
+		actionSampleRates[actionType.ordinal()] = sampleRate;
+		return this;
+	}
+
+	/**
+	 * @return maximum rate of the hits of one event key (hits per second), 0 if unlimited
+	 */
+	public double getRateLimit() {
+		return rateLimit;
+	}
+
+	/**
+	 * @return number of hits of one event key that may be sent at once
+	 */
+	public int getRateLimitBurst() {
+		return rateLimitBurst;
+	}
+
+	/**
+	 * Limit the rate of the hits of every event key (same site, page, action type and subsite) with a token bucket.
+	 * Hits over the limit are dropped and counted (see XitiTagMetrics.Snapshot.getRateLimited).
+	 * @param hitsPerSecond maximum sustained rate of a key, 0 (default) for no limit
+	 * @param burst number of hits of a key that may be sent at once (at least 1)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setRateLimit(double hitsPerSecond, int burst) {
+		if ( hitsPerSecond < 0 || burst < 1 ) {
+			throw new IllegalArgumentException("hitsPerSecond must not be negative and burst must be at least 1");
+		}
+		this.rateLimit = hitsPerSecond;
+		this.rateLimitBurst = burst;
+		return this;
+	}
+
+	/**
+	 * @return lane of the page hits
+	 */
+	public XitiTagPriority getPagePriority() {
+		return pagePriority;
+	}
+
+	/**
+	 * @param pagePriority lane of the page hits, XitiTagPriorityNormal by default
+	 * @return this configuration
+	 */
+	public XitiTagConfig setPagePriority(XitiTagPriority pagePriority) {
+		if ( pagePriority == null ) {
+			throw new IllegalArgumentException("pagePriority must not be null");
+		}
+		this.pagePriority = pagePriority;
+		return this;
+	}
+
+	/**
+	 * @return lane of the actions of the given type
+	 */
+	public XitiTagPriority getActionPriority(XitiTagActionType actionType) {
+		return actionPriorities[actionType.ordinal()];
+	}
+
+	/**
+	 * By default downloads and exits are high priority, navigation clicks low priority and the other actions normal.
+	 * An action tagged while the hit of its page is still queued joins the lane of that hit, so that it is not sent before it.
+	 * @param actionType type of the actions
+	 * @param priority lane of the actions of this type
+	 * @return this configuration
+	 */
+	public XitiTagConfig setActionPriority(XitiTagActionType actionType, XitiTagPriority priority) {
+		if ( priority == null ) {
+			throw new IllegalArgumentException("priority must not be null");
+		}
+		actionPriorities[actionType.ordinal()] = priority;
+		return this;
+	}
+
+	/**
+	 * @return share of the hits taken from the lane of the given priority, relative to the other lanes
+	 */
+	public int getLaneWeight(XitiTagPriority priority) {
+		return laneWeights[priority.ordinal()];
+	}
+
+	/**
+	 * While every lane has hits waiting, the workers take high, normal and low priority hits
+	 * in the proportions of the weights (4, 2 and 1 by default).
+	 * @return this configuration
+	 */
+	public XitiTagConfig setLaneWeights(int high, int normal, int low) {
+		if ( high < 1 || normal < 1 || low < 1 ) {
+			throw new IllegalArgumentException("lane weights must be at least 1");
+		}
+		laneWeights[XitiTagPriority.XitiTagPriorityHigh.ordinal()] = high;
+		laneWeights[XitiTagPriority.XitiTagPriorityNormal.ordinal()] = normal;
+		laneWeights[XitiTagPriority.XitiTagPriorityLow.ordinal()] = low;
+		return this;
+	}
+
+	/**
+	 * @return maximum time a lane with hits waiting may be skipped by the workers (ms)
+	 */
+	public long getMaxLaneWait() {
+		return maxLaneWait;
+	}
+
+	/**
+	 * Starvation protection: a lane not served for maxLaneWait is served next, whatever its weight.
+	 * @param maxLaneWait maximum time in ms (must be > 0)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setMaxLaneWait(long maxLaneWait) {
+		if ( maxLaneWait <= 0 ) {
+			throw new IllegalArgumentException("maxLaneWait must be > 0");
+		}
+		this.maxLaneWait = maxLaneWait;
+		return this;
+	}
+
+	/**
+	 * @return maximum number of hits a worker sends back-to-back in a batch
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize maximum number of hits a worker sends back-to-back in a batch (at least 1)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setBatchSize(int batchSize) {
+		if ( batchSize < 1 ) {
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		}
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * @return maximum wait for the next hit of a batch (ms)
+	 */
+	public long getBatchLinger() {
+		return batchLinger;
+	}
+
+	/**
+	 * @param batchLinger maximum wait for the next hit of a batch (ms). 0 (default) only batches the hits already queued.
+	 * @return this configuration
+	 */
+	public XitiTagConfig setBatchLinger(long batchLinger) {
+		this.batchLinger = batchLinger;
+		return this;
+	}
+
+	/**
+	 * @return when hits are posted instead of being sent one GET per hit
+	 */
+	public XitiTagPostMode getPostMode() {
+		return postMode;
+	}
+
+	/**
+	 * @return url receiving the posted hits, null if hits are never posted
+	 */
+	public String getPostUrl() {
+		return postUrl;
+	}
+
+	/**
+	 * Post some hits instead of sending one GET per hit, to save uplink bytes and to stay under the url limits of the proxies.
+	 * The body of the POST is gzip compressed text (Content-Encoding: gzip): its first line holds the device parameters,
+	 * shared by the hits of the request, and every following line the url of a hit without them.
+	 * The collector (e.g. a relay in front of Xiti) gets each hit url by appending the first line to the hit line.
+	 * @param postMode XitiTagPostModeNever (default), XitiTagPostModeOversized or XitiTagPostModeBatch
+	 * @param postUrl url of the collector receiving the posts, ignored with XitiTagPostModeNever
+	 * @return this configuration
+	 */
+	public XitiTagConfig setPostMode(XitiTagPostMode postMode, String postUrl) {
+		if ( postMode == null ) {
+			throw new IllegalArgumentException("postMode must not be null");
+		}
+		if ( postMode != XitiTagPostMode.XitiTagPostModeNever && postUrl == null ) {
+			throw new IllegalArgumentException("postUrl must not be null");
+		}
+		this.postMode = postMode;
+		this.postUrl = postMode != XitiTagPostMode.XitiTagPostModeNever ? postUrl : null;
+		return this;
+	}
+
+	/**
+	 * @return length of the url above which a hit is posted, unless the post mode is XitiTagPostModeNever
+	 */
+	public int getMaxUrlLength() {
+		return maxUrlLength;
+	}
+
+	/**
+	 * @param maxUrlLength length of the url above which a hit is posted (must be > 0)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setMaxUrlLength(int maxUrlLength) {
+		if ( maxUrlLength <= 0 ) {
+			throw new IllegalArgumentException("maxUrlLength must be > 0");
+		}
+		this.maxUrlLength = maxUrlLength;
+		return this;
+	}
+
+	/**
+	 * @return maximum number of attempts to send a hit
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @param maxAttempts maximum number of attempts to send a hit (1 disables retries)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setMaxAttempts(int maxAttempts) {
+		if ( maxAttempts < 1 ) {
+			throw new IllegalArgumentException("maxAttempts must be at least 1");
+		}
+		this.maxAttempts = maxAttempts;
+		return this;
+	}
+
+	/**
+	 * @return base delay of the exponential backoff (ms)
+	 */
+	public long getRetryBaseDelay() {
+		return retryBaseDelay;
+	}
+
+	/**
+	 * @param retryBaseDelay base delay of the exponential backoff (ms)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setRetryBaseDelay(long retryBaseDelay) {
+		this.retryBaseDelay = retryBaseDelay;
+		return this;
+	}
+
+	/**
+	 * @return maximum delay between two attempts (ms)
+	 */
+	public long getRetryMaxDelay() {
+		return retryMaxDelay;
+	}
+
+	/**
+	 * @param retryMaxDelay maximum delay between two attempts (ms)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setRetryMaxDelay(long retryMaxDelay) {
+		this.retryMaxDelay = retryMaxDelay;
+		return this;
+	}
+
+	/**
+	 * @return fraction of a retry earned by each hit sent
+	 */
+	public double getRetryBudgetRatio() {
+		return retryBudgetRatio;
+	}
+
+	/**
+	 * Limit the retries to a fraction of the traffic: each hit sent earns retryBudgetRatio retry
+	 * (e.g. 0.2 allows one retry every 5 hits once the initial budget is spent).
+	 * @param retryBudgetRatio fraction of a retry earned by each hit sent
+	 * @return this configuration
+	 */
+	public XitiTagConfig setRetryBudgetRatio(double retryBudgetRatio) {
+		this.retryBudgetRatio = retryBudgetRatio;
+		return this;
+	}
+
+	/**
+	 * @return number of consecutive failures opening the circuit breaker
+	 */
+	public int getCircuitFailureThreshold() {
+		return circuitFailureThreshold;
+	}
+
+	/**
+	 * @param circuitFailureThreshold number of consecutive failures opening the circuit breaker (at least 1)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setCircuitFailureThreshold(int circuitFailureThreshold) {
+		if ( circuitFailureThreshold < 1 ) {
+			throw new IllegalArgumentException("circuitFailureThreshold must be at least 1");
+		}
+		this.circuitFailureThreshold = circuitFailureThreshold;
+		return this;
+	}
+
+	/**
+	 * @return time the circuit breaker stays open before a probe (ms)
+	 */
+	public long getCircuitOpenDuration() {
+		return circuitOpenDuration;
+	}
+
+	/**
+	 * @param circuitOpenDuration time the circuit breaker stays open before a probe (ms)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setCircuitOpenDuration(long circuitOpenDuration) {
+		this.circuitOpenDuration = circuitOpenDuration;
+		return this;
+	}
+
+	/**
+	 * @return true if the hits are held while there is no network
+	 */
+	public boolean isNetworkAware() {
+		return networkAware;
+	}
+
+	/**
+	 * @param networkAware true (default) to hold the hits while there is no network and send them in a burst when it is back
+	 * @return this configuration
+	 */
+	public XitiTagConfig setNetworkAware(boolean networkAware) {
+		this.networkAware = networkAware;
+		return this;
+	}
+
+	/**
+	 * @return source of the network state, null to use XitiTagAndroidConnectivity
+	 */
+	public XitiTagConnectivity getConnectivity() {
+		return connectivity;
+	}
+
+	/**
+	 * The connectivity given here is not closed by XitiTag.terminate(): it can be given again to the next init.
+	 * @param connectivity source of the network state, null (default) to use XitiTagAndroidConnectivity
+	 * @return this configuration
+	 */
+	public XitiTagConfig setConnectivity(XitiTagConnectivity connectivity) {
+		this.connectivity = connectivity;
+		return this;
+	}
+
+	/**
+	 * @return maximum time a hit waits for Wi-Fi (ms)
+	 */
+	public long getWifiMaxDelay() {
+		return wifiMaxDelay;
+	}
+
+	/**
+	 * Hold the hits tagged on a mobile network until Wi-Fi is available, at most wifiMaxDelay.
+	 * They are sent earlier if the radio is already awake.
+	 * @param wifiMaxDelay maximum time a hit waits for Wi-Fi (ms), 0 (default) to send on any network
+	 * @return this configuration
+	 */
+	public XitiTagConfig setWifiMaxDelay(long wifiMaxDelay) {
+		this.wifiMaxDelay = wifiMaxDelay;
+		return this;
+	}
+
+	/**
+	 * @return true if queued hits are journaled on disk and replayed at init
+	 */
+	public boolean isJournalEnabled() {
+		return journalEnabled;
+	}
+
+	/**
+	 * @param journalEnabled true to journal queued hits on disk so that they survive process death
+	 * @return this configuration
+	 */
+	public XitiTagConfig setJournalEnabled(boolean journalEnabled) {
+		this.journalEnabled = journalEnabled;
+		return this;
+	}
+
+	/**
+	 * @return number of journal records written (and fsync'd) together
+	 */
+	public int getJournalBatchSize() {
+		return journalBatchSize;
+	}
+
+	/**
+	 * @param journalBatchSize number of journal records written (and fsync'd) together (at least 1)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setJournalBatchSize(int journalBatchSize) {
+		if ( journalBatchSize < 1 ) {
+			throw new IllegalArgumentException("journalBatchSize must be at least 1");
+		}
+		this.journalBatchSize = journalBatchSize;
+		return this;
+	}
+
+	/**
+	 * @return maximum time a hit waits in memory before being written to the journal (ms)
+	 */
+	public long getJournalFlushInterval() {
+		return journalFlushInterval;
+	}
+
+	/**
+	 * @param journalFlushInterval maximum time a hit waits in memory before being written to the journal (ms)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setJournalFlushInterval(long journalFlushInterval) {
+		this.journalFlushInterval = journalFlushInterval;
+		return this;
+	}
+
+	/**
+	 * @return true if the counters and latency histograms of XitiTag.getMetrics() are recorded
+	 */
+	public boolean isMetricsEnabled() {
+		return metricsEnabled;
+	}
+
+	/**
+	 * @param metricsEnabled false to skip recording the metrics (queue size and dropped hits are still available)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setMetricsEnabled(boolean metricsEnabled) {
+		this.metricsEnabled = metricsEnabled;
+		return this;
+	}
+
+	/**
+	 * @return reporter receiving the metrics periodically, null if none
+	 */
+	public XitiTagMetricsReporter getMetricsReporter() {
+		return metricsReporter;
+	}
+
+	/**
+	 * @param metricsReporter reporter receiving the metrics every getMetricsReportInterval() ms, null (default) for none
+	 * @return this configuration
+	 */
+	public XitiTagConfig setMetricsReporter(XitiTagMetricsReporter metricsReporter) {
+		this.metricsReporter = metricsReporter;
+		return this;
+	}
+
+	/**
+	 * @return interval between two reports of the metrics (ms)
+	 */
+	public long getMetricsReportInterval() {
+		return metricsReportInterval;
+	}
+
+	/**
+	 * @param metricsReportInterval interval between two reports of the metrics (ms, more than 0)
+	 * @return this configuration
+	 */
+	public XitiTagConfig setMetricsReportInterval(long metricsReportInterval) {
+		if ( metricsReportInterval <= 0 ) {
+			throw new IllegalArgumentException("metricsReportInterval must be more than 0");
+		}
+		this.metricsReportInterval = metricsReportInterval;
+		return this;
+	}
+
+	/**
+	 * @return a copy of this configuration, which can be changed without changing this one.
+	 * The transport, executors, connectivity and metrics reporter are shared, not copied.
+	 */
+	public XitiTagConfig copy() {
+		XitiTagConfig copy = new XitiTagConfig();
+		copy.workerCount = workerCount;
+		copy.executor = executor;
+		copy.sendExecutor = sendExecutor;
+		copy.maxInFlight = maxInFlight;
+		copy.connectTimeout = connectTimeout;
+		copy.readTimeout = readTimeout;
+		copy.transport = transport;
+		copy.queueCapacity = queueCapacity;
+		copy.overflowPolicy = overflowPolicy;
+		copy.blockTimeout = blockTimeout;
+		copy.dedupWindow = dedupWindow;
+		copy.sessionTimeout = sessionTimeout;
+		copy.pageSampleRates.putAll(pageSampleRates);
+		System.arraycopy(actionSampleRates, 0, copy.actionSampleRates, 0, actionSampleRates.length);
+		copy.rateLimit = rateLimit;
+		copy.rateLimitBurst = rateLimitBurst;
+		copy.pagePriority = pagePriority;
+		System.arraycopy(actionPriorities, 0, copy.actionPriorities, 0, actionPriorities.length);
+		System.arraycopy(laneWeights, 0, copy.laneWeights, 0, laneWeights.length);
+		copy.maxLaneWait = maxLaneWait;
+		copy.batchSize = batchSize;
+		copy.batchLinger = batchLinger;
+		copy.postMode = postMode;
+		copy.postUrl = postUrl;
+		copy.maxUrlLength = maxUrlLength;
+		copy.maxAttempts = maxAttempts;
+		copy.retryBaseDelay = retryBaseDelay;
+		copy.retryMaxDelay = retryMaxDelay;
+		copy.retryBudgetRatio = retryBudgetRatio;
+		copy.circuitFailureThreshold = circuitFailureThreshold;
+		copy.circuitOpenDuration = circuitOpenDuration;
+		copy.networkAware = networkAware;
+		copy.connectivity = connectivity;
+		copy.wifiMaxDelay = wifiMaxDelay;
+		copy.journalEnabled = journalEnabled;
+		copy.journalBatchSize = journalBatchSize;
+		copy.journalFlushInterval = journalFlushInterval;
+		copy.metricsEnabled = metricsEnabled;
+		copy.metricsReporter = metricsReporter;
+		copy.metricsReportInterval = metricsReportInterval;
+		return copy;
+	}
+
+}
@@ -0,0 +1,57 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+/**
+ * Source of the network state used to schedule the hits.
+ * XitiTag uses XitiTagAndroidConnectivity by default, another implementation can be given
+ * with XitiTagConfig.setConnectivity (e.g. to simulate the network in tests).
+ *
+ * @author Cyril Cauchois
+ */
+public interface XitiTagConnectivity {
+
+	/**
+	 * Notified when the network state changes
+	 */
+	public interface Listener {
+		void onConnectivityChanged();
+	}
+
+	/**
+	 * @return true if a network connection is available. Called often, must be cheap.
+	 */
+	boolean isConnected();
+
+	/**
+	 * @return true if the current connection is Wi-Fi (or another unmetered network). Called often, must be cheap.
+	 */
+	boolean isWifi();
+
+	/**
+	 * @param listener listener to notify on every change, null to stop notifying
+	 */
+	void setListener(Listener listener);
+
+	/**
+	 * Stop watching the network
+	 */
+	void close();
+
+}
@@ -0,0 +1,90 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Drops a hit when the same hit (site, page, action type, subsite) was tagged less than a window ago,
+ * e.g. tagPage called again by a screen rotation or a re-created fragment.
+ *
+ * The recent hits are kept in a small fixed-size table indexed by the hash of the hit, without lock:
+ * a slot holds the last operation of its hash, and is overwritten by the next different hit
+ * of the same hash or once the window is over. Nothing is allocated per hit.
+ * Two identical hits tagged at the same instant by two threads may both go through.
+ *
+ * @author Cyril Cauchois
+ */
+class XitiTagDeduplicator {
+
+	/**
+	 * Number of slots, a power of two
+	 */
+	private final static int SLOTS = 64;
+
+	private final AtomicReferenceArray<XitiTagOperation> recent = new AtomicReferenceArray<XitiTagOperation>(SLOTS);
+
+	/**
+	 * Window during which an identical hit is dropped (ms)
+	 */
+	private final long window;
+
+	/**
+	 * Number of hits dropped
+	 */
+	private final AtomicLong suppressed = new AtomicLong();
+
+	/**
+	 * @param window window during which an identical hit is dropped (ms)
+	 */
+	XitiTagDeduplicator(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * Check a new hit and remember it
+	 * @param operation hit being tagged
+	 * @return true if the same hit was tagged less than the window ago: the new one must be dropped
+	 */
+	boolean isDuplicate(XitiTagOperation operation) {
+
+		int slot = operation.hitHash() & (SLOTS - 1);
+		XitiTagOperation previous = recent.get(slot);
+
+		if ( previous != null && operation.isSameHit(previous) ) {
+			long elapsed = operation.getCreationTime() - previous.getCreationTime();
+			if ( elapsed >= 0 && elapsed < window ) {
+				suppressed.incrementAndGet();
+				return true;
+			}
+		}
+
+		recent.set(slot, operation);
+		return false;
+	}
+
+	/**
+	 * @return number of hits dropped since creation
+	 */
+	long getSuppressedCount() {
+		return suppressed.get();
+	}
+
+}
@@ -0,0 +1,140 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Device parameters appended to every url, collected lazily.
+ *
+ * PhoneInformation makes Binder calls (PackageManager, WifiManager, Settings): it is only built
+ * when the first hit is sent, on a worker thread, instead of during XitiTag.init on the startup path.
+ * Its values are then url encoded once into immutable suffixes, one per connection type.
+ *
+ * The connection type (tc) is read from the XitiTagConnectivity, whose state is refreshed by
+ * the connectivity change broadcasts: choosing the suffix of a hit is a volatile read.
+ * Without connectivity, tc keeps the value read by PhoneInformation.
+ *
+ * refresh drops the snapshot, e.g. after a locale change: it is collected again for the next hit.
+ *
+ * @author Cyril Cauchois
+ */
+final class XitiTagDeviceInfo {
+
+	/**
+	 * Log tag
+	 */
+	private final static String LOG_TAG = "AWLXITI" ;
+
+	private final static String CONNECTION_TYPE = "tc";
+
+	private final Context context;
+
+	/**
+	 * Network state giving the connection type, null if unknown
+	 */
+	private final XitiTagConnectivity connectivity;
+
+	private volatile Snapshot snapshot;
+
+	/**
+	 * Url suffixes built from one collection of the device information
+	 */
+	private static final class Snapshot {
+		/** suffix with the connection type read by PhoneInformation */
+		final String collected;
+		final String wifi;
+		final String mobile;
+
+		Snapshot(String collected, String wifi, String mobile) {
+			this.collected = collected;
+			this.wifi = wifi;
+			this.mobile = mobile;
+		}
+	}
+
+	/**
+	 * Nothing is collected here
+	 * @param context application context
+	 * @param connectivity network state giving the connection type, null to keep the type read at collection
+	 */
+	XitiTagDeviceInfo(Context context, XitiTagConnectivity connectivity) {
+		this.context = context;
+		this.connectivity = connectivity;
+	}
+
+	/**
+	 * @return url encoded device parameters, each one starting with '&amp;'
+	 */
+	String getUrlSuffix() {
+
+		Snapshot current = snapshot;
+		if ( current == null ) {
+			current = collect();
+		}
+
+		if ( connectivity == null ) {
+			return current.collected;
+		}
+
+		return connectivity.isWifi() ? current.wifi : current.mobile;
+	}
+
+	/**
+	 * Collect the device information again for the next hit
+	 */
+	void refresh() {
+		snapshot = null;
+	}
+
+	private synchronized Snapshot collect() {
+
+		Snapshot current = snapshot;
+		if ( current != null ) {
+			return current; // collected by another worker meanwhile
+		}
+
+		PhoneInformation phoneInfo = new PhoneInformation(context);
+
+		StringBuilder buf = new StringBuilder();
+		for ( Map.Entry<String, String> entry : phoneInfo.entrySet() ) {
+			if ( entry.getValue() != null && !CONNECTION_TYPE.equals(entry.getKey()) ) {
+				try {
+					buf.append("&").append(entry.getKey()).append("=").append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+				} catch (UnsupportedEncodingException e) {
+					Log.d(LOG_TAG, "XitiTagDeviceInfo.collect() Unable to encode "+entry.getKey(), e);
+				}
+			}
+		}
+		String common = buf.toString();
+
+		String collectedType = phoneInfo.get(CONNECTION_TYPE);
+		current = new Snapshot(collectedType != null ? common + "&tc=" + collectedType : common,
+				common + "&tc=wifi", common + "&tc=gsm");
+
+		snapshot = current;
+		return current;
+	}
+
+}
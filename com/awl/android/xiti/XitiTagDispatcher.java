@@ -0,0 +1,967 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.util.Log;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+import com.awl.android.xiti.XitiTagConfig.XitiTagOverflowPolicy;
+import com.awl.android.xiti.XitiTagConfig.XitiTagPostMode;
+import com.awl.android.xiti.XitiTagRetryPolicy.Outcome;
+
+/**
+ * Owns the bounded operation queue of XitiTag (see XitiTagOperationQueue) and drains it with several workers.
+ * The queue has one lane per XitiTagPriority, served in a weighted round robin.
+ *
+ * When the queue is full, the XitiTagOverflowPolicy of the configuration decides which hit is lost,
+ * the oldest hits dropped being taken from the lowest priority lane.
+ * Lost hits are counted per policy (see getDroppedCount).
+ * Before being journaled and queued, a hit may be sampled out or rate limited (see XitiTagSampler),
+ * or dropped as a duplicate of a recent hit (see XitiTagDeduplicator).
+ *
+ * Every worker takes XitiTagOperations from the same queue.
+ * Operations sharing the same ordering key are sent one after the other, in the order they were queued:
+ * when a worker takes an operation whose key is already being sent by another worker,
+ * the operation is handed over to that worker instead of being sent in parallel.
+ * Operations without ordering key are sent as soon as a worker is free.
+ *
+ * Workers take the operations by batches: after the first one, a worker takes up to XitiTagConfig.getBatchSize()
+ * operations, waiting at most XitiTagConfig.getBatchLinger() for them, and sends the batch back-to-back
+ * on its own pooled connection. The Xiti collector has no batch endpoint, so there is one GET per hit,
+ * but only one warm connection per batch, unless XitiTagPostModeBatch posts each batch in one request
+ * to a collector accepting it (see XitiTagConfig.setPostMode). The sizes of the batches are counted (see getBatchSizeHistogram).
+ * The key of each operation is claimed as soon as it is taken, not when its batch is sent:
+ * an operation of that key taken by another worker while the batch lingers is handed over to the batch.
+ *
+ * A hit that fails is retried by the same worker (see XitiTagRetryPolicy), so the order of its key is kept,
+ * and no hit is sent while the XitiTagCircuitBreaker is open. An unchecked exception thrown by a send counts as a retryable failure,
+ * so it cannot leave an ordering key or the probe of the circuit taken. A hit failing permanently is dropped,
+ * a hit running out of retries stays in the journal and is sent again after the next init.
+ *
+ * Before taking a batch, a worker may wait for a cheap send window (see XitiTagNetworkScheduler).
+ *
+ * With a send executor (see XitiTagConfig.setAsyncSend), the workers still take the operations and claim their ordering keys,
+ * in queue order, but the sends run on tasks of the executor: a worker waits for a free slot when maxInFlight sends are in progress.
+ * The last worker to stop waits for every task before releasing the resources of XitiTag.
+ *
+ * Counters and latencies are recorded in XitiTagMetrics, and pushed to the XitiTagMetricsReporter
+ * of the configuration, if any, by a XitiTag-metrics daemon thread.
+ *
+ * flush sends the pending hits at once (no send window, no linger, strict priority) until a deadline;
+ * with stop, the hits still pending at the deadline are skipped by the workers and left in the journal.
+ *
+ * The END_SIGNAL operation stops the workers. It is only taken once the hit lanes are empty,
+ * which stop() drains in strict priority order. The worker taking it puts it back in the queue
+ * for the next one, and the last worker to stop releases the resources of XitiTag.
+ *
+ * @author Cyril Cauchois
+ */
+class XitiTagDispatcher {
+
+	/**
+	 * Log tag
+	 */
+	private final static String LOG_TAG = "AWLXITI" ;
+
+	/**
+	 * XitiTag owning the queue, used to send the operations
+	 */
+	private final XitiTag tag;
+
+	/**
+	 * Operations queue shared by the workers
+	 */
+	private final XitiTagOperationQueue operationQueue;
+
+	/**
+	 * Policy applied when operationQueue is full
+	 */
+	private final XitiTagOverflowPolicy overflowPolicy;
+
+	/**
+	 * Wait of XitiTagOverflowPolicyBlock (ms)
+	 */
+	private final long blockTimeout;
+
+	/**
+	 * Number of hits lost, indexed by XitiTagOverflowPolicy ordinal
+	 */
+	private final AtomicLong[] droppedCounts;
+
+	/**
+	 * Maximum number of operations of a batch
+	 */
+	private final int batchSize;
+
+	/**
+	 * Maximum wait for the next operation of a batch (ms)
+	 */
+	private final long batchLinger;
+
+	/**
+	 * true to post the batches in one request (XitiTagPostModeBatch)
+	 */
+	private final boolean postBatches;
+
+	/**
+	 * Number of batches sent, indexed by batch size
+	 */
+	private final AtomicLongArray batchSizes;
+
+	/**
+	 * Executor running the sends, null if the workers send the operations
+	 */
+	private final Executor sendExecutor;
+
+	/**
+	 * Maximum number of sends in progress on sendExecutor
+	 */
+	private final int maxInFlight;
+
+	/**
+	 * One permit per send that may be started on sendExecutor
+	 */
+	private final Semaphore inFlight;
+
+	/**
+	 * Retry decisions of the failed hits
+	 */
+	private final XitiTagRetryPolicy retryPolicy;
+
+	/**
+	 * Pauses the workers while the collector is failing
+	 */
+	private final XitiTagCircuitBreaker circuitBreaker;
+
+	/**
+	 * Holds the workers until the network is available (or cheap), null to send at once
+	 */
+	private final XitiTagNetworkScheduler networkScheduler;
+
+	/**
+	 * Samples and rate limits the hits, null if every hit is sent
+	 */
+	private final XitiTagSampler sampler;
+
+	/**
+	 * Drops the duplicates of recent hits, null if disabled
+	 */
+	private final XitiTagDeduplicator deduplicator;
+
+	/**
+	 * Counters and latency histograms of the pipeline
+	 */
+	private final XitiTagMetrics metrics;
+
+	/**
+	 * Receives the metrics periodically, null if none
+	 */
+	private final XitiTagMetricsReporter metricsReporter;
+
+	/**
+	 * Interval between two reports (ms)
+	 */
+	private final long metricsReportInterval;
+
+	/**
+	 * Thread calling metricsReporter, null if none
+	 */
+	private Thread reporterThread;
+
+	/**
+	 * Operation stopping the workers
+	 */
+	private final String endSignal;
+
+	/**
+	 * Operations waiting for the operation with the same ordering key to be sent, by ordering key.
+	 * A key is present while one worker is sending operations for it.
+	 */
+	private final HashMap<String, LinkedList<XitiTagOperation>> pendingByKey = new HashMap<String, LinkedList<XitiTagOperation>>();
+
+	/**
+	 * Number of workers still running
+	 */
+	private final AtomicInteger runningWorkers = new AtomicInteger();
+
+	/**
+	 * Task run by the first worker, see start
+	 */
+	private final AtomicReference<Runnable> setUp = new AtomicReference<Runnable>();
+
+	/**
+	 * Number of hits queued or being sent. Its monitor is notified when it drops to 0 during a flush.
+	 */
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	/**
+	 * Number of hits sent, refused by the collector, and left in the journal (out of retries, or not sent before the stop deadline)
+	 */
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong refusedCount = new AtomicLong();
+	private final AtomicLong leftCount = new AtomicLong();
+
+	/**
+	 * Number of flushes in progress
+	 */
+	private final AtomicInteger flushes = new AtomicInteger();
+
+	/**
+	 * true once stop was called
+	 */
+	private boolean stopping;
+
+	/**
+	 * Hits not sent by this time are left in the journal, set by a deadline-bounded stop (ms)
+	 */
+	private volatile long stopDeadline = Long.MAX_VALUE;
+
+	/**
+	 * @param tag XitiTag sending the operations
+	 * @param config capacity and overflow policy of the queue
+	 * @param endSignal operation stopping the workers
+	 * @param networkScheduler holds the workers until the network is available, null to send at once
+	 */
+	XitiTagDispatcher(XitiTag tag, XitiTagConfig config, String endSignal, XitiTagNetworkScheduler networkScheduler) {
+		this.tag = tag;
+		this.networkScheduler = networkScheduler;
+		this.operationQueue = new XitiTagOperationQueue(config, new XitiTagOperationQueue.Claimer() {
+			@Override
+			public boolean claim(XitiTagOperation operation) {
+				return XitiTagDispatcher.this.claim(operation);
+			}
+		});
+		this.overflowPolicy = config.getOverflowPolicy();
+		this.blockTimeout = config.getBlockTimeout();
+		this.batchSize = config.getBatchSize();
+		this.batchLinger = config.getBatchLinger();
+		this.batchSizes = new AtomicLongArray(batchSize + 1);
+		this.postBatches = config.getPostMode() == XitiTagPostMode.XitiTagPostModeBatch;
+		this.sendExecutor = config.getSendExecutor();
+		this.maxInFlight = config.getMaxInFlight();
+		this.inFlight = sendExecutor != null ? new Semaphore(maxInFlight) : null;
+		this.retryPolicy = new XitiTagRetryPolicy(config);
+		this.circuitBreaker = new XitiTagCircuitBreaker(config);
+		this.sampler = XitiTagSampler.isNeeded(config) ? new XitiTagSampler(config) : null;
+		this.deduplicator = config.getDedupWindow() > 0 ? new XitiTagDeduplicator(config.getDedupWindow()) : null;
+		this.metrics = new XitiTagMetrics(config.isMetricsEnabled());
+		this.metricsReporter = config.getMetricsReporter();
+		this.metricsReportInterval = config.getMetricsReportInterval();
+		this.endSignal = endSignal;
+
+		XitiTagOverflowPolicy[] policies = XitiTagOverflowPolicy.values();
+		droppedCounts = new AtomicLong[policies.length];
+		for ( int i = 0; i < policies.length; i++ ) {
+			droppedCounts[i] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * Sample and rate limit a hit being tagged, before its operation is created
+	 * @return sample rate of the hit if it is sent (1 if not sampled), 0 if it is dropped
+	 */
+	float accept(XitiTagTracker tracker, String page, XitiTagActionType actionType, String subsiteId) {
+		return sampler != null ? sampler.accept(tracker, page, actionType, subsiteId) : 1;
+	}
+
+	/**
+	 * @param operation hit being tagged
+	 * @return true if the same hit was tagged less than XitiTagConfig.getDedupWindow() ago, the new one must be dropped
+	 */
+	boolean isDuplicate(XitiTagOperation operation) {
+		return deduplicator != null && deduplicator.isDuplicate(operation);
+	}
+
+	/**
+	 * Queue an operation, applying the overflow policy if the queue is full.
+	 * @param operation operation to queue
+	 * @return true if the operation was queued
+	 */
+	boolean enqueue(XitiTagOperation operation) {
+
+		metrics.recordTagged();
+		outstanding.incrementAndGet();
+
+		if ( operationQueue.offer(operation) ) {
+			return true;
+		}
+
+		boolean queued = false;
+
+		switch ( overflowPolicy ) {
+		case XitiTagOverflowPolicyDropNewest :
+			break;
+		case XitiTagOverflowPolicyCoalesce :
+			if ( isQueued(operation) ) {
+				// the queued duplicate stands for the new hit
+				break;
+			}
+			queued = dropOldestAndOffer(operation);
+			break;
+		case XitiTagOverflowPolicyDropOldest :
+			queued = dropOldestAndOffer(operation);
+			break;
+		case XitiTagOverflowPolicyBlock :
+			try {
+				queued = operationQueue.offer(operation, blockTimeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			break;
+		}
+
+		if ( !queued ) {
+			droppedCounts[overflowPolicy.ordinal()].incrementAndGet();
+			tag.discard(operation);
+			finished();
+		}
+
+		return queued;
+	}
+
+	/**
+	 * Make room by dropping the oldest hit of the lowest priority lane, then queue the operation.
+	 * A hit of a higher priority than the operation is never dropped.
+	 * @param operation operation to queue
+	 * @return true if the operation was queued
+	 */
+	private boolean dropOldestAndOffer(XitiTagOperation operation) {
+
+		// another thread may fill the room again, retry a few times before giving up
+		for ( int i = 0; i < 3; i++ ) {
+			XitiTagOperation oldest = operationQueue.pollLowest(operation);
+			if ( oldest != null ) {
+				droppedCounts[overflowPolicy.ordinal()].incrementAndGet();
+				tag.discard(oldest);
+				finished();
+			}
+			if ( operationQueue.offer(operation) ) {
+				return true;
+			}
+			if ( oldest == null ) {
+				// only hits of a higher priority are queued
+				return false;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Look for a queued hit. Only used when the queue is full, so the linear scan is acceptable.
+	 * @param operation hit to look for
+	 * @return true if the same hit is waiting in the queue
+	 */
+	private boolean isQueued(XitiTagOperation operation) {
+
+		for ( XitiTagOperation queued : operationQueue ) {
+			if ( operation.isSameHit(queued) ) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Queue the END_SIGNAL operation behind every hit, without waiting: the signal takes no room in the queue.
+	 * The queued hits are then sent in strict priority order.
+	 */
+	void stop() {
+
+		if ( networkScheduler != null ) {
+			// the workers waiting for the network must see the signal
+			networkScheduler.stop();
+		}
+
+		synchronized ( this ) {
+			stopping = true;
+			updateStrictPriority();
+		}
+
+		operationQueue.addSignal(new XitiTagOperation(endSignal));
+	}
+
+	/**
+	 * Send the pending hits at once with every worker, in strict priority order, until they are all sent or the deadline.
+	 * @param timeout maximum wait (ms)
+	 * @param stop true to stop the workers too: the hits not sent by the deadline are left in the journal
+	 * @return what became of the pending hits
+	 */
+	XitiTagFlushResult flush(long timeout, boolean stop) {
+
+		long deadline = System.currentTimeMillis() + timeout;
+		long sent = sentCount.get();
+		long dropped = getDroppedTotal() + refusedCount.get();
+		long left = leftCount.get();
+
+		flushes.incrementAndGet();
+		updateStrictPriority();
+		if ( networkScheduler != null ) {
+			networkScheduler.beginFlush();
+		}
+
+		try {
+			if ( stop ) {
+				stopDeadline = deadline;
+				stop();
+			}
+			awaitIdle(deadline);
+		} finally {
+			if ( networkScheduler != null ) {
+				networkScheduler.endFlush();
+			}
+			flushes.decrementAndGet();
+			updateStrictPriority();
+		}
+
+		// left before outstanding: a hit skipped in between is not counted twice
+		long leftBehind = leftCount.get() - left;
+		int remaining = Math.max(0, outstanding.get());
+		long lost = getDroppedTotal() + refusedCount.get() - dropped;
+		long spilled = 0;
+
+		if ( leftBehind + remaining > 0 ) {
+			if ( tag.spill() ) {
+				spilled = leftBehind + remaining;
+			} else {
+				// without journal, the hits out of retries are lost, and so are the hits skipped by the stopping workers
+				lost += leftBehind + ( stop ? remaining : 0 );
+			}
+		}
+
+		return new XitiTagFlushResult(sentCount.get() - sent, spilled, lost, remaining == 0 && leftBehind == 0);
+	}
+
+	/**
+	 * Wait until no hit is queued or being sent
+	 * @param deadline time after which to stop waiting (ms)
+	 */
+	private void awaitIdle(long deadline) {
+
+		synchronized ( outstanding ) {
+			while ( outstanding.get() > 0 ) {
+				long wait = deadline - System.currentTimeMillis();
+				if ( wait <= 0 ) {
+					return;
+				}
+				try {
+					outstanding.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A hit left the pipeline: sent, dropped or left in the journal
+	 */
+	private void finished() {
+		if ( outstanding.decrementAndGet() <= 0 && flushes.get() > 0 ) {
+			synchronized ( outstanding ) {
+				outstanding.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Serve the lanes in strict priority order while flushing or stopping
+	 */
+	private synchronized void updateStrictPriority() {
+		operationQueue.setStrictPriority(stopping || flushes.get() > 0);
+	}
+
+	/**
+	 * @param policy overflow policy
+	 * @return number of hits lost because the queue was full while the given policy was in use
+	 */
+	long getDroppedCount(XitiTagOverflowPolicy policy) {
+		return droppedCounts[policy.ordinal()].get();
+	}
+
+	/**
+	 * @return number of batches sent, indexed by batch size (index 0 is unused)
+	 */
+	long[] getBatchSizeHistogram() {
+		long[] histogram = new long[batchSizes.length()];
+		for ( int i = 0; i < histogram.length; i++ ) {
+			histogram[i] = batchSizes.get(i);
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return number of operations waiting in the queue
+	 */
+	int getQueueSize() {
+		return operationQueue.size();
+	}
+
+	/**
+	 * @return current values of the metrics
+	 */
+	XitiTagMetrics.Snapshot getMetrics() {
+		return metrics.snapshot(getQueueSize(), getDroppedTotal(), deduplicator != null ? deduplicator.getSuppressedCount() : 0,
+				sampler != null ? sampler.getSampledOutCount() : 0, sampler != null ? sampler.getRateLimitedCount() : 0);
+	}
+
+	/**
+	 * @return number of hits lost because the queue was full, under any policy
+	 */
+	private long getDroppedTotal() {
+		long dropped = 0;
+		for ( AtomicLong count : droppedCounts ) {
+			dropped += count.get();
+		}
+		return dropped;
+	}
+
+	/**
+	 * A request is about to be sent (see XitiTagMetrics.recordBytes)
+	 */
+	void recordBytes(int hits, long bytes) {
+		metrics.recordBytes(hits, bytes);
+	}
+
+	/**
+	 * Start the workers
+	 * @param workerCount number of workers
+	 * @param executor executor running the workers, null to start one thread per worker
+	 * @param setUp task run by the first worker before it takes any operation, e.g. disk I/O kept off the caller's thread. null if none.
+	 */
+	void start(int workerCount, Executor executor, Runnable setUp) {
+
+		runningWorkers.set(workerCount);
+		this.setUp.set(setUp);
+
+		for ( int i = 0; i < workerCount; i++ ) {
+			Runnable worker = new Worker();
+			if ( executor != null ) {
+				executor.execute(worker);
+			} else {
+				new Thread(worker, "XitiTag-worker-" + i).start();
+			}
+		}
+
+		if ( metricsReporter != null ) {
+			reporterThread = new Thread(new Reporter(), "XitiTag-metrics");
+			reporterThread.setDaemon(true);
+			reporterThread.start();
+		}
+	}
+
+	/**
+	 * Send a claimed operation, then every operation queued behind it with the same ordering key.
+	 * @param operation operation taken from the queue, whose key was claimed by this worker
+	 */
+	private void dispatch(final XitiTagOperation operation) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sendWithRetry(Collections.singletonList(operation));
+				} finally {
+					sendPending(operation.getOrderingKey());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Post the operations of a batch in one request (XitiTagPostModeBatch), then the operations queued behind them
+	 * with the same ordering keys.
+	 * @param batch claimed operations taken from the queue
+	 * @param raw empty list receiving the operations posted, cleared afterwards
+	 */
+	private void dispatchAll(List<XitiTagOperation> batch, List<XitiTagOperation> raw) {
+
+		for ( XitiTagOperation operation : batch ) {
+			if ( operation.getOperation() != null ) {
+				// built from an url, it can only be sent as is
+				dispatch(operation);
+			} else {
+				raw.add(operation);
+			}
+		}
+
+		if ( !raw.isEmpty() ) {
+			// the list of the worker is reused by its next batch
+			final List<XitiTagOperation> posted = sendExecutor != null ? new ArrayList<XitiTagOperation>(raw) : raw;
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sendWithRetry(posted);
+					} finally {
+						for ( XitiTagOperation operation : posted ) {
+							sendPending(operation.getOrderingKey());
+						}
+					}
+				}
+			});
+		}
+
+		raw.clear();
+	}
+
+	/**
+	 * Run the send of claimed operations: on this worker, or on a task of sendExecutor once fewer than maxInFlight sends are in progress
+	 * @param send send of the claimed operations and of the operations handed over behind them
+	 */
+	private void execute(final Runnable send) {
+
+		if ( sendExecutor == null ) {
+			send.run();
+			return;
+		}
+
+		// not interruptible: the operations are already claimed and must be sent
+		inFlight.acquireUninterruptibly();
+
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					send.run();
+				} catch (Throwable t) {
+					metrics.recordError();
+				} finally {
+					inFlight.release();
+				}
+			}
+		};
+
+		try {
+			sendExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// executor shut down by the application: send on this worker
+			task.run();
+		}
+	}
+
+	/**
+	 * Take the ordering key of an operation, so that this worker sends it and the operations queued behind it with the same key.
+	 * Called by operationQueue as the operation is taken, so that the keys are claimed in queue order.
+	 * @param operation operation taken from the queue
+	 * @return false if another worker is sending the key: the operation was handed over to it
+	 */
+	private boolean claim(XitiTagOperation operation) {
+
+		String key = operation.getOrderingKey();
+		if ( key == null ) {
+			return true;
+		}
+
+		synchronized ( pendingByKey ) {
+			LinkedList<XitiTagOperation> pending = pendingByKey.get(key);
+			if ( pending != null ) {
+				// another worker is sending this key, it will send this operation after the current one
+				pending.add(operation);
+				return false;
+			}
+			pendingByKey.put(key, new LinkedList<XitiTagOperation>());
+			return true;
+		}
+	}
+
+	/**
+	 * Send the operations handed over for a claimed key, then release the key, whatever happens to each send.
+	 * @param key ordering key claimed by this worker, null if none
+	 */
+	private void sendPending(String key) {
+
+		if ( key == null ) {
+			return;
+		}
+
+		while ( true ) {
+			XitiTagOperation operation;
+			synchronized ( pendingByKey ) {
+				operation = pendingByKey.get(key).poll();
+				if ( operation == null ) {
+					pendingByKey.remove(key);
+					return;
+				}
+			}
+			try {
+				sendWithRetry(Collections.singletonList(operation));
+			} catch (RuntimeException e) {
+				metrics.recordError();
+			}
+		}
+	}
+
+	/**
+	 * Send operations, in one request if there are several of them (see XitiTag.send(List)),
+	 * retrying them while the failures are retryable and the retry policy allows it.
+	 * @param operations operations to send, which share the outcome of each attempt
+	 */
+	private void sendWithRetry(List<XitiTagOperation> operations) {
+
+		int count = operations.size();
+
+		retryPolicy.onFirstAttempt();
+
+		try {
+			for ( int attempt = 1; ; attempt++ ) {
+
+				long deadline = stopDeadline;
+				if ( ( deadline != Long.MAX_VALUE && System.currentTimeMillis() >= deadline ) || !circuitBreaker.acquire(deadline) ) {
+					leftCount.addAndGet(count);
+					return; // stopped before it could be sent, kept in the journal for the next init
+				}
+
+				long startTime = metrics.startTimer();
+				Outcome outcome;
+				try {
+					outcome = count == 1 ? tag.send(operations.get(0)) : tag.send(operations);
+				} catch (RuntimeException e) {
+					// a failure like any other: it counts for the circuit, which releases its probe
+					metrics.recordError();
+					outcome = Outcome.RETRYABLE_FAILURE;
+				}
+				for ( XitiTagOperation operation : operations ) {
+					metrics.recordSend(operation, outcome, startTime);
+				}
+
+				if ( networkScheduler != null ) {
+					networkScheduler.onSent();
+				}
+
+				if ( outcome == Outcome.RETRYABLE_FAILURE ) {
+					circuitBreaker.onFailure();
+				} else {
+					// the collector answered, even if it refused the hit
+					circuitBreaker.onSuccess();
+				}
+
+				if ( outcome == Outcome.SENT ) {
+					sentCount.addAndGet(count);
+					return;
+				}
+				if ( outcome == Outcome.PERMANENT_FAILURE ) {
+					refusedCount.addAndGet(count);
+					for ( XitiTagOperation operation : operations ) {
+						tag.discard(operation);
+					}
+					return;
+				}
+
+				long delay = retryPolicy.delayBeforeRetry(attempt);
+				deadline = stopDeadline;
+				if ( ( deadline != Long.MAX_VALUE && System.currentTimeMillis() + delay >= deadline ) || !retryPolicy.acquireRetry(attempt) ) {
+					leftCount.addAndGet(count);
+					return; // kept in the journal for the next init
+				}
+
+				Thread.sleep(delay);
+				metrics.recordRetry();
+			}
+		} catch (InterruptedException e) {
+			// the worker is stopping, the hits stay in the journal
+			leftCount.addAndGet(count);
+			Thread.currentThread().interrupt();
+		} finally {
+			for ( int i = 0; i < count; i++ ) {
+				finished();
+			}
+		}
+	}
+
+	/**
+	 * Worker loop: takes batches of operations from the queue until END_SIGNAL.
+	 */
+	private class Worker implements Runnable {
+
+		/**
+		 * Operations of the current batch
+		 */
+		private final ArrayList<XitiTagOperation> batch = new ArrayList<XitiTagOperation>(batchSize);
+
+		/**
+		 * Operations of the current batch posted in one request
+		 */
+		private final ArrayList<XitiTagOperation> raw = new ArrayList<XitiTagOperation>(batchSize);
+
+		@Override
+		public void run() {
+
+			XitiTagOperation endOperation = null;
+
+			Runnable task = setUp.getAndSet(null);
+			if ( task != null ) {
+				try {
+					task.run();
+				} catch (Throwable t) {
+					metrics.recordError();
+				}
+			}
+
+			try {
+				while ( endOperation == null ) {
+
+					try {
+						endOperation = collectBatch();
+						sendBatch();
+					} catch (InterruptedException e) {
+						sendBatch();
+						break;
+					} catch (Throwable t) {
+						metrics.recordError();
+					}
+
+				}
+			} finally {
+				if ( runningWorkers.decrementAndGet() == 0 ) {
+					if ( endOperation != null ) {
+						// nobody is left to see the signal put back for the other workers
+						operationQueue.remove(endOperation);
+					}
+					if ( inFlight != null ) {
+						// the transport is released once every send is done
+						inFlight.acquireUninterruptibly(maxInFlight);
+						inFlight.release(maxInFlight);
+					}
+					if ( reporterThread != null ) {
+						// last report, with the final counts
+						reporterThread.interrupt();
+					}
+					tag.release();
+				}
+			}
+		}
+
+		/**
+		 * Wait for an operation, then take the following ones until the batch is full,
+		 * the queue stays empty for the linger time, or END_SIGNAL is taken.
+		 * The queue claims the key of each operation as it is taken, the operations handed over to another worker are not returned.
+		 * @return END_SIGNAL if it was taken, null otherwise
+		 */
+		private XitiTagOperation collectBatch() throws InterruptedException {
+
+			XitiTagOperation operation = operationQueue.take(); // take a XitiTagOperation from the operationQueue
+
+			if ( networkScheduler != null && !endSignal.equals(operation.getOperation()) ) {
+				// hold the batch until sending is cheap, the hits tagged meanwhile join the burst
+				networkScheduler.awaitSendWindow(operation.getCreationTime());
+			}
+
+			long deadline = System.currentTimeMillis() + batchLinger;
+
+			while ( true ) {
+
+				if ( endSignal.equals(operation.getOperation()) ) {
+					// let the other workers see the signal too
+					operationQueue.addSignal(operation);
+					return operation;
+				}
+
+				batch.add(operation);
+				if ( batch.size() >= batchSize ) {
+					return null;
+				}
+
+				// no linger while flushing, the caller is waiting
+				long wait = flushes.get() > 0 ? 0 : deadline - System.currentTimeMillis();
+				operation = wait > 0 ? operationQueue.poll(wait, TimeUnit.MILLISECONDS) : operationQueue.poll();
+				if ( operation == null ) {
+					return null;
+				}
+			}
+		}
+
+		/**
+		 * Send the operations of the batch back-to-back, on the warm connection of this worker,
+		 * or hand them to the send executor.
+		 */
+		private void sendBatch() {
+
+			if ( batch.isEmpty() ) {
+				return;
+			}
+
+			batchSizes.incrementAndGet(batch.size());
+
+			if ( postBatches && batch.size() > 1 ) {
+				try {
+					dispatchAll(batch, raw);
+				} catch (Throwable t) {
+					raw.clear();
+					metrics.recordError();
+				}
+				batch.clear();
+				return;
+			}
+
+			for ( XitiTagOperation operation : batch ) {
+				try {
+					dispatch(operation);
+				} catch (Throwable t) {
+					metrics.recordError();
+				}
+			}
+
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Reporter loop: reports the metrics every metricsReportInterval, and once more when interrupted by the last worker.
+	 */
+	private class Reporter implements Runnable {
+
+		@Override
+		public void run() {
+
+			boolean stopping = false;
+
+			while ( !stopping ) {
+
+				try {
+					Thread.sleep(metricsReportInterval);
+				} catch (InterruptedException e) {
+					stopping = true;
+				}
+
+				try {
+					metricsReporter.report(getMetrics());
+				} catch (Throwable t) {
+					Log.d(LOG_TAG, "XitiTagMetricsReporter.report() failed ! ", t);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+/**
+ * Single pass implementation of XitiTag.sansAccent and XitiTag.escapePageName.
+ *
+ * Accented characters of Latin-1 (U+00C0 to U+00FF) and Latin Extended-A (U+0100 to U+017F)
+ * are looked up in a precomputed table. The input string is returned as is when nothing has to change,
+ * otherwise the result is built in a buffer reused by each thread.
+ *
+ * @author Cyril Cauchois
+ */
+final class XitiTagEscaper {
+
+	/**
+	 * First character of the table
+	 */
+	private final static char TABLE_START = 'À';
+
+	/**
+	 * Replacement of the characters from U+00C0, null when the character is kept
+	 */
+	private final static String[] TABLE = {
+		// U+00C0 - U+00FF : Latin-1 (same replacements as the historical sansAccent)
+		"A", "A", "A", "A", "A", "A", "AE", "C",    // À Á Â Ã Ä Å Æ Ç
+		"E", "E", "E", "E", "I", "I", "I", "I",     // È É Ê Ë Ì Í Î Ï
+		"D", "N", "O", "O", "O", "O", "O", "*",     // Ð Ñ Ò Ó Ô Õ Ö ×
+		"0", "U", "U", "U", "U", "Y", null, "B",    // Ø Ù Ú Û Ü Ý Þ ß
+		"a", "a", "a", "a", "a", "a", "ae", "c",    // à á â ã ä å æ ç
+		"e", "e", "e", "e", "i", "i", "i", "i",     // è é ê ë ì í î ï
+		"d", "n", "o", "o", "o", "o", "o", "/",     // ð ñ ò ó ô õ ö ÷
+		"0", "u", "u", "u", "u", "y", null, "y",    // ø ù ú û ü ý þ ÿ
+		// U+0100 - U+017F : Latin Extended-A
+		"A", "a", "A", "a", "A", "a", "C", "c",     // Ā ā Ă ă Ą ą Ć ć
+		"C", "c", "C", "c", "C", "c", "D", "d",     // Ĉ ĉ Ċ ċ Č č Ď ď
+		"D", "d", "E", "e", "E", "e", "E", "e",     // Đ đ Ē ē Ĕ ĕ Ė ė
+		"E", "e", "E", "e", "G", "g", "G", "g",     // Ę ę Ě ě Ĝ ĝ Ğ ğ
+		"G", "g", "G", "g", "H", "h", "H", "h",     // Ġ ġ Ģ ģ Ĥ ĥ Ħ ħ
+		"I", "i", "I", "i", "I", "i", "I", "i",     // Ĩ ĩ Ī ī Ĭ ĭ Į į
+		"I", "i", "IJ", "ij", "J", "j", "K", "k",   // İ ı Ĳ ĳ Ĵ ĵ Ķ ķ
+		"k", "L", "l", "L", "l", "L", "l", "L",     // ĸ Ĺ ĺ Ļ ļ Ľ ľ Ŀ
+		"l", "L", "l", "N", "n", "N", "n", "N",     // ŀ Ł ł Ń ń Ņ ņ Ň
+		"n", "n", "N", "n", "O", "o", "O", "o",     // ň ŉ Ŋ ŋ Ō ō Ŏ ŏ
+		"O", "o", "OE", "oe", "R", "r", "R", "r",   // Ő ő Œ œ Ŕ ŕ Ŗ ŗ
+		"R", "r", "S", "s", "S", "s", "S", "s",     // Ř ř Ś ś Ŝ ŝ Ş ş
+		"S", "s", "T", "t", "T", "t", "T", "t",     // Š š Ţ ţ Ť ť Ŧ ŧ
+		"U", "u", "U", "u", "U", "u", "U", "u",     // Ũ ũ Ū ū Ŭ ŭ Ů ů
+		"U", "u", "U", "u", "W", "w", "Y", "y",     // Ű ű Ų ų Ŵ ŵ Ŷ ŷ
+		"Y", "Z", "z", "Z", "z", "Z", "z", "s"      // Ÿ Ź ź Ż ż Ž ž ſ
+	};
+
+	/**
+	 * Right single quotation mark as wrongly decoded from UTF-8 ("â€™"), removed by escapePageName
+	 */
+	private final static String BROKEN_QUOTE = "â€™";
+
+	/**
+	 * Buffer reused by each thread
+	 */
+	private final static ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(64);
+		}
+	};
+
+	private XitiTagEscaper() {
+	}
+
+	/**
+	 * @see XitiTag#sansAccent(String)
+	 */
+	static String sansAccent(String in) {
+		return normalize(in, false);
+	}
+
+	/**
+	 * @see XitiTag#escapePageName(String)
+	 */
+	static String escapePageName(String in) {
+		return normalize(in, true);
+	}
+
+	/**
+	 * @param in string to normalize
+	 * @param escape true to also remove the characters removed by escapePageName
+	 * @return the normalized string, 'in' itself if nothing changed
+	 */
+	private static String normalize(String in, boolean escape) {
+
+		int length = in.length();
+		int i = 0;
+
+		// most names have nothing to replace: no copy at all
+		while ( i < length && !mustChange(in.charAt(i), escape) ) {
+			i++;
+		}
+		if ( i == length ) {
+			return in;
+		}
+
+		StringBuilder out = BUFFER.get();
+		out.setLength(0);
+		out.append(in, 0, i);
+
+		for ( ; i < length; i++ ) {
+			i = appendChar(in, i, escape, out);
+		}
+
+		return out.toString();
+	}
+
+	/**
+	 * Append the replacement of one character.
+	 * @return index of the last character consumed
+	 */
+	private static int appendChar(String in, int i, boolean escape, StringBuilder out) {
+
+		char c = in.charAt(i);
+
+		if ( escape ) {
+			if ( isRemoved(c) ) {
+				return i;
+			}
+			if ( c == 'â' && in.startsWith(BROKEN_QUOTE, i) ) {
+				return i + BROKEN_QUOTE.length() - 1;
+			}
+		}
+
+		String replacement = replacement(c);
+		if ( replacement != null ) {
+			out.append(replacement);
+		} else {
+			out.append(c);
+		}
+
+		return i;
+	}
+
+	private static boolean mustChange(char c, boolean escape) {
+		return replacement(c) != null || ( escape && isRemoved(c) );
+	}
+
+	private static String replacement(char c) {
+		int index = c - TABLE_START;
+		return index >= 0 && index < TABLE.length ? TABLE[index] : null;
+	}
+
+	/**
+	 * @return true if escapePageName removes the character
+	 */
+	private static boolean isRemoved(char c) {
+		switch ( c ) {
+		case ' ' :
+		case ' ' : // no-break space
+		case '-' :
+		case '\'' :
+		case '’' : // right single quotation mark
+		case '?' :
+			return true;
+		default :
+			return false;
+		}
+	}
+
+}
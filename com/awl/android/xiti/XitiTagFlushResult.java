@@ -0,0 +1,85 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+/**
+ * What became of the pending hits at the end of XitiTag.flush(timeout) or XitiTag.terminate(timeout).
+ *
+ * Hits not sent before the deadline are spilled when they are safely written in the journal:
+ * they are replayed at the next init unless they get sent in the meantime. Without journal they are dropped
+ * by terminate, and stay queued after flush (they are then neither sent, spilled nor dropped).
+ *
+ * @author Cyril Cauchois
+ */
+public final class XitiTagFlushResult {
+
+	private final long sent;
+	private final long spilled;
+	private final long dropped;
+	private final boolean complete;
+
+	/**
+	 * @param sent number of hits sent during the call
+	 * @param spilled number of hits left in the journal at the deadline
+	 * @param dropped number of hits lost during the call
+	 * @param complete true if no hit was left when the call returned
+	 */
+	XitiTagFlushResult(long sent, long spilled, long dropped, boolean complete) {
+		this.sent = sent;
+		this.spilled = spilled;
+		this.dropped = dropped;
+		this.complete = complete;
+	}
+
+	/**
+	 * @return number of hits sent during the call
+	 */
+	public long getSent() {
+		return sent;
+	}
+
+	/**
+	 * @return number of hits not sent before the deadline, kept in the journal for the next init
+	 */
+	public long getSpilled() {
+		return spilled;
+	}
+
+	/**
+	 * @return number of hits lost during the call: refused by the collector, dropped because the queue was full,
+	 *         or not sent before the deadline of terminate when the journal is disabled
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return true if every pending hit was sent (or refused) before the deadline
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	@Override
+	public String toString() {
+		return "sent=" + sent + " spilled=" + spilled + " dropped=" + dropped + ( complete ? "" : " (deadline reached)" );
+	}
+
+}
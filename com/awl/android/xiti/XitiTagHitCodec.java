@@ -0,0 +1,273 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * Compact binary form of a queued hit, used as the record format of the journal.
+ *
+ *<pre>
+ * [ref subdomain][ref site id][ref page][byte action type, -1 for a page hit][ref subsite][ref ordering key]
+ * [zigzag varint time - time of the previous hit][varint 1000000 - sample rate in millionths]
+ * [varint session id][varint sequence][ref previous page][varint time on the previous page + 1]
+ *</pre>
+ * Strings are dictionary coded: a ref is a varint, 0 for null, 2*(code+1) for a string already seen in the stream,
+ * 2*length+1 followed by the UTF-8 bytes for a new string, which takes the next code.
+ * A typical hit (known site, page, subsite and key) takes 8 to 10 bytes instead of a url of several hundred bytes.
+ *
+ * The buffer given to decode must end with the hit, as the fields added over time (the sample rate) are optional.
+ * The session fields are only written for the hits of a session, about 13 bytes more, mostly for the random session id.
+ *
+ * A codec instance holds the dictionary and the previous time of one stream (e.g. one journal segment):
+ * the same sequence of hits must be decoded with a fresh codec, in the same order.
+ *
+ * The static intern method gives the queued operations a shared instance of the page and subsite names
+ * (see XitiTagNameCache), so that a backlog of hits does not hold one copy of each name per hit.
+ *
+ * @author Cyril Cauchois
+ */
+final class XitiTagHitCodec {
+
+	private final static String CHARSET = "UTF-8";
+
+	/**
+	 * Sample rates are stored in millionths
+	 */
+	private final static long SAMPLE_RATE_SCALE = 1000000;
+
+	private final static XitiTagActionType[] ACTION_TYPES = XitiTagActionType.values();
+
+	private final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+
+	private final ArrayList<String> strings = new ArrayList<String>();
+
+	/**
+	 * Trackers of the decoded hits, by subdomain and site id
+	 */
+	private final HashMap<String, XitiTagTracker> trackers = new HashMap<String, XitiTagTracker>();
+
+	private long previousTime;
+
+	/**
+	 * Start a new stream: forget the dictionary and the previous time
+	 */
+	void reset() {
+		codes.clear();
+		strings.clear();
+		trackers.clear();
+		previousTime = 0;
+	}
+
+	/**
+	 * Encode a hit
+	 * @param operation hit to encode
+	 * @param out buffer receiving the encoded hit, must have at least maxEncodedSize(operation) bytes remaining
+	 */
+	void encode(XitiTagOperation operation, ByteBuffer out) throws UnsupportedEncodingException {
+
+		XitiTagTracker tracker = operation.getTracker();
+		putRef(tracker != null ? tracker.getSubdomain() : null, out);
+		putRef(tracker != null ? tracker.getSiteId() : null, out);
+		putRef(operation.getPage(), out);
+		out.put(operation.getActionType() != null ? (byte) operation.getActionType().ordinal() : -1);
+		putRef(operation.getSubsiteId(), out);
+		putRef(operation.getOrderingKey(), out);
+
+		long time = operation.getCreationTime();
+		putVarLong(zigzag(time - previousTime), out);
+		previousTime = time;
+
+		// 0, i.e. one byte, for the hits that are not sampled
+		putVarLong(SAMPLE_RATE_SCALE - Math.round(operation.getSampleRate() * SAMPLE_RATE_SCALE), out);
+
+		if ( operation.getSessionId() != 0 ) {
+			putVarLong(operation.getSessionId(), out);
+			putVarLong(operation.getSessionSequence(), out);
+			putRef(operation.getPreviousPage(), out);
+			putVarLong(operation.getPreviousPageDuration() + 1, out);
+		}
+	}
+
+	/**
+	 * Decode a hit encoded by encode
+	 * @param in buffer positioned on the encoded hit
+	 * @return the decoded hit
+	 */
+	XitiTagOperation decode(ByteBuffer in) throws UnsupportedEncodingException {
+
+		String subdomain = getRef(in);
+		String siteId = getRef(in);
+		String page = getRef(in);
+		byte actionType = in.get();
+		String subsiteId = getRef(in);
+		String orderingKey = getRef(in);
+
+		long time = previousTime + unzigzag(getVarLong(in));
+		previousTime = time;
+
+		// absent from the hits journaled by the previous versions
+		float sampleRate = in.hasRemaining() ? (float) (SAMPLE_RATE_SCALE - getVarLong(in)) / SAMPLE_RATE_SCALE : 1;
+
+		long sessionId = 0;
+		int sessionSequence = 0;
+		String previousPage = null;
+		long previousPageDuration = -1;
+		if ( in.hasRemaining() ) {
+			sessionId = getVarLong(in);
+			sessionSequence = (int) getVarLong(in);
+			previousPage = getRef(in);
+			previousPageDuration = getVarLong(in) - 1;
+		}
+
+		XitiTagTracker tracker = null;
+		if ( subdomain != null && siteId != null ) {
+			String key = subdomain + '/' + siteId;
+			tracker = trackers.get(key);
+			if ( tracker == null ) {
+				tracker = new XitiTagTracker(subdomain, siteId, null);
+				trackers.put(key, tracker);
+			}
+		}
+
+		XitiTagOperation operation = new XitiTagOperation(tracker, page, actionType >= 0 ? ACTION_TYPES[actionType] : null, subsiteId, orderingKey, time);
+		operation.setSampleRate(sampleRate);
+		if ( sessionId != 0 ) {
+			operation.setSession(sessionId, sessionSequence, previousPage, previousPageDuration);
+		}
+		return operation;
+	}
+
+	/**
+	 * @return upper bound of the size of the encoded hit
+	 */
+	static int maxEncodedSize(XitiTagOperation operation) {
+		XitiTagTracker tracker = operation.getTracker();
+		return ( tracker != null ? maxRefSize(tracker.getSubdomain()) + maxRefSize(tracker.getSiteId()) : 2 )
+				+ maxRefSize(operation.getPage()) + 1 + maxRefSize(operation.getSubsiteId())
+				+ maxRefSize(operation.getOrderingKey()) + 10 + 5
+				+ ( operation.getSessionId() != 0 ? 10 + 5 + maxRefSize(operation.getPreviousPage()) + 10 : 0 );
+	}
+
+	/**
+	 * @param name page or subsite name
+	 * @return a shared instance equal to name
+	 */
+	static String intern(String name) {
+
+		return name != null ? XitiTagNameCache.SHARED.intern(name).name : null;
+	}
+
+	private void putRef(String value, ByteBuffer out) throws UnsupportedEncodingException {
+
+		if ( value == null ) {
+			putVarLong(0, out);
+			return;
+		}
+
+		Integer code = codes.get(value);
+		if ( code != null ) {
+			putVarLong(2L * (code + 1), out);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(CHARSET);
+		putVarLong(2L * bytes.length + 1, out);
+		out.put(bytes);
+
+		codes.put(value, strings.size());
+		strings.add(value);
+	}
+
+	private String getRef(ByteBuffer in) throws UnsupportedEncodingException {
+
+		long ref = getVarLong(in);
+
+		if ( ref == 0 ) {
+			return null;
+		}
+
+		if ( (ref & 1) == 0 ) {
+			int code = (int) (ref / 2) - 1;
+			if ( code >= strings.size() ) {
+				throw new IllegalArgumentException("Unknown dictionary code " + code);
+			}
+			return strings.get(code);
+		}
+
+		int length = (int) (ref / 2);
+		if ( length > in.remaining() ) {
+			throw new IllegalArgumentException("Truncated string");
+		}
+		String value = intern(new String(in.array(), in.arrayOffset() + in.position(), length, CHARSET));
+		in.position(in.position() + length);
+
+		strings.add(value);
+		return value;
+	}
+
+	private static int maxRefSize(String value) {
+		// a char takes at most 3 bytes in UTF-8
+		return value == null ? 1 : 10 + 3 * value.length();
+	}
+
+	/**
+	 * Write an unsigned varint (7 bits per byte, high bit set on every byte but the last)
+	 */
+	static void putVarLong(long value, ByteBuffer out) {
+		while ( (value & ~0x7FL) != 0 ) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	/**
+	 * Read an unsigned varint
+	 * @throws IllegalArgumentException if the varint is longer than 10 bytes
+	 * @throws java.nio.BufferUnderflowException if the buffer ends inside the varint
+	 */
+	static long getVarLong(ByteBuffer in) {
+
+		long value = 0;
+		for ( int shift = 0; shift < 64; shift += 7 ) {
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ( (b & 0x80) == 0 ) {
+				return value;
+			}
+		}
+
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+}
@@ -0,0 +1,708 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Append-only journal of the queued XitiTagOperations, so that hits survive process death and offline periods.
+ *
+ * The journal is a sequence of segment files (journal-&lt;n&gt;.log) made of records:
+ *<pre>
+ * [varint length of the body][int crc32 of the body][body: byte type, varint sequence, payload]
+ *</pre>
+ * A HIT record holds a queued operation in the compact form of XitiTagHitCodec (dictionary coded names,
+ * delta coded time), whose dictionary starts empty in every segment. An ACK record tells that the hit
+ * with the same sequence was sent (or deliberately dropped) and must not be replayed.
+ *
+ * append and ack only put the operation in a lock-free intake queue, so that tagging a hit never waits for the disk.
+ * A writer thread encodes the records in a memory buffer and writes them to the open segment with one write
+ * and one fsync per batch (see XitiTagConfig.setJournalBatchSize and setJournalFlushInterval).
+ * A torn or corrupted record ends the replay of its segment.
+ *
+ * At open, the writer thread reads back the hits that were never acknowledged, writes them again to a new segment
+ * and deletes the old segments, before writing the records offered meanwhile: init does not wait for the disk. Later, the oldest segments are deleted as soon as all their hits are acknowledged.
+ * If the journal fails (disk full, ...) it logs the error and stops journaling: hits are still sent from memory.
+ *
+ * @author Cyril Cauchois
+ */
+class XitiTagJournal implements Runnable {
+
+	/**
+	 * Log tag
+	 */
+	private final static String LOG_TAG = "AWLXITI" ;
+
+	private final static String SEGMENT_PREFIX = "journal-";
+	private final static String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * Size of a segment after which a new segment is started (bytes)
+	 */
+	private final static long MAX_SEGMENT_SIZE = 256 * 1024;
+
+	/**
+	 * varint length + crc
+	 */
+	private final static int MAX_RECORD_HEADER_SIZE = 5 + 4;
+
+	/**
+	 * type + varint sequence
+	 */
+	private final static int MAX_RECORD_BODY_HEADER_SIZE = 1 + 10;
+
+	private final static byte RECORD_HIT = 1;
+	private final static byte RECORD_ACK = 2;
+
+	/**
+	 * Maximum wait for the writer thread to write the last records at close (ms)
+	 */
+	private final static long CLOSE_TIMEOUT = 2000;
+
+	/**
+	 * Directory of the segment files
+	 */
+	private final File directory;
+
+	/**
+	 * Number of buffered records triggering a write
+	 */
+	private final int batchSize;
+
+	/**
+	 * Maximum time a record stays in the memory buffer (ms)
+	 */
+	private final long flushInterval;
+
+	/**
+	 * Operations to journal (XitiTagOperation) and to acknowledge (Ack), in order
+	 */
+	private final ConcurrentLinkedQueue<Object> intake = new ConcurrentLinkedQueue<Object>();
+
+	/**
+	 * Number of operations put in the intake, used to wake the writer once per batch
+	 */
+	private final AtomicInteger intakeCount = new AtomicInteger();
+
+	/**
+	 * Thread encoding and writing the records. Every field below is only used by this thread once it is started.
+	 */
+	private Thread writer;
+
+	private volatile boolean closing;
+
+	/**
+	 * true once the records offered before close are written and the segment closed
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Number of sync requests, and number of the last request whose records are written (guarded by itself)
+	 */
+	private final AtomicLong syncRequests = new AtomicLong();
+	private long syncedRequest;
+
+	/**
+	 * Records waiting to be written to the active segment
+	 */
+	private ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+
+	/**
+	 * Body of the record being encoded
+	 */
+	private ByteBuffer scratch = ByteBuffer.allocate(256);
+
+	/**
+	 * Encoder of the hits of the active segment
+	 */
+	private final XitiTagHitCodec codec = new XitiTagHitCodec();
+
+	private int bufferedRecords;
+
+	private long firstBufferedTime;
+
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Open channel of the active segment
+	 */
+	private FileChannel channel;
+
+	private long activeSegment;
+
+	private long activeSegmentSize;
+
+	private long nextSequence;
+
+	/**
+	 * {hits, acknowledged hits} for every segment not yet deleted
+	 */
+	private final TreeMap<Long, int[]> segments = new TreeMap<Long, int[]>();
+
+	/**
+	 * true once an I/O error happened. The journal does nothing afterwards.
+	 */
+	private volatile boolean failed;
+
+	/**
+	 * Receives the hits read back at open
+	 */
+	interface Replay {
+
+		/**
+		 * Called on the writer thread, in the original order of the hits.
+		 * @param operation hit that was not acknowledged, already journaled again: it must be queued without calling append
+		 */
+		void replay(XitiTagOperation operation);
+	}
+
+	/**
+	 * Receives the hits read back by the writer thread, until they are replayed
+	 */
+	private Replay replay;
+
+	/**
+	 * Acknowledgement waiting in the intake
+	 */
+	private static class Ack {
+		final XitiTagOperation operation;
+		Ack(XitiTagOperation operation) {
+			this.operation = operation;
+		}
+	}
+
+	/**
+	 * @param directory directory of the segment files, created if needed
+	 * @param batchSize number of buffered records triggering a write
+	 * @param flushInterval maximum time a record stays in the memory buffer (ms)
+	 */
+	XitiTagJournal(File directory, int batchSize, long flushInterval) {
+		this.directory = directory;
+		this.batchSize = batchSize;
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * Start the writer thread, which opens the journal and hands the hits that were not acknowledged to replay.
+	 * Returns at once: the records offered meanwhile are written once the journal is open, after the replayed hits.
+	 * @param replay receives the hits to queue again, on the writer thread
+	 */
+	void open(Replay replay) {
+
+		this.replay = replay;
+
+		writer = new Thread(this, "XitiTag-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Read back the hits that were not acknowledged, journal them again in a new segment and delete the old segments.
+	 * Called by the writer thread before its loop.
+	 * @return hits to queue again, in their original order, none if the journal failed
+	 */
+	private List<XitiTagOperation> load() {
+
+		List<XitiTagOperation> replayed = new ArrayList<XitiTagOperation>();
+
+		try {
+			if ( !directory.isDirectory() && !directory.mkdirs() ) {
+				throw new IOException("Unable to create " + directory);
+			}
+
+			long[] oldSegments = listSegments();
+
+			LinkedHashMap<Long, XitiTagOperation> hits = new LinkedHashMap<Long, XitiTagOperation>();
+			HashSet<Long> acks = new HashSet<Long>();
+			for ( long segment : oldSegments ) {
+				readSegment(segment, hits, acks);
+			}
+
+			activeSegment = oldSegments.length > 0 ? oldSegments[oldSegments.length - 1] + 1 : 0;
+			openActiveSegment();
+
+			for ( Map.Entry<Long, XitiTagOperation> hit : hits.entrySet() ) {
+				if ( !acks.contains(hit.getKey()) ) {
+					XitiTagOperation operation = hit.getValue();
+					appendRecord(operation);
+					replayed.add(operation);
+				}
+			}
+
+			// the hits are safe in the new segment before the old ones are deleted
+			flush();
+
+			for ( long segment : oldSegments ) {
+				segmentFile(segment).delete();
+			}
+
+			Log.d(LOG_TAG, "XitiTagJournal.open() replays " + replayed.size() + " hits");
+
+		} catch (IOException e) {
+			fail(e);
+		}
+
+		return replayed;
+	}
+
+	/**
+	 * Read the hits of a journal directory without opening the journal: nothing is written or deleted.
+	 * Used to replay recorded hits (see the XitiTagReplay tool).
+	 * @param directory directory of the segment files
+	 * @return every hit still in the segments, acknowledged or not, in their original order
+	 */
+	static List<XitiTagOperation> read(File directory) {
+
+		XitiTagJournal reader = new XitiTagJournal(directory, 1, 0);
+
+		LinkedHashMap<Long, XitiTagOperation> hits = new LinkedHashMap<Long, XitiTagOperation>();
+		HashSet<Long> acks = new HashSet<Long>();
+		for ( long segment : reader.listSegments() ) {
+			reader.readSegment(segment, hits, acks);
+		}
+
+		return new ArrayList<XitiTagOperation>(hits.values());
+	}
+
+	/**
+	 * Journal a queued operation. Lock-free: the record is encoded and written by the writer thread.
+	 * @param operation operation to journal
+	 */
+	void append(XitiTagOperation operation) {
+		offer(operation);
+	}
+
+	/**
+	 * Acknowledge a journaled operation: it was sent, or dropped on purpose, and must not be replayed.
+	 * Lock-free: the record is written by the writer thread.
+	 * @param operation operation to acknowledge. Ignored if it was not journaled.
+	 */
+	void ack(XitiTagOperation operation) {
+		offer(new Ack(operation));
+	}
+
+	/**
+	 * Wait until every record offered so far is written and fsynced, e.g. before the process may be killed.
+	 * @param timeout maximum wait (ms)
+	 * @return true if the records are on disk, false on timeout or if the journal failed
+	 */
+	boolean sync(long timeout) {
+
+		Thread current = writer;
+		if ( closed ) {
+			return true;
+		}
+		if ( current == null || failed ) {
+			return false;
+		}
+
+		long request = syncRequests.incrementAndGet();
+		LockSupport.unpark(current);
+
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized ( syncRequests ) {
+			while ( syncedRequest < request && !failed ) {
+				long wait = deadline - System.currentTimeMillis();
+				if ( wait <= 0 ) {
+					return false;
+				}
+				try {
+					syncRequests.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return syncedRequest >= request || closed;
+		}
+	}
+
+	/**
+	 * Write the pending records, close the active segment and stop the writer thread.
+	 */
+	void close() {
+
+		closing = true;
+
+		Thread current = writer;
+		if ( current != null ) {
+			LockSupport.unpark(current);
+			try {
+				current.join(CLOSE_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void offer(Object item) {
+
+		if ( failed || closing ) {
+			return;
+		}
+
+		intake.offer(item);
+		if ( intakeCount.incrementAndGet() % batchSize == 0 ) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Writer loop: opens the journal and replays its hits, then encodes the intake and writes a batch when it is full,
+	 * when the oldest record waited flushInterval, or at close.
+	 */
+	@Override
+	public void run() {
+
+		for ( XitiTagOperation operation : load() ) {
+			try {
+				replay.replay(operation);
+			} catch (RuntimeException e) {
+				Log.d(LOG_TAG, "XitiTagJournal.run() Unable to replay a hit", e);
+			}
+		}
+		replay = null;
+
+		try {
+			while ( !failed ) {
+
+				// read before draining: whatever was offered before close (or sync) is written
+				boolean stop = closing;
+				long sync = syncRequests.get();
+
+				Object item;
+				while ( (item = intake.poll()) != null ) {
+					if ( item instanceof Ack ) {
+						encodeAck(((Ack) item).operation);
+					} else {
+						appendRecord((XitiTagOperation) item);
+					}
+					if ( bufferedRecords >= batchSize ) {
+						flush();
+					}
+				}
+
+				boolean syncing = sync > syncedRequest;
+				if ( bufferedRecords > 0 && ( stop || syncing || System.currentTimeMillis() - firstBufferedTime >= flushInterval ) ) {
+					flush();
+				}
+
+				if ( stop ) {
+					channel.close();
+					closed = true;
+				}
+
+				if ( syncing ) {
+					synchronized ( syncRequests ) {
+						syncedRequest = sync;
+						syncRequests.notifyAll();
+					}
+				}
+
+				if ( stop ) {
+					break;
+				}
+
+				long wait = bufferedRecords > 0 ? firstBufferedTime + flushInterval - System.currentTimeMillis() : flushInterval;
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(1, wait)));
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+
+		failed = true; // nothing can be journaled anymore
+
+		synchronized ( syncRequests ) {
+			syncRequests.notifyAll();
+		}
+	}
+
+	/**
+	 * Encode an ACK record in the buffer
+	 * @param operation acknowledged operation
+	 */
+	private void encodeAck(XitiTagOperation operation) {
+
+		if ( operation.getJournalSequence() < 0 ) {
+			return;
+		}
+
+		beginRecord(RECORD_ACK, operation.getJournalSequence(), 0);
+		endRecord();
+
+		int[] counts = segments.get(operation.getJournalSegment());
+		if ( counts != null ) {
+			counts[1]++;
+		}
+		operation.setJournalPosition(-1, -1);
+
+		compact();
+	}
+
+	/**
+	 * Encode a HIT record in the buffer
+	 * @param operation operation to encode
+	 */
+	private void appendRecord(XitiTagOperation operation) throws IOException {
+
+		long sequence = nextSequence++;
+
+		beginRecord(RECORD_HIT, sequence, XitiTagHitCodec.maxEncodedSize(operation));
+		codec.encode(operation, scratch);
+		endRecord();
+
+		segments.get(activeSegment)[0]++;
+		operation.setJournalPosition(activeSegment, sequence);
+	}
+
+	/**
+	 * Start a record: its body is encoded in the scratch buffer, then framed by endRecord.
+	 * @param payloadSize upper bound of the size of the payload
+	 */
+	private void beginRecord(byte type, long sequence, int payloadSize) {
+
+		if ( bufferedRecords == 0 ) {
+			firstBufferedTime = System.currentTimeMillis();
+		}
+
+		scratch.clear();
+		scratch = ensureCapacity(scratch, MAX_RECORD_BODY_HEADER_SIZE + payloadSize);
+		scratch.put(type);
+		XitiTagHitCodec.putVarLong(sequence, scratch);
+	}
+
+	/**
+	 * Append the record started by beginRecord to the buffer, with its header.
+	 */
+	private void endRecord() {
+
+		int length = scratch.position();
+
+		crc.reset();
+		crc.update(scratch.array(), 0, length);
+
+		buffer = ensureCapacity(buffer, MAX_RECORD_HEADER_SIZE + length);
+		XitiTagHitCodec.putVarLong(length, buffer);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(scratch.array(), 0, length);
+
+		bufferedRecords++;
+	}
+
+	/**
+	 * @return the given buffer if it has the needed room, else a larger copy of it
+	 */
+	private static ByteBuffer ensureCapacity(ByteBuffer target, int needed) {
+
+		if ( target.remaining() >= needed ) {
+			return target;
+		}
+
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(target.capacity() * 2, target.position() + needed));
+		grown.put(target.array(), 0, target.position());
+		return grown;
+	}
+
+	/**
+	 * Write the buffered records to the active segment and fsync it.
+	 */
+	private void flush() throws IOException {
+
+		if ( bufferedRecords == 0 ) {
+			return;
+		}
+
+		buffer.flip();
+		while ( buffer.hasRemaining() ) {
+			activeSegmentSize += channel.write(buffer);
+		}
+		channel.force(false);
+		buffer.clear();
+		bufferedRecords = 0;
+
+		if ( activeSegmentSize >= MAX_SEGMENT_SIZE ) {
+			channel.close();
+			activeSegment++;
+			openActiveSegment();
+			compact();
+		}
+	}
+
+	/**
+	 * Delete the oldest segments whose hits are all acknowledged.
+	 * Segments are deleted in order because they hold the ACK records of the older ones.
+	 */
+	private void compact() {
+
+		Iterator<Map.Entry<Long, int[]>> it = segments.entrySet().iterator();
+		while ( it.hasNext() ) {
+			Map.Entry<Long, int[]> segment = it.next();
+			int[] counts = segment.getValue();
+			if ( segment.getKey() == activeSegment || counts[1] < counts[0] ) {
+				break;
+			}
+			segmentFile(segment.getKey()).delete();
+			it.remove();
+		}
+	}
+
+	private void openActiveSegment() throws IOException {
+
+		channel = new RandomAccessFile(segmentFile(activeSegment), "rw").getChannel();
+		channel.position(channel.size());
+		activeSegmentSize = channel.size();
+		segments.put(activeSegment, new int[2]);
+		codec.reset();
+	}
+
+	/**
+	 * Read the valid records of a segment
+	 * @param segment segment number
+	 * @param hits operations read, by sequence
+	 * @param acks acknowledged sequences
+	 */
+	private void readSegment(long segment, Map<Long, XitiTagOperation> hits, HashSet<Long> acks) {
+
+		FileInputStream in = null;
+
+		try {
+			in = new FileInputStream(segmentFile(segment));
+			FileChannel segmentChannel = in.getChannel();
+			ByteBuffer content = ByteBuffer.allocate((int) segmentChannel.size());
+			while ( content.hasRemaining() && segmentChannel.read(content) >= 0 ) {
+				// read the whole segment
+			}
+			content.flip();
+
+			XitiTagHitCodec segmentCodec = new XitiTagHitCodec();
+
+			while ( content.hasRemaining() ) {
+
+				long length;
+				int checksum;
+				try {
+					length = XitiTagHitCodec.getVarLong(content);
+					checksum = content.getInt();
+				} catch (RuntimeException e) {
+					break; // torn header
+				}
+				if ( length < 2 || length > content.remaining() ) {
+					break; // torn record
+				}
+
+				crc.reset();
+				crc.update(content.array(), content.position(), (int) length);
+				if ( (int) crc.getValue() != checksum ) {
+					break; // corrupted record
+				}
+
+				int next = content.position() + (int) length;
+				byte type = content.get();
+				long sequence = XitiTagHitCodec.getVarLong(content);
+
+				if ( type == RECORD_HIT ) {
+					int limit = content.limit();
+					content.limit(next); // the codec reads the optional fields up to the end of the record
+					try {
+						hits.put(sequence, segmentCodec.decode(content));
+					} finally {
+						content.limit(limit);
+					}
+				} else if ( type == RECORD_ACK ) {
+					acks.add(sequence);
+				}
+
+				content.position(next);
+				nextSequence = Math.max(nextSequence, sequence + 1);
+			}
+
+		} catch (Throwable t) {
+			Log.d(LOG_TAG, "XitiTagJournal.readSegment(" + segment + ") failed ! ", t);
+		} finally {
+			if ( in != null ) {
+				try {
+					in.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * @return numbers of the segments found in the directory, in ascending order
+	 */
+	private long[] listSegments() {
+
+		String[] names = directory.list();
+		if ( names == null ) {
+			return new long[0];
+		}
+
+		long[] found = new long[names.length];
+		int count = 0;
+		for ( String name : names ) {
+			if ( name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) ) {
+				try {
+					found[count] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+					count++;
+				} catch (NumberFormatException e) {}
+			}
+		}
+
+		long[] result = Arrays.copyOf(found, count);
+		Arrays.sort(result);
+		return result;
+	}
+
+	private File segmentFile(long segment) {
+		return new File(directory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+	}
+
+	private void fail(IOException e) {
+
+		Log.d(LOG_TAG, "XitiTagJournal failed, hits are no longer journaled ! ", e);
+		failed = true;
+		if ( channel != null ) {
+			try {
+				channel.close();
+			} catch (IOException ignored) {}
+		}
+	}
+
+}
@@ -0,0 +1,531 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the tagging pipeline.
+ *
+ * Counters are striped (one padded cell per group of threads) so that the threads tagging hits
+ * and the workers do not contend on the same cache line. Histograms are log-linear, HDR-style:
+ * 8 buckets per power of two, i.e. a value is known within 12.5%, whatever its magnitude.
+ * Recording is a few atomic increments, without lock nor allocation.
+ *
+ * When metrics are disabled (see XitiTagConfig.setMetricsEnabled) every record method returns at once
+ * and startTimer does not read the clock.
+ *
+ * Metrics are read with XitiTag.getMetrics, or pushed periodically to a XitiTagMetricsReporter.
+ *
+ * @author Cyril Cauchois
+ */
+public final class XitiTagMetrics {
+
+	private final boolean enabled;
+
+	private final StripedCounter tagged = new StripedCounter();
+	private final StripedCounter sent = new StripedCounter();
+	private final StripedCounter retried = new StripedCounter();
+	private final StripedCounter retryableFailures = new StripedCounter();
+	private final StripedCounter permanentFailures = new StripedCounter();
+	private final StripedCounter errors = new StripedCounter();
+	private final StripedCounter bytesSent = new StripedCounter();
+
+	private final Histogram queueLatency = new Histogram();
+	private final Histogram sendLatency = new Histogram();
+	private final Histogram hitBytes = new Histogram();
+
+	/**
+	 * @param enabled false to make every record method a no-op
+	 */
+	XitiTagMetrics(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return start time to give to recordSend, 0 if metrics are disabled
+	 */
+	long startTimer() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * A hit was queued
+	 */
+	void recordTagged() {
+		if ( enabled ) {
+			tagged.increment();
+		}
+	}
+
+	/**
+	 * An attempt to send a hit ended
+	 * @param operation sent operation
+	 * @param outcome outcome of the attempt
+	 * @param startTime value of startTimer before the attempt
+	 */
+	void recordSend(XitiTagOperation operation, XitiTagRetryPolicy.Outcome outcome, long startTime) {
+
+		if ( !enabled ) {
+			return;
+		}
+
+		sendLatency.record((System.nanoTime() - startTime) / 1000000);
+
+		switch ( outcome ) {
+		case SENT :
+			sent.increment();
+			queueLatency.record(System.currentTimeMillis() - operation.getCreationTime());
+			break;
+		case RETRYABLE_FAILURE :
+			retryableFailures.increment();
+			break;
+		case PERMANENT_FAILURE :
+			permanentFailures.increment();
+			break;
+		}
+	}
+
+	/**
+	 * A request is about to be sent
+	 * @param hits number of hits in the request
+	 * @param bytes size of the url and of the body of the request, headers excluded
+	 */
+	void recordBytes(int hits, long bytes) {
+		if ( enabled ) {
+			bytesSent.add(bytes);
+			hitBytes.record(bytes / hits, hits);
+		}
+	}
+
+	/**
+	 * A failed hit is about to be sent again
+	 */
+	void recordRetry() {
+		if ( enabled ) {
+			retried.increment();
+		}
+	}
+
+	/**
+	 * An unexpected exception was caught (and swallowed) by a worker
+	 */
+	void recordError() {
+		if ( enabled ) {
+			errors.increment();
+		}
+	}
+
+	/**
+	 * @param queueSize current number of queued operations
+	 * @param dropped number of hits lost because the queue was full
+	 * @param suppressed number of duplicate hits dropped
+	 * @param sampledOut number of hits dropped by sampling
+	 * @param rateLimited number of hits dropped by the rate limit
+	 * @return current values of the metrics
+	 */
+	Snapshot snapshot(int queueSize, long dropped, long suppressed, long sampledOut, long rateLimited) {
+		return new Snapshot(this, queueSize, dropped, suppressed, sampledOut, rateLimited);
+	}
+
+	/**
+	 * Values of the metrics at a given time
+	 */
+	public static final class Snapshot {
+
+		private final boolean enabled;
+		private final long time;
+		private final int queueSize;
+		private final long tagged;
+		private final long sent;
+		private final long retried;
+		private final long retryableFailures;
+		private final long permanentFailures;
+		private final long dropped;
+		private final long suppressed;
+		private final long sampledOut;
+		private final long rateLimited;
+		private final long errors;
+		private final long bytesSent;
+		private final long nameCacheHits;
+		private final long nameCacheMisses;
+		private final long nameCacheEvictions;
+		private final HistogramSnapshot queueLatency;
+		private final HistogramSnapshot sendLatency;
+		private final HistogramSnapshot hitBytes;
+
+		private Snapshot(XitiTagMetrics metrics, int queueSize, long dropped, long suppressed, long sampledOut, long rateLimited) {
+			this.enabled = metrics.enabled;
+			this.time = System.currentTimeMillis();
+			this.queueSize = queueSize;
+			this.tagged = metrics.tagged.sum();
+			this.sent = metrics.sent.sum();
+			this.retried = metrics.retried.sum();
+			this.retryableFailures = metrics.retryableFailures.sum();
+			this.permanentFailures = metrics.permanentFailures.sum();
+			this.dropped = dropped;
+			this.suppressed = suppressed;
+			this.sampledOut = sampledOut;
+			this.rateLimited = rateLimited;
+			this.errors = metrics.errors.sum();
+			this.bytesSent = metrics.bytesSent.sum();
+			this.nameCacheHits = XitiTagNameCache.SHARED.getHits();
+			this.nameCacheMisses = XitiTagNameCache.SHARED.getMisses();
+			this.nameCacheEvictions = XitiTagNameCache.SHARED.getEvictions();
+			this.queueLatency = metrics.queueLatency.snapshot();
+			this.sendLatency = metrics.sendLatency.snapshot();
+			this.hitBytes = metrics.hitBytes.snapshot();
+		}
+
+		/**
+		 * @return false if metrics are disabled: only the queue size and the counts of dropped hits are meaningful
+		 */
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		/**
+		 * @return time of the snapshot (ms)
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return number of operations waiting in the queue
+		 */
+		public int getQueueSize() {
+			return queueSize;
+		}
+
+		/**
+		 * @return number of hits tagged, queued or dropped, including the hits replayed from the journal
+		 */
+		public long getTagged() {
+			return tagged;
+		}
+
+		/**
+		 * @return number of hits accepted by the collector
+		 */
+		public long getSent() {
+			return sent;
+		}
+
+		/**
+		 * @return number of retries of failed hits
+		 */
+		public long getRetried() {
+			return retried;
+		}
+
+		/**
+		 * @return number of attempts that failed with a retryable error (network error, 5xx, ...)
+		 */
+		public long getRetryableFailures() {
+			return retryableFailures;
+		}
+
+		/**
+		 * @return number of hits refused by the collector (4xx), which are dropped
+		 */
+		public long getPermanentFailures() {
+			return permanentFailures;
+		}
+
+		/**
+		 * @return number of hits lost because the queue was full, whatever the overflow policy
+		 */
+		public long getDropped() {
+			return dropped;
+		}
+
+		/**
+		 * @return number of hits dropped as duplicates of a recent hit (see XitiTagConfig.setDedupWindow)
+		 */
+		public long getSuppressed() {
+			return suppressed;
+		}
+
+		/**
+		 * @return number of hits not sent because of their sample rate (see XitiTagConfig.setActionSampleRate)
+		 */
+		public long getSampledOut() {
+			return sampledOut;
+		}
+
+		/**
+		 * @return number of hits dropped because their event key was over its rate limit (see XitiTagConfig.setRateLimit)
+		 */
+		public long getRateLimited() {
+			return rateLimited;
+		}
+
+		/**
+		 * @return number of unexpected exceptions caught by the workers
+		 */
+		public long getErrors() {
+			return errors;
+		}
+
+		/**
+		 * @return number of bytes sent to the collector, retries included (urls and bodies of the requests, headers excluded)
+		 */
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		/**
+		 * @return number of lookups of names already cached (see XitiTagNameCache), since the process started
+		 */
+		public long getNameCacheHits() {
+			return nameCacheHits;
+		}
+
+		/**
+		 * @return number of lookups of names that had to be cached, since the process started
+		 */
+		public long getNameCacheMisses() {
+			return nameCacheMisses;
+		}
+
+		/**
+		 * @return number of names evicted from the name cache, since the process started
+		 */
+		public long getNameCacheEvictions() {
+			return nameCacheEvictions;
+		}
+
+		/**
+		 * @return time between the tagging of a hit and its successful send (ms)
+		 */
+		public HistogramSnapshot getQueueLatency() {
+			return queueLatency;
+		}
+
+		/**
+		 * @return duration of one attempt to send a hit (ms)
+		 */
+		public HistogramSnapshot getSendLatency() {
+			return sendLatency;
+		}
+
+		/**
+		 * @return bytes sent per hit and per attempt: the url of a GET, or the share of a hit in a POST (see XitiTagConfig.setPostMode)
+		 */
+		public HistogramSnapshot getHitBytes() {
+			return hitBytes;
+		}
+
+		@Override
+		public String toString() {
+			return "queue=" + queueSize + " tagged=" + tagged + " sent=" + sent + " retried=" + retried
+					+ " retryableFailures=" + retryableFailures + " permanentFailures=" + permanentFailures
+					+ " dropped=" + dropped +  " suppressed=" + suppressed
+					+ " sampledOut=" + sampledOut + " rateLimited=" + rateLimited + " errors=" + errors
+					+ " bytesSent=" + bytesSent + " nameCacheHits=" + nameCacheHits + " nameCacheMisses=" + nameCacheMisses
+					+ " nameCacheEvictions=" + nameCacheEvictions + " queueLatency={" + queueLatency + "} sendLatency={" + sendLatency
+					+ "} hitBytes={" + hitBytes + "}";
+		}
+	}
+
+	/**
+	 * Values of a histogram at a given time
+	 */
+	public static final class HistogramSnapshot {
+
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		private HistogramSnapshot(long[] counts, long sum, long max) {
+			long total = 0;
+			for ( long c : counts ) {
+				total += c;
+			}
+			this.counts = counts;
+			this.count = total;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * @return number of recorded values
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return mean of the recorded values, 0 if none
+		 */
+		public double getMean() {
+			return count > 0 ? (double) sum / count : 0;
+		}
+
+		/**
+		 * @return largest recorded value, 0 if none
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * @param percentile percentile between 0 and 100
+		 * @return value below which the given percentage of the recorded values fall (within 12.5%), 0 if none
+		 */
+		public long getValueAtPercentile(double percentile) {
+
+			if ( count == 0 ) {
+				return 0;
+			}
+
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			for ( int i = 0; i < counts.length; i++ ) {
+				seen += counts[i];
+				if ( seen >= rank ) {
+					return Math.min(Histogram.highestValue(i), max);
+				}
+			}
+
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + " mean=" + Math.round(getMean()) + " p50=" + getValueAtPercentile(50)
+					+ " p99=" + getValueAtPercentile(99) + " max=" + max;
+		}
+	}
+
+	/**
+	 * Counter spread over padded cells, a thread always incrementing the same cell
+	 */
+	static final class StripedCounter {
+
+		private final static int STRIPES = 8;
+
+		/**
+		 * One used long every 8, so that two cells are never in the same cache line
+		 */
+		private final static int PADDING = 8;
+
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+		void increment() {
+			add(1);
+		}
+
+		void add(long delta) {
+			cells.addAndGet((int) (Thread.currentThread().getId() % STRIPES) * PADDING, delta);
+		}
+
+		long sum() {
+			long sum = 0;
+			for ( int i = 0; i < STRIPES; i++ ) {
+				sum += cells.get(i * PADDING);
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Log-linear histogram of positive values: values under 16 have their own bucket,
+	 * then each power of two is split into 8 buckets.
+	 */
+	static final class Histogram {
+
+		private final static int LINEAR_LIMIT = 16;
+		private final static int SUB_BUCKETS = 8;
+		private final static int SUB_BUCKET_BITS = 3;
+
+		/**
+		 * 16 linear buckets, then 8 buckets for each power of two from 2^4 to 2^62
+		 */
+		private final static int BUCKETS = LINEAR_LIMIT + (63 - 4) * SUB_BUCKETS;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long value) {
+			record(value, 1);
+		}
+
+		/**
+		 * Record the same value several times
+		 */
+		void record(long value, long count) {
+
+			if ( value < 0 ) {
+				value = 0;
+			}
+
+			counts.addAndGet(bucket(value), count);
+			sum.addAndGet(value * count);
+
+			long current;
+			while ( value > (current = max.get()) && !max.compareAndSet(current, value) ) {
+				// another thread raised the max meanwhile, compare again
+			}
+		}
+
+		HistogramSnapshot snapshot() {
+			long[] copy = new long[BUCKETS];
+			for ( int i = 0; i < BUCKETS; i++ ) {
+				copy[i] = counts.get(i);
+			}
+			return new HistogramSnapshot(copy, sum.get(), max.get());
+		}
+
+		static int bucket(long value) {
+
+			if ( value < LINEAR_LIMIT ) {
+				return (int) value;
+			}
+
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+			return LINEAR_LIMIT + (exponent - 4) * SUB_BUCKETS + subBucket;
+		}
+
+		/**
+		 * @return largest value falling in the given bucket
+		 */
+		static long highestValue(int bucket) {
+
+			if ( bucket < LINEAR_LIMIT ) {
+				return bucket;
+			}
+
+			int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 4;
+			long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+			long width = 1L << (exponent - SUB_BUCKET_BITS);
+			return (1L << exponent) + (subBucket + 1) * width - 1;
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+/**
+ * Receives the metrics of XitiTag periodically (see XitiTagConfig.setMetricsReporter),
+ * e.g. to forward them to the monitoring of the application.
+ *
+ * @author Cyril Cauchois
+ */
+public interface XitiTagMetricsReporter {
+
+	/**
+	 * Called on the XitiTag-metrics thread every XitiTagConfig.getMetricsReportInterval() ms,
+	 * and once more when the workers stop. Must not block for long.
+	 * @param snapshot current values of the metrics
+	 */
+	void report(XitiTagMetrics.Snapshot snapshot);
+
+}
@@ -0,0 +1,310 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded cache of the page, action and subsite names, shared by every XitiTag instance.
+ *
+ * For each raw name, an entry holds a shared instance of the name (so that a backlog of hits does not hold one copy
+ * of each name per hit), its escaped form (see XitiTag.escapePageName) and its url encoded form (appended to the urls).
+ * A name tagged again skips all string processing.
+ *
+ * The tagging threads only intern the raw name (see intern): a ConcurrentHashMap lookup and, for a new name,
+ * a putIfAbsent of an entry whose forms are not computed yet. The escaped and encoded forms are computed the first time
+ * they are read, by the worker building the url, and kept in the entry.
+ * The first time an entry is read since the last eviction pass, its reference bit is set by a volatile write.
+ *
+ * New entries wait in a lock-free queue until a worker admits them in the clock (see get); when the cache is full,
+ * the CLOCK algorithm evicts the first entry not read since the hand last passed it. The admission is skipped when
+ * another thread is running it, so that no thread ever waits for it. A tagging thread only admits the new entries itself
+ * when as many as the capacity are waiting, which bounds the cache to twice its capacity.
+ * Hits, misses and evictions are counted (see XitiTagMetrics.Snapshot.getNameCacheHits).
+ *
+ * @author Cyril Cauchois
+ */
+final class XitiTagNameCache {
+
+	private final static String CHARSET = "UTF-8";
+
+	private final static char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * Capacity of the shared cache: apps tag a few hundred distinct names
+	 */
+	private final static int SHARED_CAPACITY = 1024;
+
+	/**
+	 * Cache of the names of every XitiTag instance
+	 */
+	final static XitiTagNameCache SHARED = new XitiTagNameCache(SHARED_CAPACITY);
+
+	/**
+	 * Cached name and its forms
+	 */
+	static final class Entry {
+
+		final String name;
+
+		/**
+		 * Computed when first read, the same value may be computed twice by racing threads
+		 */
+		private volatile String escaped;
+		private volatile String encoded;
+
+		/**
+		 * Set when the entry is read, cleared by the clock hand
+		 */
+		volatile boolean referenced;
+
+		Entry(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return escaped name (see XitiTag.escapePageName)
+		 */
+		String escaped() {
+			String result = escaped;
+			if ( result == null ) {
+				escaped = result = XitiTagEscaper.escapePageName(name);
+			}
+			return result;
+		}
+
+		/**
+		 * @return url encoded name
+		 */
+		String encoded() {
+			String result = encoded;
+			if ( result == null ) {
+				encoded = result = encode(name);
+			}
+			return result;
+		}
+	}
+
+	private final int capacity;
+
+	private final ConcurrentHashMap<String, Entry> entries;
+
+	/**
+	 * Entries interned but not admitted in the clock yet
+	 */
+	private final Queue<Entry> pending = new ConcurrentLinkedQueue<Entry>();
+
+	private final AtomicInteger pendingCount = new AtomicInteger();
+
+	/**
+	 * Held by the thread admitting the pending entries, which guards the clock, the hand and the size
+	 */
+	private final AtomicBoolean admitting = new AtomicBoolean();
+
+	/**
+	 * Entries in the order of their admission in the clock
+	 */
+	private final AtomicReferenceArray<Entry> clock;
+
+	/**
+	 * Next slot examined by the clock hand
+	 */
+	private int hand;
+
+	/**
+	 * Number of occupied slots
+	 */
+	private int size;
+
+	private final XitiTagMetrics.StripedCounter hits = new XitiTagMetrics.StripedCounter();
+	private final XitiTagMetrics.StripedCounter misses = new XitiTagMetrics.StripedCounter();
+	private final XitiTagMetrics.StripedCounter evictions = new XitiTagMetrics.StripedCounter();
+
+	/**
+	 * @param capacity maximum number of cached names
+	 */
+	XitiTagNameCache(int capacity) {
+		this.capacity = capacity;
+		this.entries = new ConcurrentHashMap<String, Entry>(capacity * 4 / 3 + 1);
+		this.clock = new AtomicReferenceArray<Entry>(capacity);
+	}
+
+	/**
+	 * Intern a name, on the tagging threads: the forms of a new name are not computed.
+	 * @param name raw name, not null
+	 * @return entry of the name
+	 */
+	Entry intern(String name) {
+
+		Entry entry = entries.get(name);
+		if ( entry != null ) {
+			hits.increment();
+			if ( !entry.referenced ) {
+				entry.referenced = true; // only written once per pass of the hand
+			}
+			return entry;
+		}
+
+		misses.increment();
+		entry = new Entry(name);
+		Entry existing = entries.putIfAbsent(name, entry);
+		if ( existing != null ) {
+			return existing;
+		}
+
+		pending.offer(entry);
+		if ( pendingCount.incrementAndGet() >= capacity ) {
+			admit();
+		}
+		return entry;
+	}
+
+	/**
+	 * Intern a name and admit the pending entries, on the workers: the caller then reads the forms of the entry.
+	 * @param name raw name, not null
+	 * @return entry of the name
+	 */
+	Entry get(String name) {
+
+		Entry entry = intern(name);
+		if ( pendingCount.get() > 0 ) {
+			admit();
+		}
+		return entry;
+	}
+
+	/**
+	 * Admit the pending entries in the clock, evicting an entry for each one when the cache is full.
+	 * Returns at once when another thread is admitting them.
+	 */
+	private void admit() {
+
+		if ( !admitting.compareAndSet(false, true) ) {
+			return;
+		}
+
+		try {
+			Entry entry;
+			while ( (entry = pending.poll()) != null ) {
+				pendingCount.decrementAndGet();
+
+				int slot;
+				if ( size < capacity ) {
+					slot = size++;
+				} else {
+					Entry victim;
+					while ( (victim = clock.get(hand)).referenced ) {
+						victim.referenced = false; // second chance
+						hand = (hand + 1) % capacity;
+					}
+					slot = hand;
+					hand = (hand + 1) % capacity;
+					entries.remove(victim.name, victim);
+					evictions.increment();
+				}
+
+				clock.set(slot, entry);
+			}
+		} finally {
+			admitting.set(false);
+		}
+	}
+
+	long getHits() {
+		return hits.sum();
+	}
+
+	long getMisses() {
+		return misses.sum();
+	}
+
+	long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Url encode a name for the query of a hit: the unreserved characters, ':' (chapters), '/', '@', '!', '$', '(', ')',
+	 * '*', ',' and ';' are kept, the other characters are percent encoded in UTF-8 (including '&amp;', '=', '+' and quotes).
+	 * @param name raw name
+	 * @return encoded name, name itself if nothing has to be encoded
+	 */
+	static String encode(String name) {
+
+		int length = name.length();
+		int i = 0;
+		while ( i < length && isKept(name.charAt(i)) ) {
+			i++;
+		}
+		if ( i == length ) {
+			return name;
+		}
+
+		StringBuilder out = new StringBuilder(length + 16);
+		out.append(name, 0, i);
+
+		while ( i < length ) {
+			char c = name.charAt(i);
+			if ( isKept(c) ) {
+				out.append(c);
+				i++;
+				continue;
+			}
+
+			// encode the run of characters to encode at once, so that surrogate pairs stay together
+			int end = i + 1;
+			while ( end < length && !isKept(name.charAt(end)) ) {
+				end++;
+			}
+			try {
+				for ( byte b : name.substring(i, end).getBytes(CHARSET) ) {
+					out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+				}
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e); // UTF-8 is always supported
+			}
+			i = end;
+		}
+
+		return out.toString();
+	}
+
+	private static boolean isKept(char c) {
+
+		if ( (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ) {
+			return true;
+		}
+
+		switch ( c ) {
+		case '-' : case '.' : case '_' : case '~' :
+		case ':' : case '/' : case '@' : case '!' : case '$' :
+		case '(' : case ')' : case '*' : case ',' : case ';' :
+			return true;
+		default :
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+/**
+ * Holds the workers until sending is cheap for the radio.
+ *
+ *<ul>
+ * <li>Without connectivity, nothing is sent: the hits accumulate and are flushed in a burst when the network comes back.</li>
+ * <li>With XitiTagConfig.setWifiMaxDelay, hits tagged on a mobile network wait for Wi-Fi, up to that delay.
+ * They are sent at once if the radio is already awake, i.e. a hit was sent less than RADIO_TAIL ms ago.</li>
+ *</ul>
+ *
+ * @author Cyril Cauchois
+ */
+class XitiTagNetworkScheduler implements XitiTagConnectivity.Listener {
+
+	/**
+	 * Time the mobile radio stays in its high power state after a transfer (ms)
+	 */
+	private final static long RADIO_TAIL = 10000;
+
+	/**
+	 * The state is checked again after this delay even if no change was notified (ms)
+	 */
+	private final static long MAX_WAIT = 60000;
+
+	private final XitiTagConnectivity connectivity;
+
+	/**
+	 * true if the connectivity was created by XitiTag, and is closed by stop
+	 */
+	private final boolean ownsConnectivity;
+
+	/**
+	 * Maximum wait for Wi-Fi (ms), 0 to send on any network
+	 */
+	private final long wifiMaxDelay;
+
+	private volatile long lastSendTime;
+
+	private boolean stopping;
+
+	/**
+	 * Number of flushes in progress, during which the workers do not wait
+	 */
+	private int flushes;
+
+	/**
+	 * @param connectivity network state
+	 * @param ownsConnectivity true to close the connectivity on stop, false if the application gave it (see XitiTagConfig.setConnectivity)
+	 * @param wifiMaxDelay maximum wait for Wi-Fi (ms), 0 to send on any network
+	 */
+	XitiTagNetworkScheduler(XitiTagConnectivity connectivity, boolean ownsConnectivity, long wifiMaxDelay) {
+		this.connectivity = connectivity;
+		this.ownsConnectivity = ownsConnectivity;
+		this.wifiMaxDelay = wifiMaxDelay;
+		connectivity.setListener(this);
+	}
+
+	/**
+	 * Wait until the hits may be sent.
+	 * @param queuedSince time the oldest hit to send was tagged
+	 * @throws InterruptedException if the worker is interrupted while waiting
+	 */
+	synchronized void awaitSendWindow(long queuedSince) throws InterruptedException {
+
+		while ( !stopping && flushes == 0 ) {
+
+			if ( !connectivity.isConnected() ) {
+				wait(MAX_WAIT);
+				continue;
+			}
+
+			if ( wifiMaxDelay <= 0 || connectivity.isWifi() ) {
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			if ( now - lastSendTime < RADIO_TAIL ) {
+				return; // the radio is already awake
+			}
+
+			long due = queuedSince + wifiMaxDelay;
+			if ( now >= due ) {
+				return;
+			}
+
+			wait(Math.min(due - now, MAX_WAIT));
+		}
+	}
+
+	/**
+	 * A hit was just sent: the radio is awake
+	 */
+	void onSent() {
+		lastSendTime = System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized void onConnectivityChanged() {
+		notifyAll();
+	}
+
+	/**
+	 * Let the workers send at once until endFlush, whatever the network
+	 */
+	synchronized void beginFlush() {
+		flushes++;
+		notifyAll();
+	}
+
+	/**
+	 * End of a flush started by beginFlush
+	 */
+	synchronized void endFlush() {
+		flushes--;
+	}
+
+	/**
+	 * Release the waiting workers and stop watching the network.
+	 * A connectivity given by the application is not closed, it may be given to the next init.
+	 */
+	synchronized void stop() {
+		stopping = true;
+		notifyAll();
+		if ( ownsConnectivity ) {
+			connectivity.close();
+		} else {
+			connectivity.setListener(null);
+		}
+	}
+
+}
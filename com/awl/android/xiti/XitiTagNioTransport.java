@@ -0,0 +1,857 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking http transport: a single selector thread drives every request in flight,
+ * so the number of concurrent requests is not bound to the number of threads.
+ *
+ * sendAsync (and postAsync) start a request and return at once, their Callback is called on the selector thread.
+ * send and post, used by the workers of XitiTag, start a request and wait for its answer.
+ * Connections are kept alive and reused (HTTP/1.1), a request failing on a reused connection
+ * that the server had closed is sent again once on a new connection.
+ * Each request in flight has its own connection: the caller of sendAsync bounds the number of connections.
+ * Server names are resolved on a resolver thread, never on the caller's or the selector thread, and the addresses
+ * are cached for a minute: a slow resolver delays the requests to an unknown server, not the callers.
+ *
+ * Only http urls are supported (Xiti hits are sent over http).
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagNioTransport implements XitiTagTransport {
+
+	/**
+	 * Answer of an asynchronous request. Called on the selector thread: must not block.
+	 */
+	public interface Callback {
+		/**
+		 * @param status http status code of the answer
+		 */
+		void onResponse(int status);
+
+		/**
+		 * @param e cause of the failure (network error, timeout, transport closed)
+		 */
+		void onFailure(IOException e);
+	}
+
+	private final static Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * Maximum number of idle connections kept per server
+	 */
+	private final static int MAX_IDLE_CONNECTIONS = 8;
+
+	/**
+	 * Idle connections are closed after this delay (ms)
+	 */
+	private final static long IDLE_CONNECTION_TIMEOUT = 30000;
+
+	/**
+	 * Maximum time the selector thread sleeps without checking the timeouts (ms)
+	 */
+	private final static long MAX_SELECT_TIMEOUT = 1000;
+
+	/**
+	 * Resolved addresses are looked up again after this delay (ms)
+	 */
+	private final static long RESOLVED_TTL = 60000;
+
+	private final Selector selector;
+
+	/**
+	 * Thread resolving the server names, one name at a time
+	 */
+	private final ExecutorService resolver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "XitiTag-nio-resolver");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Resolved addresses, by unresolved address
+	 */
+	private final ConcurrentHashMap<InetSocketAddress, Resolved> resolved = new ConcurrentHashMap<InetSocketAddress, Resolved>();
+
+	private final Thread selectorThread;
+
+	/**
+	 * Requests waiting to be started by the selector thread
+	 */
+	private final ConcurrentLinkedQueue<Exchange> submitted = new ConcurrentLinkedQueue<Exchange>();
+
+	/**
+	 * Idle connections, by server address. Only used by the selector thread, as the fields below.
+	 */
+	private final HashMap<InetSocketAddress, LinkedList<Connection>> idle = new HashMap<InetSocketAddress, LinkedList<Connection>>();
+
+	/**
+	 * Connections carrying a request
+	 */
+	private final HashSet<Connection> active = new HashSet<Connection>();
+
+	private volatile int connectTimeout;
+	private volatile int readTimeout;
+	private volatile boolean closed;
+
+	/**
+	 * Address resolved by the resolver thread
+	 */
+	private static class Resolved {
+		final InetSocketAddress address;
+		final long expiry;
+
+		Resolved(InetSocketAddress address, long expiry) {
+			this.address = address;
+			this.expiry = expiry;
+		}
+	}
+
+	/**
+	 * One request and its answer
+	 */
+	private static class Exchange {
+		/** unresolved until the resolver thread resolves it */
+		InetSocketAddress address;
+		final ByteBuffer request;
+		final Callback callback;
+		long deadline;
+		boolean retried;
+		ByteBuffer response = ByteBuffer.allocate(1024);
+		int headerEnd = -1;
+		int status;
+		long contentLength = -1;
+		boolean chunked;
+		boolean keepAlive = true;
+		int chunkPosition;
+
+		Exchange(InetSocketAddress address, ByteBuffer request, Callback callback) {
+			this.address = address;
+			this.request = request;
+			this.callback = callback;
+		}
+
+		void reset() {
+			request.rewind();
+			response.clear();
+			headerEnd = -1;
+			contentLength = -1;
+			chunked = false;
+			keepAlive = true;
+		}
+	}
+
+	/**
+	 * A socket to a server, idle or carrying an exchange
+	 */
+	private static class Connection {
+		final InetSocketAddress address;
+		final SocketChannel channel;
+		SelectionKey key;
+		Exchange exchange;
+		boolean reused;
+		long idleSince;
+
+		Connection(InetSocketAddress address, SocketChannel channel) {
+			this.address = address;
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * Callback of the blocking send
+	 */
+	private static class BlockingResult implements Callback {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile int status;
+		private volatile IOException failure;
+
+		@Override
+		public void onResponse(int status) {
+			this.status = status;
+			done.countDown();
+		}
+
+		@Override
+		public void onFailure(IOException e) {
+			this.failure = e;
+			done.countDown();
+		}
+
+		/**
+		 * @param timeout maximum wait (ms), 0 to wait for the selector thread whatever the time
+		 */
+		int await(long timeout) throws IOException {
+			try {
+				if ( timeout == 0 ) {
+					done.await();
+				} else if ( !done.await(timeout, TimeUnit.MILLISECONDS) ) {
+					throw new SocketTimeoutException("No answer from the selector thread after " + timeout + " ms");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the answer");
+			}
+			if ( failure != null ) {
+				throw failure;
+			}
+			return status;
+		}
+	}
+
+	/**
+	 * Open the selector and start its thread
+	 * @param connectTimeout connect timeout in milliseconds (0 means infinite)
+	 * @param readTimeout read timeout in milliseconds (0 means infinite)
+	 * @throws IOException if the selector cannot be opened
+	 */
+	public XitiTagNioTransport(int connectTimeout, int readTimeout) throws IOException {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.selector = Selector.open();
+
+		selectorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "XitiTag-nio");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	@Override
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	@Override
+	public int send(String url) throws IOException {
+		BlockingResult result = new BlockingResult();
+		sendAsync(url, result);
+		return result.await(awaitTimeout());
+	}
+
+	@Override
+	public int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+		BlockingResult result = new BlockingResult();
+		postAsync(url, body, contentType, contentEncoding, result);
+		return result.await(awaitTimeout());
+	}
+
+	/**
+	 * The selector thread fails an exchange past its timeouts: a blocking send waiting longer than the timeouts
+	 * of two attempts (a request is sent again once on a new connection) gives up, whatever became of the exchange.
+	 * @return maximum wait of a blocking send (ms), 0 if a timeout is infinite
+	 */
+	private long awaitTimeout() {
+		int connect = connectTimeout;
+		int read = readTimeout;
+		if ( connect == 0 || read == 0 ) {
+			return 0;
+		}
+		return 2L * ( connect + read ) + MAX_SELECT_TIMEOUT;
+	}
+
+	/**
+	 * Start a request without waiting for its answer.
+	 * The server name is resolved on the resolver thread, unless it was resolved less than a minute ago.
+	 * @param url url of the hit
+	 * @param callback notified of the answer, on the selector thread
+	 * @throws IllegalArgumentException if the url is malformed or is not an http url
+	 */
+	public void sendAsync(String url, Callback callback) {
+		submit(url, null, null, null, callback);
+	}
+
+	/**
+	 * Start a POST request without waiting for its answer.
+	 * @param url url of the collector
+	 * @param body body of the request, already encoded
+	 * @param contentType media type of the body
+	 * @param contentEncoding encoding of the body (e.g. "gzip"), null if none
+	 * @param callback notified of the answer, on the selector thread
+	 * @throws IllegalArgumentException if the url is malformed or is not an http url
+	 */
+	public void postAsync(String url, byte[] body, String contentType, String contentEncoding, Callback callback) {
+		submit(url, body, contentType, contentEncoding, callback);
+	}
+
+	/**
+	 * @param body body of a POST, null for a GET
+	 */
+	private void submit(String url, byte[] body, String contentType, String contentEncoding, Callback callback) {
+
+		URL target;
+		try {
+			target = new URL(url);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+		if ( !"http".equals(target.getProtocol()) || target.getHost().length() == 0 ) {
+			throw new IllegalArgumentException("Not an http url: " + url);
+		}
+
+		int port = target.getPort() > 0 ? target.getPort() : 80;
+		String path = target.getFile().length() > 0 ? target.getFile() : "/";
+		String host = port == 80 ? target.getHost() : target.getHost() + ":" + port;
+
+		StringBuilder header = new StringBuilder(128 + path.length());
+		header.append(body != null ? "POST " : "GET ").append(path).append(" HTTP/1.1\r\n")
+				.append("Host: ").append(host).append("\r\n")
+				.append("Accept: */*\r\n")
+				.append("Connection: keep-alive\r\n");
+		if ( body != null ) {
+			header.append("Content-Type: ").append(contentType).append("\r\n");
+			if ( contentEncoding != null ) {
+				header.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+			}
+			header.append("Content-Length: ").append(body.length).append("\r\n");
+		}
+		header.append("\r\n");
+
+		byte[] headerBytes = header.toString().getBytes(ASCII);
+		ByteBuffer request = ByteBuffer.allocate(headerBytes.length + ( body != null ? body.length : 0 ));
+		request.put(headerBytes);
+		if ( body != null ) {
+			request.put(body);
+		}
+		request.flip();
+
+		Exchange exchange = new Exchange(InetSocketAddress.createUnresolved(target.getHost(), port), request, callback);
+
+		if ( closed ) {
+			callback.onFailure(new IOException("Transport closed"));
+			return;
+		}
+
+		Resolved address = resolved.get(exchange.address);
+		if ( address != null && address.expiry > System.currentTimeMillis() ) {
+			exchange.address = address.address;
+			offer(exchange);
+		} else {
+			resolve(exchange);
+		}
+	}
+
+	/**
+	 * Resolve the server of an exchange on the resolver thread, then hand the exchange to the selector thread
+	 */
+	private void resolve(final Exchange exchange) {
+
+		Runnable lookup = new Runnable() {
+			@Override
+			public void run() {
+
+				if ( closed ) {
+					exchange.callback.onFailure(new IOException("Transport closed"));
+					return;
+				}
+
+				// resolved by the lookup of an exchange queued before this one
+				InetSocketAddress unresolved = exchange.address;
+				long now = System.currentTimeMillis();
+				Resolved address = resolved.get(unresolved);
+				if ( address == null || address.expiry <= now ) {
+					InetSocketAddress lookedUp = new InetSocketAddress(unresolved.getHostName(), unresolved.getPort());
+					if ( lookedUp.isUnresolved() ) {
+						exchange.callback.onFailure(new UnknownHostException(unresolved.getHostName()));
+						return;
+					}
+					address = new Resolved(lookedUp, now + RESOLVED_TTL);
+					resolved.put(unresolved, address);
+				}
+
+				exchange.address = address.address;
+				offer(exchange);
+			}
+		};
+
+		try {
+			resolver.execute(lookup);
+		} catch (RejectedExecutionException e) {
+			// closed meanwhile
+			exchange.callback.onFailure(new IOException("Transport closed"));
+		}
+	}
+
+	/**
+	 * Hand an exchange whose address is resolved to the selector thread
+	 */
+	private void offer(Exchange exchange) {
+
+		submitted.offer(exchange);
+		selector.wakeup();
+
+		if ( closed && submitted.remove(exchange) ) {
+			// the selector loop may have failed the submitted exchanges already
+			exchange.callback.onFailure(new IOException("Transport closed"));
+		}
+	}
+
+	/**
+	 * Fail the requests in flight and close the connections
+	 */
+	@Override
+	public void close() {
+
+		closed = true;
+		selector.wakeup();
+		// the lookups in progress fail their exchange once done
+		resolver.shutdown();
+
+		if ( Thread.currentThread() != selectorThread ) {
+			try {
+				selectorThread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Selector loop: starts the submitted requests, moves the ready connections forward and expires the late ones.
+	 */
+	private void loop() {
+
+		while ( !closed ) {
+			try {
+				selector.select(nextTimeout());
+
+				Exchange exchange;
+				while ( (exchange = submitted.poll()) != null ) {
+					start(exchange);
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while ( keys.hasNext() ) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if ( key.isValid() ) {
+						handle((Connection) key.attachment());
+					}
+				}
+
+				expire();
+			} catch (IOException e) {
+				// the selector itself failed: nothing can be sent anymore
+				closed = true;
+			} catch (RuntimeException e) {
+				// a callback failed, keep serving the other requests
+			}
+		}
+
+		IOException closedException = new IOException("Transport closed");
+
+		Exchange exchange;
+		while ( (exchange = submitted.poll()) != null ) {
+			exchange.callback.onFailure(closedException);
+		}
+		for ( Connection connection : new ArrayList<Connection>(active) ) {
+			fail(connection, closedException);
+		}
+		for ( LinkedList<Connection> connections : idle.values() ) {
+			for ( Connection connection : connections ) {
+				closeQuietly(connection);
+			}
+		}
+		idle.clear();
+
+		try {
+			selector.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Send an exchange on an idle connection to its server, or on a new one
+	 */
+	private void start(Exchange exchange) {
+
+		long now = System.currentTimeMillis();
+		Connection connection = takeIdle(exchange.address);
+
+		try {
+			if ( connection != null ) {
+				connection.key.interestOps(SelectionKey.OP_WRITE);
+				exchange.deadline = deadline(now, readTimeout);
+			} else {
+				SocketChannel channel = SocketChannel.open();
+				connection = new Connection(exchange.address, channel);
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				boolean connected = channel.connect(exchange.address);
+				connection.key = channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, connection);
+				exchange.deadline = deadline(now, connected ? readTimeout : connectTimeout);
+			}
+		} catch (IOException e) {
+			if ( connection != null ) {
+				closeQuietly(connection);
+			}
+			exchange.callback.onFailure(e);
+			return;
+		} catch (RuntimeException e) {
+			// e.g. UnresolvedAddressException, which the loop would swallow, leaving the caller waiting
+			if ( connection != null ) {
+				closeQuietly(connection);
+			}
+			exchange.callback.onFailure(new IOException("Cannot connect to " + exchange.address, e));
+			return;
+		}
+
+		connection.exchange = exchange;
+		active.add(connection);
+	}
+
+	/**
+	 * Move a ready connection forward: finish connecting, write the request, read the answer
+	 */
+	private void handle(Connection connection) {
+
+		Exchange exchange = connection.exchange;
+		SelectionKey key = connection.key;
+
+		if ( exchange == null ) {
+			// an idle connection is readable: the server closed it
+			LinkedList<Connection> connections = idle.get(connection.address);
+			if ( connections != null ) {
+				connections.remove(connection);
+			}
+			closeQuietly(connection);
+			return;
+		}
+
+		try {
+			long now = System.currentTimeMillis();
+
+			if ( key.isConnectable() ) {
+				if ( connection.channel.finishConnect() ) {
+					key.interestOps(SelectionKey.OP_WRITE);
+					exchange.deadline = deadline(now, readTimeout);
+				}
+				return;
+			}
+
+			if ( key.isWritable() ) {
+				connection.channel.write(exchange.request);
+				if ( !exchange.request.hasRemaining() ) {
+					key.interestOps(SelectionKey.OP_READ);
+				}
+				exchange.deadline = deadline(now, readTimeout);
+				return;
+			}
+
+			if ( key.isReadable() ) {
+				if ( !exchange.response.hasRemaining() ) {
+					ByteBuffer grown = ByteBuffer.allocate(exchange.response.capacity() * 2);
+					exchange.response.flip();
+					grown.put(exchange.response);
+					exchange.response = grown;
+				}
+
+				int read = connection.channel.read(exchange.response);
+				exchange.deadline = deadline(now, readTimeout);
+
+				if ( parse(exchange, read < 0) ) {
+					complete(connection, read >= 0);
+				}
+			}
+		} catch (IOException e) {
+			if ( connection.reused && !exchange.retried && exchange.response.position() == 0 ) {
+				// the server closed the kept alive connection meanwhile: try a new one
+				exchange.retried = true;
+				exchange.reset();
+				active.remove(connection);
+				closeQuietly(connection);
+				start(exchange);
+				return;
+			}
+			fail(connection, e);
+		}
+	}
+
+	/**
+	 * Parse what was read of the answer
+	 * @param exchange exchange being read
+	 * @param eof true if the server closed the connection
+	 * @return true if the answer is complete
+	 * @throws IOException if the answer is malformed, or the connection was closed too early
+	 */
+	private static boolean parse(Exchange exchange, boolean eof) throws IOException {
+
+		byte[] data = exchange.response.array();
+		int length = exchange.response.position();
+
+		if ( exchange.headerEnd < 0 ) {
+			int end = indexOf(data, 0, length, "\r\n\r\n");
+			if ( end < 0 ) {
+				if ( eof ) {
+					throw new IOException("Connection closed before the answer");
+				}
+				return false;
+			}
+			parseHeader(exchange, new String(data, 0, end, ASCII));
+			exchange.headerEnd = end + 4;
+			exchange.chunkPosition = exchange.headerEnd;
+		}
+
+		if ( exchange.contentLength >= 0 ) {
+			if ( length - exchange.headerEnd >= exchange.contentLength ) {
+				return true;
+			}
+		} else if ( exchange.chunked ) {
+			if ( chunksComplete(exchange, data, length) ) {
+				return true;
+			}
+		} else if ( eof ) {
+			// body delimited by the end of the connection
+			exchange.keepAlive = false;
+			return true;
+		}
+
+		if ( eof ) {
+			throw new IOException("Connection closed before the end of the answer");
+		}
+		return false;
+	}
+
+	private static void parseHeader(Exchange exchange, String header) throws IOException {
+
+		String[] lines = header.split("\r\n");
+		String[] statusLine = lines[0].split(" ");
+		if ( statusLine.length < 2 || !statusLine[0].startsWith("HTTP/") ) {
+			throw new IOException("Malformed status line: " + lines[0]);
+		}
+		try {
+			exchange.status = Integer.parseInt(statusLine[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed status line: " + lines[0]);
+		}
+		exchange.keepAlive = !"HTTP/1.0".equals(statusLine[0]);
+
+		for ( int i = 1; i < lines.length; i++ ) {
+			int colon = lines[i].indexOf(':');
+			if ( colon < 0 ) {
+				continue;
+			}
+			String name = lines[i].substring(0, colon).trim();
+			String value = lines[i].substring(colon + 1).trim();
+			if ( name.equalsIgnoreCase("Content-Length") ) {
+				try {
+					exchange.contentLength = Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed Content-Length: " + value);
+				}
+			} else if ( name.equalsIgnoreCase("Transfer-Encoding") ) {
+				exchange.chunked = value.equalsIgnoreCase("chunked");
+			} else if ( name.equalsIgnoreCase("Connection") ) {
+				exchange.keepAlive = value.equalsIgnoreCase("keep-alive") || ( exchange.keepAlive && !value.equalsIgnoreCase("close") );
+			}
+		}
+
+		if ( exchange.status == 204 || exchange.status == 304 || exchange.status / 100 == 1 ) {
+			exchange.contentLength = 0;
+		}
+	}
+
+	/**
+	 * @return true once the last chunk and the trailer of a chunked body are read
+	 */
+	private static boolean chunksComplete(Exchange exchange, byte[] data, int length) throws IOException {
+
+		while ( true ) {
+			int position = exchange.chunkPosition;
+			int lineEnd = indexOf(data, position, length, "\r\n");
+			if ( lineEnd < 0 ) {
+				return false;
+			}
+
+			String sizeLine = new String(data, position, lineEnd - position, ASCII);
+			int extension = sizeLine.indexOf(';');
+			long size;
+			try {
+				size = Long.parseLong((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed chunk size: " + sizeLine);
+			}
+
+			if ( size == 0 ) {
+				// last chunk: an empty line, or trailers ending with an empty line
+				int trailer = lineEnd + 2;
+				if ( length - trailer >= 2 && data[trailer] == '\r' && data[trailer + 1] == '\n' ) {
+					return true;
+				}
+				return indexOf(data, trailer, length, "\r\n\r\n") >= 0;
+			}
+
+			long next = lineEnd + 2 + size + 2;
+			if ( next > length ) {
+				return false;
+			}
+			exchange.chunkPosition = (int) next;
+		}
+	}
+
+	/**
+	 * An answer was read: give the connection back to the pool and notify the callback
+	 * @param reusable false if the server closed the connection
+	 */
+	private void complete(Connection connection, boolean reusable) {
+
+		Exchange exchange = connection.exchange;
+		active.remove(connection);
+		connection.exchange = null;
+
+		LinkedList<Connection> connections = idle.get(connection.address);
+		if ( connections == null ) {
+			connections = new LinkedList<Connection>();
+			idle.put(connection.address, connections);
+		}
+
+		if ( reusable && exchange.keepAlive && connections.size() < MAX_IDLE_CONNECTIONS ) {
+			// watch the idle connection to notice when the server closes it
+			connection.key.interestOps(SelectionKey.OP_READ);
+			connection.reused = true;
+			connection.idleSince = System.currentTimeMillis();
+			connections.add(connection);
+		} else {
+			closeQuietly(connection);
+		}
+
+		exchange.callback.onResponse(exchange.status);
+	}
+
+	private void fail(Connection connection, IOException e) {
+		active.remove(connection);
+		closeQuietly(connection);
+		if ( connection.exchange != null ) {
+			connection.exchange.callback.onFailure(e);
+			connection.exchange = null;
+		}
+	}
+
+	/**
+	 * Fail the exchanges past their deadline and close the connections idle for too long
+	 */
+	private void expire() {
+
+		long now = System.currentTimeMillis();
+
+		for ( Connection connection : new ArrayList<Connection>(active) ) {
+			if ( now >= connection.exchange.deadline ) {
+				fail(connection, new SocketTimeoutException(connection.channel.isConnected() ? "Read timed out" : "Connect timed out"));
+			}
+		}
+
+		for ( LinkedList<Connection> connections : idle.values() ) {
+			Iterator<Connection> it = connections.iterator();
+			while ( it.hasNext() ) {
+				Connection connection = it.next();
+				if ( now - connection.idleSince >= IDLE_CONNECTION_TIMEOUT ) {
+					it.remove();
+					closeQuietly(connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return time until the nearest deadline (ms), between 1 and MAX_SELECT_TIMEOUT
+	 */
+	private long nextTimeout() {
+
+		long now = System.currentTimeMillis();
+		long timeout = MAX_SELECT_TIMEOUT;
+		for ( Connection connection : active ) {
+			timeout = Math.min(timeout, connection.exchange.deadline - now);
+		}
+		return Math.max(1, timeout);
+	}
+
+	private Connection takeIdle(InetSocketAddress address) {
+
+		LinkedList<Connection> connections = idle.get(address);
+		while ( connections != null && !connections.isEmpty() ) {
+			Connection connection = connections.removeLast();
+			if ( connection.key.isValid() && connection.channel.isConnected() ) {
+				return connection;
+			}
+			closeQuietly(connection);
+		}
+		return null;
+	}
+
+	private static long deadline(long now, int timeout) {
+		return timeout > 0 ? now + timeout : Long.MAX_VALUE;
+	}
+
+	private static int indexOf(byte[] data, int from, int to, String pattern) {
+
+		int last = to - pattern.length();
+		for ( int i = from; i <= last; i++ ) {
+			int j = 0;
+			while ( j < pattern.length() && data[i + j] == pattern.charAt(j) ) {
+				j++;
+			}
+			if ( j == pattern.length() ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void closeQuietly(Connection connection) {
+		if ( connection.key != null ) {
+			connection.key.cancel();
+		}
+		try {
+			connection.channel.close();
+		} catch (IOException e) {}
+	}
+
+}
@@ -18,15 +18,33 @@
 
 package com.awl.android.xiti;
 
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
 /**
  * Operation to send Xiti stats.
  * 
+ * A hit is captured as a raw event (page, action type, subsite and time) when it is tagged.
+ * Its url is only built by the worker sending it (see XitiTag.buildUrl) and is not kept in the queue.
+ * The page and subsite names are shared between the queued operations (see XitiTagHitCodec.intern).
+ * 
  * @author Cyril Cauchois
  */
 public class XitiTagOperation {
 	
 	private String operation;
+	private XitiTagTracker tracker;
+	private String page;
+	private XitiTagActionType actionType;
 	private String subsiteId;
+	private String orderingKey;
+	private long creationTime;
+	private float sampleRate = 1;
+	private long sessionId;
+	private int sessionSequence;
+	private String previousPage;
+	private long previousPageDuration = -1;
+	private long journalSegment = -1;
+	private long journalSequence = -1;
 	
 	public XitiTagOperation(String operation) {
 		this(operation, null);
@@ -35,14 +53,176 @@ public class XitiTagOperation {
 	public XitiTagOperation(String operation, String subsiteId) {
 		this.operation = operation;
 		this.subsiteId = subsiteId;
+		this.creationTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Capture a hit. Nothing is built or encoded here, this is called on the thread tagging the hit.
+	 * @param page name of the page or of the action
+	 * @param actionType type of the action, null for a page hit
+	 * @param subsiteId subsite id of the hit, can be null
+	 * @param orderingKey operations with the same key are sent in the order they were queued. null if the order does not matter.
+	 * @param creationTime time the hit was tagged (ms)
+	 */
+	public XitiTagOperation(String page, XitiTagActionType actionType, String subsiteId, String orderingKey, long creationTime) {
+		this(null, page, actionType, subsiteId, orderingKey, creationTime);
+	}
+
+	/**
+	 * Capture a hit of a given site.
+	 * @param tracker site of the hit, null for the default tracker of XitiTag
+	 * @see #XitiTagOperation(String, XitiTagActionType, String, String, long)
+	 */
+	XitiTagOperation(XitiTagTracker tracker, String page, XitiTagActionType actionType, String subsiteId, String orderingKey, long creationTime) {
+		this.tracker = tracker;
+		this.page = XitiTagHitCodec.intern(page);
+		this.actionType = actionType;
+		this.subsiteId = XitiTagHitCodec.intern(subsiteId);
+		this.orderingKey = XitiTagHitCodec.intern(orderingKey);
+		this.creationTime = creationTime;
 	}
 	
+	/**
+	 * @return url of the operation, null for a captured hit (its url is built when it is sent)
+	 */
 	public String getOperation() {
 		return operation;
 	}
 
+	/**
+	 * @return site of the hit, null for the default tracker of XitiTag
+	 */
+	XitiTagTracker getTracker() {
+		return tracker;
+	}
+
+	/**
+	 * @return name of the page or of the action, null if the operation was created from an url
+	 */
+	public String getPage() {
+		return page;
+	}
+
+	/**
+	 * @return type of the action, null for a page hit
+	 */
+	public XitiTagActionType getActionType() {
+		return actionType;
+	}
+
 	public String getSubsiteId() {
 		return subsiteId;
 	}
 
+	public String getOrderingKey() {
+		return orderingKey;
+	}
+
+	/**
+	 * @return true if other is the same hit regardless of the time it was tagged (used to coalesce duplicates)
+	 */
+	public boolean isSameHit(XitiTagOperation other) {
+		if ( page == null ) {
+			return operation != null && operation.equals(other.operation);
+		}
+		return page.equals(other.page) && actionType == other.actionType
+				&& ( tracker == null ? other.tracker == null : tracker.isSameSite(other.tracker) )
+				&& ( subsiteId == null ? other.subsiteId == null : subsiteId.equals(other.subsiteId) );
+	}
+
+	/**
+	 * @return hash consistent with isSameHit
+	 */
+	int hitHash() {
+		if ( page == null ) {
+			return operation != null ? operation.hashCode() : 0;
+		}
+		return hitHash(tracker, page, actionType, subsiteId);
+	}
+
+	/**
+	 * Hash of a hit before its operation is created
+	 * @return hash consistent with isSameHit
+	 */
+	static int hitHash(XitiTagTracker tracker, String page, XitiTagActionType actionType, String subsiteId) {
+		int hash = page != null ? page.hashCode() : 0;
+		hash = 31 * hash + ( actionType != null ? actionType.ordinal() + 1 : 0 );
+		hash = 31 * hash + ( subsiteId != null ? subsiteId.hashCode() : 0 );
+		hash = 31 * hash + ( tracker != null ? tracker.getSiteId().hashCode() : 0 );
+		// spread the high bits, the tables are indexed by the low ones
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * @return fraction of the hits of this kind that are sent (see XitiTagConfig.setActionSampleRate), 1 if not sampled
+	 */
+	public float getSampleRate() {
+		return sampleRate;
+	}
+
+	void setSampleRate(float sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * @return id of the session of the hit (see XitiTagConfig.setSessionTimeout), 0 if none
+	 */
+	public long getSessionId() {
+		return sessionId;
+	}
+
+	/**
+	 * @return sequence number of the hit in its session, from 1. 0 if no session.
+	 */
+	public int getSessionSequence() {
+		return sessionSequence;
+	}
+
+	/**
+	 * @return page tagged before this hit in the session (for an action, the page of the action), null if none
+	 */
+	public String getPreviousPage() {
+		return previousPage;
+	}
+
+	/**
+	 * @return time spent on the previous page when the hit was tagged (ms), -1 if no previous page
+	 */
+	public long getPreviousPageDuration() {
+		return previousPageDuration;
+	}
+
+	void setSession(long sessionId, int sessionSequence, String previousPage, long previousPageDuration) {
+		this.sessionId = sessionId;
+		this.sessionSequence = sessionSequence;
+		this.previousPage = previousPage;
+		this.previousPageDuration = previousPageDuration;
+	}
+
+	/**
+	 * @return time this operation was created, i.e. the time the hit was tagged (ms)
+	 */
+	public long getCreationTime() {
+		return creationTime;
+	}
+
+	/**
+	 * @return journal segment holding this operation, -1 if not journaled
+	 */
+	long getJournalSegment() {
+		return journalSegment;
+	}
+
+	/**
+	 * @return journal sequence of this operation, -1 if not journaled
+	 */
+	long getJournalSequence() {
+		return journalSequence;
+	}
+
+	void setJournalPosition(long journalSegment, long journalSequence) {
+		this.journalSegment = journalSegment;
+		this.journalSequence = journalSequence;
+	}
+
 }
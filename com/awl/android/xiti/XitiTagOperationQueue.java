@@ -0,0 +1,550 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+import com.awl.android.xiti.XitiTagConfig.XitiTagPriority;
+
+/**
+ * Bounded operation queue whose non blocking offer is lock-free,
+ * so that tagging a hit never waits for a lock held by a worker.
+ *
+ * Operations are kept in one ConcurrentLinkedQueue per XitiTagPriority (a lane), plus a last lane for the signals
+ * (END_SIGNAL), which is only served when the hit lanes are empty.
+ * Two semaphores count the free room and the available operations of all the lanes:
+ * offer takes a room permit (a CAS) and releases an operation permit, the workers do the opposite.
+ * The signals take no room, so that stopping never waits for a full queue to drain.
+ * An operation permit is only released once its operation is in its lane,
+ * so a worker holding a permit always finds an operation in one of the lanes.
+ *
+ * The hits sharing an ordering key are queued in the lane of the first of them still queued, whatever their own priority:
+ * a download click never overtakes the page hit it follows. The lane of each queued key is kept with a count of its hits,
+ * taken and given back with CAS, so offer stays lock-free.
+ *
+ * The workers take the operations under a lock, the removal of each operation and the claim of its ordering key
+ * (see Claimer) being one step: two operations of a key are always claimed in the order they were queued.
+ *
+ * The workers serve the lanes in a weighted round robin (see XitiTagConfig.setLaneWeights), falling back
+ * to the highest non empty lane when the lane of their turn is empty. A lane with hits waiting that was not served
+ * for XitiTagConfig.getMaxLaneWait() is served first. While XitiTag is flushed or terminated,
+ * the lanes are served in strict priority order, so the high priority hits go out first.
+ *
+ * @author Cyril Cauchois
+ */
+class XitiTagOperationQueue implements Iterable<XitiTagOperation> {
+
+	private final static int HIT_LANES = XitiTagPriority.values().length;
+
+	/**
+	 * Lane of the signals, served last
+	 */
+	private final static int SIGNAL_LANE = HIT_LANES;
+
+	/**
+	 * Operations of each lane, indexed by XitiTagPriority ordinal, then the signals
+	 */
+	private final ConcurrentLinkedQueue<XitiTagOperation>[] lanes;
+
+	/**
+	 * One permit per operation in the queue
+	 */
+	private final Semaphore available = new Semaphore(0);
+
+	/**
+	 * One permit per free room in the queue
+	 */
+	private final Semaphore room;
+
+	/**
+	 * Lane of the page hits
+	 */
+	private final int pageLane;
+
+	/**
+	 * Lane of the actions, indexed by XitiTagActionType ordinal
+	 */
+	private final int[] actionLanes;
+
+	/**
+	 * Lane of the queued hits of each ordering key
+	 */
+	private final ConcurrentHashMap<String, KeyLane> keyLanes = new ConcurrentHashMap<String, KeyLane>();
+
+	/**
+	 * Lane to serve first at each turn of the round robin, each lane appearing as many times as its weight
+	 */
+	private final int[] schedule;
+
+	private final AtomicLong turn = new AtomicLong();
+
+	/**
+	 * Last time each hit lane was served (ms)
+	 */
+	private final AtomicLongArray lastServed = new AtomicLongArray(HIT_LANES);
+
+	private final long maxLaneWait;
+
+	/**
+	 * Serve the lanes in strict priority order
+	 */
+	private volatile boolean strictPriority;
+
+	/**
+	 * Claims the operations taken, null if they are not claimed
+	 */
+	private final Claimer claimer;
+
+	/**
+	 * Held while an operation is taken and claimed
+	 */
+	private final Object takeLock = new Object();
+
+	/**
+	 * Takes the ordering key of each operation taken from the queue
+	 */
+	interface Claimer {
+
+		/**
+		 * Called by the worker taking an operation, with the lock of the queue held.
+		 * @param operation operation taken
+		 * @return true if the worker owns the operation, false if it was handed over to the owner of its key
+		 */
+		boolean claim(XitiTagOperation operation);
+	}
+
+	/**
+	 * @param config capacity of the queue, priorities of the hits, weights of the lanes and starvation limit
+	 */
+	XitiTagOperationQueue(XitiTagConfig config) {
+		this(config, null);
+	}
+
+	/**
+	 * @param config capacity of the queue, priorities of the hits, weights of the lanes and starvation limit
+	 * @param claimer claims the operations taken, null to return every operation taken
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	XitiTagOperationQueue(XitiTagConfig config, Claimer claimer) {
+
+		this.claimer = claimer;
+
+		room = new Semaphore(config.getQueueCapacity());
+
+		lanes = new ConcurrentLinkedQueue[HIT_LANES + 1];
+		for ( int i = 0; i < lanes.length; i++ ) {
+			lanes[i] = new ConcurrentLinkedQueue<XitiTagOperation>();
+		}
+
+		pageLane = config.getPagePriority().ordinal();
+		XitiTagActionType[] actionTypes = XitiTagActionType.values();
+		actionLanes = new int[actionTypes.length];
+		for ( int i = 0; i < actionTypes.length; i++ ) {
+			actionLanes[i] = config.getActionPriority(actionTypes[i]).ordinal();
+		}
+
+		schedule = buildSchedule(config);
+		maxLaneWait = config.getMaxLaneWait();
+
+		long now = System.currentTimeMillis();
+		for ( int i = 0; i < HIT_LANES; i++ ) {
+			lastServed.set(i, now);
+		}
+	}
+
+	/**
+	 * Interleave the lanes according to their weights (smooth weighted round robin),
+	 * e.g. weights 4, 2, 1 give H N H L H N H
+	 */
+	private static int[] buildSchedule(XitiTagConfig config) {
+
+		XitiTagPriority[] priorities = XitiTagPriority.values();
+		int[] weights = new int[HIT_LANES];
+		int total = 0;
+		for ( int i = 0; i < HIT_LANES; i++ ) {
+			weights[i] = config.getLaneWeight(priorities[i]);
+			total += weights[i];
+		}
+
+		int[] schedule = new int[total];
+		int[] current = new int[HIT_LANES];
+		for ( int slot = 0; slot < total; slot++ ) {
+			int best = 0;
+			for ( int i = 0; i < HIT_LANES; i++ ) {
+				current[i] += weights[i];
+				if ( current[i] > current[best] ) {
+					best = i;
+				}
+			}
+			current[best] -= total;
+			schedule[slot] = best;
+		}
+
+		return schedule;
+	}
+
+	/**
+	 * Queue an operation if there is room, without blocking
+	 * @return true if the operation was queued
+	 */
+	boolean offer(XitiTagOperation operation) {
+
+		if ( !room.tryAcquire() ) {
+			return false;
+		}
+
+		add(operation, enterLane(operation));
+		return true;
+	}
+
+	/**
+	 * Queue an operation, waiting for room at most the given time
+	 * @return true if the operation was queued
+	 */
+	boolean offer(XitiTagOperation operation, long timeout, TimeUnit unit) throws InterruptedException {
+
+		if ( !room.tryAcquire(timeout, unit) ) {
+			return false;
+		}
+
+		add(operation, enterLane(operation));
+		return true;
+	}
+
+	/**
+	 * Queue an operation, waiting for room
+	 */
+	void put(XitiTagOperation operation) throws InterruptedException {
+		room.acquire();
+		add(operation, enterLane(operation));
+	}
+
+	/**
+	 * Queue a signal behind every hit. It takes no room, so it never waits, even when the queue is full.
+	 */
+	void addSignal(XitiTagOperation signal) {
+		add(signal, SIGNAL_LANE);
+	}
+
+	/**
+	 * @param strictPriority true to serve the lanes in strict priority order (while flushing), false for the weighted round robin
+	 */
+	void setStrictPriority(boolean strictPriority) {
+		this.strictPriority = strictPriority;
+	}
+
+	/**
+	 * Take the next operation owned by the caller, waiting for one
+	 */
+	XitiTagOperation take() throws InterruptedException {
+		while ( true ) {
+			available.acquire();
+			XitiTagOperation operation = remove();
+			if ( operation != null ) {
+				return operation;
+			}
+		}
+	}
+
+	/**
+	 * @return the next operation owned by the caller, null if the queue is empty
+	 */
+	XitiTagOperation poll() {
+		while ( available.tryAcquire() ) {
+			XitiTagOperation operation = remove();
+			if ( operation != null ) {
+				return operation;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the next operation owned by the caller, null if the queue stays empty for the given time
+	 */
+	XitiTagOperation poll(long timeout, TimeUnit unit) throws InterruptedException {
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while ( available.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) ) {
+			XitiTagOperation operation = remove();
+			if ( operation != null ) {
+				return operation;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Take the oldest hit of the lowest priority lane, to make room for the given hit.
+	 * Hits of a higher priority than the given hit, and the signals, are never taken.
+	 * @return the hit taken, null if there is none
+	 */
+	XitiTagOperation pollLowest(XitiTagOperation operation) {
+
+		if ( !available.tryAcquire() ) {
+			return null;
+		}
+
+		for ( int lane = HIT_LANES - 1; lane >= laneOf(operation); lane-- ) {
+			XitiTagOperation lowest = lanes[lane].poll();
+			if ( lowest != null ) {
+				leaveLane(lowest);
+				room.release();
+				return lowest;
+			}
+		}
+
+		available.release();
+		return null;
+	}
+
+	/**
+	 * Remove a given operation
+	 * @return true if the operation was in the queue
+	 */
+	boolean remove(XitiTagOperation operation) {
+
+		if ( !available.tryAcquire() ) {
+			return false;
+		}
+
+		for ( int lane = 0; lane < lanes.length; lane++ ) {
+			if ( lanes[lane].remove(operation) ) {
+				leaveLane(operation);
+				if ( lane < HIT_LANES ) {
+					room.release();
+				}
+				return true;
+			}
+		}
+
+		available.release();
+		return false;
+	}
+
+	/**
+	 * @return number of operations in the queue
+	 */
+	int size() {
+		return available.availablePermits();
+	}
+
+	/**
+	 * @param priority priority of the lane
+	 * @return number of hits in the lane (a weakly consistent count)
+	 */
+	int size(XitiTagPriority priority) {
+		return lanes[priority.ordinal()].size();
+	}
+
+	/**
+	 * @return weakly consistent iterator over the queued operations, lane after lane
+	 */
+	@Override
+	public Iterator<XitiTagOperation> iterator() {
+		return new Iterator<XitiTagOperation>() {
+
+			private int lane = 0;
+			private Iterator<XitiTagOperation> current = lanes[0].iterator();
+
+			@Override
+			public boolean hasNext() {
+				while ( !current.hasNext() && lane < lanes.length - 1 ) {
+					current = lanes[++lane].iterator();
+				}
+				return current.hasNext();
+			}
+
+			@Override
+			public XitiTagOperation next() {
+				if ( !hasNext() ) {
+					throw new NoSuchElementException();
+				}
+				return current.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return lane of the priority of an operation
+	 */
+	private int laneOf(XitiTagOperation operation) {
+		XitiTagActionType actionType = operation.getActionType();
+		return actionType != null ? actionLanes[actionType.ordinal()] : pageLane;
+	}
+
+	/**
+	 * Count an operation about to be queued in the lane of its ordering key
+	 * @return lane of the hits of the same key already queued, the lane of its priority if there is none
+	 */
+	private int enterLane(XitiTagOperation operation) {
+
+		String key = operation.getOrderingKey();
+		if ( key == null ) {
+			return laneOf(operation);
+		}
+
+		while ( true ) {
+			KeyLane keyLane = keyLanes.get(key);
+			if ( keyLane == null ) {
+				keyLane = new KeyLane(laneOf(operation));
+				KeyLane previous = keyLanes.putIfAbsent(key, keyLane);
+				if ( previous == null ) {
+					return keyLane.lane;
+				}
+				keyLane = previous;
+			}
+			if ( keyLane.enter() ) {
+				return keyLane.lane;
+			}
+			// the last hit of the key was just taken, the next one starts a new lane
+			keyLanes.remove(key, keyLane);
+		}
+	}
+
+	/**
+	 * Uncount an operation taken from the queue
+	 */
+	private void leaveLane(XitiTagOperation operation) {
+
+		String key = operation.getOrderingKey();
+		if ( key == null ) {
+			return;
+		}
+
+		// the entry of the key cannot change while one of its hits is counted
+		KeyLane keyLane = keyLanes.get(key);
+		if ( keyLane != null && keyLane.leave() ) {
+			keyLanes.remove(key, keyLane);
+		}
+	}
+
+	private void add(XitiTagOperation operation, int lane) {
+		if ( lane < HIT_LANES && lanes[lane].isEmpty() ) {
+			// the wait of a lane starts with its first hit
+			lastServed.set(lane, System.currentTimeMillis());
+		}
+		lanes[lane].offer(operation);
+		available.release();
+	}
+
+	/**
+	 * Remove the next operation and claim it. The caller holds an operation permit.
+	 * @return the operation removed, null if it was handed over to the owner of its key
+	 */
+	private XitiTagOperation remove() {
+
+		synchronized ( takeLock ) {
+
+			while ( true ) {
+
+				int first = nextLane();
+				XitiTagOperation operation = lanes[first].poll();
+
+				// the lane of this turn is empty, fall back to the highest non empty lane
+				for ( int lane = 0; operation == null && lane < lanes.length; lane++ ) {
+					operation = lanes[lane].poll();
+					first = lane;
+				}
+
+				// null if a hit was dropped (pollLowest) while we were looking at its lane, look again
+				if ( operation != null ) {
+					leaveLane(operation);
+					if ( first < HIT_LANES ) {
+						room.release();
+						lastServed.set(first, System.currentTimeMillis());
+					}
+					return claimer == null || claimer.claim(operation) ? operation : null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return lane to serve first
+	 */
+	private int nextLane() {
+
+		if ( strictPriority ) {
+			return 0;
+		}
+
+		// starvation protection, the low priority lanes first
+		long now = System.currentTimeMillis();
+		for ( int lane = HIT_LANES - 1; lane > 0; lane-- ) {
+			if ( now - lastServed.get(lane) > maxLaneWait && !lanes[lane].isEmpty() ) {
+				return lane;
+			}
+		}
+
+		return schedule[(int) (turn.getAndIncrement() % schedule.length)];
+	}
+
+	/**
+	 * Lane of the queued hits of an ordering key and their number, retired once it drops to 0
+	 */
+	private static final class KeyLane {
+
+		final int lane;
+
+		private final AtomicInteger count = new AtomicInteger(1);
+
+		KeyLane(int lane) {
+			this.lane = lane;
+		}
+
+		/**
+		 * @return false if the lane is retired
+		 */
+		boolean enter() {
+			while ( true ) {
+				int current = count.get();
+				if ( current == 0 ) {
+					return false;
+				}
+				if ( count.compareAndSet(current, current + 1) ) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return true if it was the last hit of the lane, which is now retired
+		 */
+		boolean leave() {
+			return count.decrementAndGet() == 0;
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.util.Random;
+
+/**
+ * Decides if and when a failed hit is sent again.
+ *
+ * Only retryable failures are retried (I/O errors, timeouts, 408, 429 and 5xx answers),
+ * at most XitiTagConfig.getMaxAttempts() times per hit, after an exponential backoff with full jitter:
+ * a random delay between 0 and min(maxDelay, baseDelay * 2^(attempt-1)).
+ *
+ * Retries also draw from a budget shared by all hits, refilled by a fraction of every first attempt,
+ * so that a failing collector does not get several times the normal traffic.
+ *
+ * @author Cyril Cauchois
+ */
+class XitiTagRetryPolicy {
+
+	/**
+	 * Outcome of an attempt to send a hit
+	 */
+	enum Outcome {
+		/** Xiti answered */
+		SENT,
+		/** the hit may go through later (I/O error, timeout, server error) */
+		RETRYABLE_FAILURE,
+		/** the hit will never go through (invalid url, client error) */
+		PERMANENT_FAILURE
+	}
+
+	/**
+	 * Maximum number of retries kept in the budget
+	 */
+	private final static double MAX_BUDGET = 10;
+
+	private final int maxAttempts;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final double budgetRatio;
+
+	/**
+	 * Retries currently allowed
+	 */
+	private double budget = MAX_BUDGET;
+
+	private final Random random = new Random();
+
+	/**
+	 * @param config retry configuration
+	 */
+	XitiTagRetryPolicy(XitiTagConfig config) {
+		this.maxAttempts = config.getMaxAttempts();
+		this.baseDelay = config.getRetryBaseDelay();
+		this.maxDelay = config.getRetryMaxDelay();
+		this.budgetRatio = config.getRetryBudgetRatio();
+	}
+
+	/**
+	 * Classify an http status code
+	 * @param statusCode status code answered by Xiti
+	 * @return outcome of the attempt
+	 */
+	static Outcome outcomeForStatus(int statusCode) {
+
+		if ( statusCode == 408 || statusCode == 429 || statusCode >= 500 ) {
+			return Outcome.RETRYABLE_FAILURE;
+		}
+		if ( statusCode >= 400 ) {
+			return Outcome.PERMANENT_FAILURE;
+		}
+		return Outcome.SENT;
+	}
+
+	/**
+	 * Called before the first attempt of every hit: refills the retry budget.
+	 */
+	synchronized void onFirstAttempt() {
+		budget = Math.min(MAX_BUDGET, budget + budgetRatio);
+	}
+
+	/**
+	 * @param attempt number of the attempt that just failed (1 for the first one)
+	 * @return true if the hit may be sent again. The retry is taken from the budget.
+	 */
+	synchronized boolean acquireRetry(int attempt) {
+
+		if ( attempt >= maxAttempts || budget < 1 ) {
+			return false;
+		}
+
+		budget -= 1;
+		return true;
+	}
+
+	/**
+	 * @param attempt number of the attempt that just failed (1 for the first one)
+	 * @return delay before the next attempt (ms)
+	 */
+	long delayBeforeRetry(int attempt) {
+
+		long ceiling = baseDelay << Math.min(attempt - 1, 30);
+		if ( ceiling <= 0 || ceiling > maxDelay ) {
+			ceiling = maxDelay;
+		}
+
+		synchronized ( random ) {
+			return (long) (random.nextDouble() * ceiling);
+		}
+	}
+
+}
@@ -0,0 +1,178 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * Decides, when a hit is tagged, whether it is sent.
+ *
+ *<ul>
+ * <li>Sampling: a page or an action type with a sample rate below 1 is only sent with that probability.
+ * The rate is carried by the hit (see XitiTagOperation.getSampleRate) so that the counts can be scaled back.</li>
+ * <li>Rate limiting: every event key (site, page, action type, subsite) may send at most hitsPerSecond,
+ * with bursts of burst hits. The buckets are kept in a fixed table indexed by the hash of the key:
+ * keys sharing a slot share a bucket.</li>
+ *</ul>
+ *
+ * The decision is taken before the operation is created, without lock nor allocation:
+ * the rates are read from maps filled at init, and a bucket is a single long updated by CAS.
+ * Buckets follow the generic cell rate algorithm: a slot holds the theoretical arrival time of the next hit.
+ *
+ * @author Cyril Cauchois
+ */
+class XitiTagSampler {
+
+	/**
+	 * Number of rate limit buckets, a power of two
+	 */
+	private final static int BUCKETS = 256;
+
+	/**
+	 * Sample rate of the page hits, by page name
+	 */
+	private final HashMap<String, Float> pageRates;
+
+	/**
+	 * Sample rate of the actions, indexed by XitiTagActionType ordinal
+	 */
+	private final float[] actionRates;
+
+	/**
+	 * Interval between two hits of a key (µs), 0 if there is no rate limit
+	 */
+	private final long emissionInterval;
+
+	/**
+	 * Advance a key may take on its schedule, i.e. the burst (µs)
+	 */
+	private final long burstTolerance;
+
+	/**
+	 * Theoretical arrival time of the next hit of each bucket (µs)
+	 */
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final Random random = new Random();
+
+	private final AtomicLong sampledOut = new AtomicLong();
+	private final AtomicLong rateLimited = new AtomicLong();
+
+	/**
+	 * @param config sample rates and rate limit
+	 */
+	XitiTagSampler(XitiTagConfig config) {
+
+		pageRates = new HashMap<String, Float>(config.getPageSampleRates());
+
+		XitiTagActionType[] types = XitiTagActionType.values();
+		actionRates = new float[types.length];
+		for ( XitiTagActionType type : types ) {
+			actionRates[type.ordinal()] = config.getActionSampleRate(type);
+		}
+
+		double hitsPerSecond = config.getRateLimit();
+		emissionInterval = hitsPerSecond > 0 ? (long) (1000000 / hitsPerSecond) : 0;
+		burstTolerance = emissionInterval * Math.max(0, config.getRateLimitBurst() - 1);
+	}
+
+	/**
+	 * @return true if the configuration samples or limits some hits
+	 */
+	static boolean isNeeded(XitiTagConfig config) {
+		if ( config.getRateLimit() > 0 || !config.getPageSampleRates().isEmpty() ) {
+			return true;
+		}
+		for ( XitiTagActionType type : XitiTagActionType.values() ) {
+			if ( config.getActionSampleRate(type) < 1 ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Decide whether a hit is sent
+	 * @return sample rate of the hit if it is sent (1 if not sampled), 0 if it is dropped
+	 */
+	float accept(XitiTagTracker tracker, String page, XitiTagActionType actionType, String subsiteId) {
+
+		float rate = 1;
+		if ( actionType != null ) {
+			rate = actionRates[actionType.ordinal()];
+		} else if ( !pageRates.isEmpty() ) {
+			Float pageRate = pageRates.get(page);
+			if ( pageRate != null ) {
+				rate = pageRate;
+			}
+		}
+
+		if ( rate < 1 && random.nextFloat() >= rate ) {
+			sampledOut.incrementAndGet();
+			return 0;
+		}
+
+		if ( emissionInterval > 0 && !acquire(XitiTagOperation.hitHash(tracker, page, actionType, subsiteId) & (BUCKETS - 1)) ) {
+			rateLimited.incrementAndGet();
+			return 0;
+		}
+
+		return rate;
+	}
+
+	/**
+	 * Take a token from a bucket
+	 * @return false if the key is over its rate
+	 */
+	private boolean acquire(int bucket) {
+
+		long now = System.nanoTime() / 1000;
+
+		while ( true ) {
+			long arrival = buckets.get(bucket);
+			long scheduled = arrival == 0 ? now : Math.max(arrival, now);
+			if ( scheduled - now > burstTolerance ) {
+				return false;
+			}
+			if ( buckets.compareAndSet(bucket, arrival, scheduled + emissionInterval) ) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return number of hits dropped by sampling
+	 */
+	long getSampledOutCount() {
+		return sampledOut.get();
+	}
+
+	/**
+	 * @return number of hits dropped by the rate limit
+	 */
+	long getRateLimitedCount() {
+		return rateLimited.get();
+	}
+
+}
@@ -0,0 +1,279 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Session of the visitor, for the session parameters of the hits (see XitiTagConfig.setSessionTimeout).
+ *
+ * A session starts with the first hit and ends after the session timeout without hit. Every hit gets the id of its session,
+ * its sequence number in the session, the previous page and the time spent on it
+ * (the page before a page hit, or the current page of an action).
+ *
+ * Times come from SystemClock.elapsedRealtime(), which is monotonic and keeps counting while the device sleeps,
+ * so changing the clock of the device neither ends nor extends a session. The state is kept in primitive fields:
+ * nothing is allocated per hit.
+ *
+ * The state is also written to a small memory-mapped file at every hit, without any write call: the pages of the mapping
+ * reach the file even if the process is killed, so the session goes on after a restart. After a reboot
+ * (the elapsed time restarts, which the wall clock tells), a new session starts.
+ * The file is only mapped by open, called off the startup path (by the first worker, see XitiTag.init):
+ * until then, the state is kept in memory only, and it is written to the file when it is mapped.
+ *
+ *<pre>
+ * [int magic][long session id][int sequence][long elapsed time of the last hit][long wall time of the last hit]
+ * [long elapsed time of the current page][int length of the current page][chars of the current page]
+ *</pre>
+ *
+ * @author Cyril Cauchois
+ */
+final class XitiTagSession {
+
+	/**
+	 * Log tag
+	 */
+	private final static String LOG_TAG = "AWLXITI" ;
+
+	private final static int MAGIC = 0x58545331;
+
+	/**
+	 * Longer page names are truncated in the state file
+	 */
+	private final static int MAX_PAGE_LENGTH = 120;
+
+	private final static int OFFSET_SESSION_ID = 4;
+	private final static int OFFSET_SEQUENCE = 12;
+	private final static int OFFSET_LAST_HIT = 16;
+	private final static int OFFSET_LAST_HIT_WALL = 24;
+	private final static int OFFSET_PAGE_SINCE = 32;
+	private final static int OFFSET_PAGE_LENGTH = 40;
+	private final static int OFFSET_PAGE = 44;
+	private final static int FILE_SIZE = OFFSET_PAGE + 2 * MAX_PAGE_LENGTH;
+
+	/**
+	 * Difference between the elapsed time and the wall time since the last hit above which the device is deemed rebooted (ms)
+	 */
+	private final static long REBOOT_TOLERANCE = 60000;
+
+	/**
+	 * Inactivity ending a session (ms)
+	 */
+	private final long timeout;
+
+	private final Random random = new Random();
+
+	/**
+	 * State file, null to keep the session in memory only
+	 */
+	private final File file;
+
+	/**
+	 * true once open was called
+	 */
+	private boolean opened;
+
+	/**
+	 * Mapping of the state file, null if the state is not persisted (yet)
+	 */
+	private MappedByteBuffer state;
+
+	/**
+	 * Id of the current session, 0 if none
+	 */
+	private long sessionId;
+
+	private int sequence;
+
+	/**
+	 * Elapsed time of the last hit (ms)
+	 */
+	private long lastHitTime;
+
+	/**
+	 * Wall time of the last hit (ms)
+	 */
+	private long lastHitWallTime;
+
+	/**
+	 * Last page tagged in the session, null if none
+	 */
+	private String page;
+
+	/**
+	 * Elapsed time of the hit of the current page (ms)
+	 */
+	private long pageSince;
+
+	/**
+	 * Nothing is read or written here, see open
+	 * @param file state file, created if needed. null to keep the session in memory only.
+	 * @param timeout inactivity ending a session (ms)
+	 */
+	XitiTagSession(File file, long timeout) {
+		this.timeout = timeout;
+		this.file = file;
+	}
+
+	/**
+	 * Map the state file: restore the session of the previous run, or write the session started by the hits tagged
+	 * since the construction. Does disk I/O, must not be called on the main thread. Only the first call does something.
+	 */
+	synchronized void open() {
+
+		if ( file == null || opened ) {
+			return;
+		}
+		opened = true;
+
+		try {
+			File directory = file.getParentFile();
+			if ( directory != null && !directory.isDirectory() && !directory.mkdirs() ) {
+				throw new IOException("Unable to create " + directory);
+			}
+
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				// the mapping stays valid once the channel is closed
+				state = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			Log.d(LOG_TAG, "XitiTagSession.open() Unable to map " + file + ", the session is kept in memory only", e);
+			state = null;
+			return;
+		}
+
+		if ( sessionId == 0 ) {
+			load();
+		} else {
+			// hits were tagged before the file was mapped: their session replaces the one of the file
+			state.putInt(0, MAGIC);
+			save(true);
+		}
+	}
+
+	/**
+	 * Restore the session of the previous run, unless the device was rebooted since
+	 */
+	private void load() {
+
+		if ( state.getInt(0) != MAGIC ) {
+			state.putInt(0, MAGIC);
+			return;
+		}
+
+		long lastHit = state.getLong(OFFSET_LAST_HIT);
+		long elapsed = SystemClock.elapsedRealtime() - lastHit;
+		long wall = System.currentTimeMillis() - state.getLong(OFFSET_LAST_HIT_WALL);
+		if ( elapsed < 0 || Math.abs(elapsed - wall) > REBOOT_TOLERANCE ) {
+			return;
+		}
+
+		sessionId = state.getLong(OFFSET_SESSION_ID);
+		sequence = state.getInt(OFFSET_SEQUENCE);
+		lastHitTime = lastHit;
+		lastHitWallTime = state.getLong(OFFSET_LAST_HIT_WALL);
+		pageSince = state.getLong(OFFSET_PAGE_SINCE);
+
+		int length = state.getInt(OFFSET_PAGE_LENGTH);
+		if ( length > 0 && length <= MAX_PAGE_LENGTH ) {
+			char[] chars = new char[length];
+			for ( int i = 0; i < length; i++ ) {
+				chars[i] = state.getChar(OFFSET_PAGE + 2 * i);
+			}
+			page = XitiTagHitCodec.intern(new String(chars));
+		}
+	}
+
+	/**
+	 * Give a hit being tagged its session parameters, starting a new session if needed
+	 * @param operation hit being tagged
+	 */
+	synchronized void onHit(XitiTagOperation operation) {
+
+		long now = SystemClock.elapsedRealtime();
+
+		if ( sessionId == 0 || now - lastHitTime >= timeout || now < lastHitTime ) {
+			sessionId = random.nextLong() & Long.MAX_VALUE;
+			if ( sessionId == 0 ) {
+				sessionId = 1;
+			}
+			sequence = 0;
+			page = null;
+			pageSince = now;
+		}
+
+		sequence++;
+		operation.setSession(sessionId, sequence, page, page != null ? now - pageSince : -1);
+
+		boolean newPage = operation.getActionType() == null;
+		if ( newPage ) {
+			page = operation.getPage();
+			pageSince = now;
+		}
+		lastHitTime = now;
+		lastHitWallTime = operation.getCreationTime();
+
+		if ( state != null ) {
+			save(newPage);
+		}
+	}
+
+	/**
+	 * Write the state to the mapping. The page name is only written when it changes.
+	 * @param newPage true if the page changed
+	 */
+	private void save(boolean newPage) {
+
+		state.putLong(OFFSET_SESSION_ID, sessionId);
+		state.putInt(OFFSET_SEQUENCE, sequence);
+		state.putLong(OFFSET_LAST_HIT, lastHitTime);
+		state.putLong(OFFSET_LAST_HIT_WALL, lastHitWallTime);
+		state.putLong(OFFSET_PAGE_SINCE, pageSince);
+
+		if ( newPage || sequence == 1 ) {
+			int length = page != null ? Math.min(page.length(), MAX_PAGE_LENGTH) : 0;
+			for ( int i = 0; i < length; i++ ) {
+				state.putChar(OFFSET_PAGE + 2 * i, page.charAt(i));
+			}
+			state.putInt(OFFSET_PAGE_LENGTH, length);
+		}
+	}
+
+	/**
+	 * Write the state file to the disk, e.g. before the device is turned off
+	 */
+	synchronized void close() {
+		if ( state != null ) {
+			state.force();
+		}
+	}
+
+}
@@ -0,0 +1,144 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Transport that sends nothing: the urls are kept in memory, or appended to a file (one url per line),
+ * and every hit is answered with the same status code. Used in tests, benchmarks and load replay.
+ * A post is kept as "POST " followed by its url, and the size of its body is counted (see getReceivedBytes).
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagSinkTransport implements XitiTagTransport {
+
+	private final static String CHARSET = "UTF-8";
+
+	/**
+	 * Urls received, null when writing to a file
+	 */
+	private final List<String> urls;
+
+	/**
+	 * Writer of the file, null when keeping the urls in memory
+	 */
+	private final Writer writer;
+
+	private volatile int status = 200;
+
+	private int sentCount;
+
+	private long receivedBytes;
+
+	/**
+	 * Keep the urls in memory (see getUrls)
+	 */
+	public XitiTagSinkTransport() {
+		this.urls = new ArrayList<String>();
+		this.writer = null;
+	}
+
+	/**
+	 * Append the urls to a file
+	 * @param file file receiving one url per line, created if needed
+	 * @throws IOException if the file cannot be opened
+	 */
+	public XitiTagSinkTransport(File file) throws IOException {
+		this.urls = null;
+		this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), CHARSET));
+	}
+
+	/**
+	 * @param status status code answered to every hit (200 by default)
+	 * @return this transport
+	 */
+	public XitiTagSinkTransport setStatus(int status) {
+		this.status = status;
+		return this;
+	}
+
+	/**
+	 * @return copy of the urls received so far, in order (empty when writing to a file)
+	 */
+	public synchronized List<String> getUrls() {
+		return urls != null ? new ArrayList<String>(urls) : new ArrayList<String>();
+	}
+
+	/**
+	 * @return number of requests received so far (urls and posts)
+	 */
+	public synchronized int getSentCount() {
+		return sentCount;
+	}
+
+	/**
+	 * @return size of the urls and of the bodies received so far
+	 */
+	public synchronized long getReceivedBytes() {
+		return receivedBytes;
+	}
+
+	@Override
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		// nothing to wait for
+	}
+
+	@Override
+	public synchronized int send(String url) throws IOException {
+		return receive(url, url.length());
+	}
+
+	@Override
+	public synchronized int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+		return receive("POST " + url, url.length() + body.length);
+	}
+
+	private int receive(String line, long bytes) throws IOException {
+
+		if ( writer != null ) {
+			writer.write(line);
+			writer.write('\n');
+		} else {
+			urls.add(line);
+		}
+		sentCount++;
+		receivedBytes += bytes;
+
+		return status;
+	}
+
+	@Override
+	public synchronized void close() {
+
+		if ( writer != null ) {
+			try {
+				writer.close();
+			} catch (IOException e) {}
+		}
+	}
+
+}
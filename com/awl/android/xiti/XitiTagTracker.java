@@ -0,0 +1,155 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * Tags the pages and actions of one Xiti site.
+ *
+ * An application reporting to several sites creates one tracker per site. Trackers are lightweight:
+ * they all send their hits through the queue, workers, transport and journal of XitiTag, so adding sites
+ * does not add threads nor connections. The static methods of XitiTag use the default tracker
+ * built by XitiTag.init.
+ *
+ * A tracker may be created before XitiTag.init and kept across XitiTag.terminate / init:
+ * its hits go to the XitiTag initialized at the time they are tagged.
+ * Trackers are thread-safe.
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagTracker {
+
+	/**
+	 * subdomain of xiti tag
+	 */
+	private final String subdomain;
+
+	/**
+	 * website xiti id
+	 */
+	private final String siteId;
+
+	/**
+	 * default subsite xiti id, can be null
+	 */
+	private final String subsiteId;
+
+	/**
+	 * Beginning of every url: scheme, host and site id, ending with '&amp;'
+	 */
+	private final String urlPrefix;
+
+	/**
+	 * Last tagged page. Actions are sent after the hit of this page.
+	 */
+	private volatile String lastPage;
+
+	/**
+	 * @param subdomain xiti subdomain. Identifies the server to call for Xiti stats. e.g: http://subd1.xiti.com , subdomain should be "subd1"
+	 * @param siteId id of the site
+	 * @param subsiteId id of the subsite used when none is given to tagPage / tagAction. can be null (optionnal)
+	 * @throws IllegalArgumentException if subdomain or siteId is null
+	 */
+	public XitiTagTracker(String subdomain, String siteId, String subsiteId) {
+
+		if ( subdomain == null || siteId == null ) {
+			throw new IllegalArgumentException("subdomain and siteId must not be null");
+		}
+
+		this.subdomain = subdomain;
+		this.siteId = siteId;
+		this.subsiteId = subsiteId;
+		this.urlPrefix = "http://" + subdomain + ".xiti.com/hit.xiti?s=" + siteId + "&";
+	}
+
+	public String getSubdomain() {
+		return subdomain;
+	}
+
+	public String getSiteId() {
+		return siteId;
+	}
+
+	public String getSubsiteId() {
+		return subsiteId;
+	}
+
+	/**
+	 * Tag a page.
+	 * @param page name of the page to tag. 'page' will appear in your xiti tag page.
+	 */
+	public void tagPage(String page) {
+		tagPage(page, subsiteId);
+	}
+
+	/**
+	 * Tag a page with a specific subsiteId
+	 * @param page name of the page to tag. 'page' will appear in your xiti tag page.
+	 * @param subsiteId id of the subsite to use
+	 */
+	public void tagPage(String page, String subsiteId) {
+
+		XitiTag tag = XitiTag.current();
+
+		lastPage = page;
+		tag.launchRequest(this, page, null, subsiteId, page);
+	}
+
+	/**
+	 * Tag an action.
+	 * @param action name of the action to tag. 'action' will appear in your xiti tag page.
+	 * @param actionType type of the action
+	 */
+	public void tagAction(String action, XitiTagActionType actionType) {
+		tagAction(action, actionType, subsiteId);
+	}
+
+	/**
+	 * Tag an action with a specific subsiteId
+	 * @param action name of the action to tag. 'action' will appear in your xiti tag page.
+	 * @param actionType type of the action
+	 * @param subsiteId id of the subsite to use
+	 */
+	public void tagAction(String action, XitiTagActionType actionType, String subsiteId) {
+
+		XitiTag tag = XitiTag.current();
+
+		if ( actionType == null ) {
+			throw new IllegalArgumentException("actionType must not be null");
+		}
+
+		tag.launchRequest(this, action, actionType, subsiteId, lastPage);
+	}
+
+	/**
+	 * @return beginning of the urls of this site
+	 */
+	String getUrlPrefix() {
+		return urlPrefix;
+	}
+
+	/**
+	 * @return true if both trackers tag the same site
+	 */
+	boolean isSameSite(XitiTagTracker other) {
+		return other != null && subdomain.equals(other.subdomain) && siteId.equals(other.siteId);
+	}
+
+}
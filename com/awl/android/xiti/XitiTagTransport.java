@@ -0,0 +1,72 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.io.IOException;
+
+/**
+ * Sends the hit urls to Xiti. XitiTag uses XitiTagApacheTransport by default,
+ * another transport can be given with XitiTagConfig.setTransport:
+ *
+ *<ul>
+ * <li>XitiTagUrlConnectionTransport: HttpURLConnection, works on every Android version and on a plain JVM</li>
+ * <li>XitiTagNioTransport: non-blocking client, one selector thread for every request in flight</li>
+ * <li>XitiTagSinkTransport: keeps the urls in memory or writes them to a file, for tests and load replay</li>
+ *</ul>
+ *
+ * send and post are called concurrently by the workers of XitiTag.
+ *
+ * @author Cyril Cauchois
+ */
+public interface XitiTagTransport {
+
+	/**
+	 * Set the timeouts of the next requests
+	 * @param connectTimeout connect timeout in milliseconds (0 means infinite)
+	 * @param readTimeout read timeout in milliseconds (0 means infinite)
+	 */
+	void setTimeouts(int connectTimeout, int readTimeout);
+
+	/**
+	 * Send a hit
+	 * @param url url of the hit
+	 * @return http status code of the answer
+	 * @throws IOException if the hit could not be sent (network error, timeout...), it may be retried
+	 * @throws IllegalArgumentException if the url is malformed, it will never go through
+	 */
+	int send(String url) throws IOException;
+
+	/**
+	 * Send hits in the body of a POST request (see XitiTagConfig.setPostMode)
+	 * @param url url of the collector
+	 * @param body body of the request, already encoded
+	 * @param contentType media type of the body
+	 * @param contentEncoding encoding of the body (e.g. "gzip"), null if none
+	 * @return http status code of the answer
+	 * @throws IOException if the request could not be sent (network error, timeout...), it may be retried
+	 * @throws IllegalArgumentException if the url is malformed, it will never go through
+	 */
+	int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException;
+
+	/**
+	 * Release the connections. Called once the workers have stopped.
+	 */
+	void close();
+
+}
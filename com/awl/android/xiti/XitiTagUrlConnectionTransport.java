@@ -0,0 +1,120 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.awl.android.xiti;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Transport based on HttpURLConnection, which keeps the connections alive and pools them itself.
+ * Works on every Android version and on a plain JVM.
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagUrlConnectionTransport implements XitiTagTransport {
+
+	private volatile int connectTimeout;
+	private volatile int readTimeout;
+
+	/**
+	 * @param connectTimeout connect timeout in milliseconds (0 means infinite)
+	 * @param readTimeout read timeout in milliseconds (0 means infinite)
+	 */
+	public XitiTagUrlConnectionTransport(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	@Override
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	@Override
+	public int send(String url) throws IOException {
+		return request(url, null, null, null);
+	}
+
+	@Override
+	public int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+		return request(url, body, contentType, contentEncoding);
+	}
+
+	/**
+	 * @param body body of a POST, null for a GET
+	 */
+	private int request(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+
+		URL target;
+		try {
+			target = new URL(url);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+
+		HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		connection.setUseCaches(false);
+		connection.setInstanceFollowRedirects(true);
+
+		if ( body != null ) {
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(body.length);
+			connection.setRequestProperty("Content-Type", contentType);
+			if ( contentEncoding != null ) {
+				connection.setRequestProperty("Content-Encoding", contentEncoding);
+			}
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(body);
+			} finally {
+				out.close();
+			}
+		}
+
+		int status = connection.getResponseCode();
+
+		// the body must be read to the end for the connection to be reused
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		if ( in != null ) {
+			try {
+				byte[] skip = new byte[512];
+				while ( in.read(skip) >= 0 ) {
+					// discard the answer (an empty gif)
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		return status;
+	}
+
+	@Override
+	public void close() {
+		// HttpURLConnection pools its connections globally
+	}
+
+}
@@ -0,0 +1,139 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.awl.android.xiti;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * Latency of tagPage / tagAction on the calling thread, in nanoseconds (see the percentiles of the sample time mode):
+ * the hit is only captured and queued, the workers build the urls and hand them to a transport that keeps nothing.
+ * The queue drops its oldest hits when the workers fall behind, so the callers never wait for room.
+ * The contended benchmarks tag from 4 threads at once.
+ * The metrics parameter compares the cost of tagging with the metrics enabled and disabled (see XitiTagConfig.setMetricsEnabled).
+ *
+ * @author Cyril Cauchois
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class XitiTagEnqueueBenchmark {
+
+	private final static int NAMES = 64;
+
+	@Param({ "true", "false" })
+	public boolean metrics;
+
+	private String[] pages;
+
+	private String[] actions;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		XitiTagConfig config = new XitiTagConfig()
+				.setWorkerCount(2)
+				.setNetworkAware(false)
+				.setJournalEnabled(false)
+				.setMetricsEnabled(metrics);
+		config.setTransport(new XitiTagTransport() {
+			@Override
+			public void setTimeouts(int connectTimeout, int readTimeout) {
+			}
+
+			@Override
+			public int send(String url) {
+				return 200;
+			}
+
+			@Override
+			public int post(String url, byte[] body, String contentType, String contentEncoding) {
+				return 200;
+			}
+
+			@Override
+			public void close() {
+			}
+		});
+		XitiTag.init(null, "bench", "1", null, config);
+
+		pages = new String[NAMES];
+		actions = new String[NAMES];
+		for ( int i = 0; i < NAMES; i++ ) {
+			pages[i] = "chapitre::page_" + i;
+			actions[i] = "bouton_" + i;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		XitiTag.terminate(1000);
+	}
+
+	/**
+	 * Rotation over the names, per thread
+	 */
+	@State(Scope.Thread)
+	public static class Names {
+		int next;
+	}
+
+	@Benchmark
+	public void tagPage(Names names) {
+		XitiTag.tagPage(pages[names.next++ & ( NAMES - 1 )]);
+	}
+
+	@Benchmark
+	public void tagAction(Names names) {
+		XitiTag.tagAction(actions[names.next++ & ( NAMES - 1 )], XitiTagActionType.XitiTagActionTypeAction);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void tagPageContended(Names names) {
+		XitiTag.tagPage(pages[names.next++ & ( NAMES - 1 )]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void tagActionContended(Names names) {
+		XitiTag.tagAction(actions[names.next++ & ( NAMES - 1 )], XitiTagActionType.XitiTagActionTypeAction);
+	}
+
+}
@@ -0,0 +1,98 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.awl.android.xiti;
+
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of escaping typical page names with XitiTagEscaper (bypassing the name cache),
+ * next to the historical implementation: eight chained String.replace, then a StringBuffer copy
+ * and a Vector lookup per accented character. Run with -prof gc to compare the allocations.
+ *
+ * @author Cyril Cauchois
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class XitiTagEscaperBenchmark {
+
+	/**
+	 * Nothing to escape, accented characters, characters to remove
+	 */
+	@Param({ "accueil::liste_des_produits", "Rubrique::Événements_à_la_une", "Page d'accueil - été ?" })
+	public String name;
+
+	/**
+	 * Replacements of U+00C0 to U+00FF, looked up as the historical sansAccent did
+	 */
+	private final static Vector<String> HISTORICAL_MAP = new Vector<String>();
+
+	static {
+		for ( char c = 'À'; c <= 'ÿ'; c++ ) {
+			HISTORICAL_MAP.add(XitiTagEscaper.sansAccent(String.valueOf(c)));
+		}
+	}
+
+	@Benchmark
+	public String escapePageName() {
+		return XitiTagEscaper.escapePageName(name);
+	}
+
+	@Benchmark
+	public String historicalEscapePageName() {
+		return historicalSansAccent(name
+				.replace(" ", "")
+				.replace(" ", "")
+				.replace("-", "")
+				.replace("Â ", "")
+				.replace("'", "")
+				.replace("â€™", "")
+				.replace("’", "")
+				.replace("?", ""));
+	}
+
+	private static String historicalSansAccent(String chaine) {
+		StringBuffer res = new StringBuffer(chaine);
+		for ( int i = 0; i < chaine.length(); i++ ) {
+			int c = chaine.charAt(i);
+			if ( c >= 192 && c <= 255 ) {
+				res.replace(i, i + 1, HISTORICAL_MAP.get(c - 192));
+			}
+		}
+		return res.toString();
+	}
+
+}
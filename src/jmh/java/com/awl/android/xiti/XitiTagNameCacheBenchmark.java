@@ -0,0 +1,141 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.awl.android.xiti;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the name cache on a realistic name distribution: NAMES distinct page names with accents and spaces,
+ * drawn with a Zipf distribution (a few names are tagged most of the time), by 4 threads.
+ * intern is the cost paid by the tagging threads, encodedName the one paid by the workers building the urls,
+ * and uncached the escaping and encoding done on every hit without the cache.
+ * The hit ratio of each trial is printed at its end.
+ *
+ * @author Cyril Cauchois
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+public class XitiTagNameCacheBenchmark {
+
+	private final static int NAMES = 2000;
+
+	/**
+	 * Length of the sequence of names drawn for each thread
+	 */
+	private final static int DRAWS = 1 << 14;
+
+	@Param({ "256", "1024" })
+	public int capacity;
+
+	private XitiTagNameCache cache;
+
+	private String[] names;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		cache = new XitiTagNameCache(capacity);
+		names = new String[NAMES];
+		for ( int i = 0; i < NAMES; i++ ) {
+			names[i] = "Rubrique " + ( i % 20 ) + "::Page n°" + i + " - été";
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		long hits = cache.getHits();
+		long lookups = hits + cache.getMisses();
+		System.out.println("hit ratio " + ( lookups > 0 ? 100 * hits / lookups : 0 ) + "%, evictions " + cache.getEvictions());
+	}
+
+	/**
+	 * Names drawn by one thread
+	 */
+	@State(Scope.Thread)
+	public static class Draws {
+
+		private String[] sequence;
+
+		private int next;
+
+		@Setup(Level.Trial)
+		public void setUp(XitiTagNameCacheBenchmark benchmark) {
+
+			// cumulative weights of the Zipf distribution, s = 1
+			double[] cumulative = new double[NAMES];
+			double sum = 0;
+			for ( int i = 0; i < NAMES; i++ ) {
+				sum += 1.0 / ( i + 1 );
+				cumulative[i] = sum;
+			}
+
+			Random random = new Random(Thread.currentThread().getId());
+			sequence = new String[DRAWS];
+			for ( int i = 0; i < DRAWS; i++ ) {
+				int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+				sequence[i] = benchmark.names[index >= 0 ? index : -index - 1];
+			}
+		}
+
+		String next() {
+			return sequence[next++ & ( DRAWS - 1 )];
+		}
+	}
+
+	@Benchmark
+	public XitiTagNameCache.Entry intern(Draws draws) {
+		return cache.intern(draws.next());
+	}
+
+	@Benchmark
+	public String encodedName(Draws draws) {
+		return cache.get(draws.next()).encoded();
+	}
+
+	@Benchmark
+	public String uncached(Draws draws) {
+		String name = draws.next();
+		XitiTagEscaper.escapePageName(name);
+		return XitiTagNameCache.encode(name);
+	}
+
+}
@@ -0,0 +1,77 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.awl.android.xiti;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time spent in XitiTag.init on the startup path: configuration, transport, queue and workers,
+ * the device information being collected later by the first worker sending a hit.
+ * collectDeviceInfo is the collection moved off the startup path, the historical init ran it on the caller's thread.
+ * Without an Android context the Binder calls of PhoneInformation fail at once: on a device, collectDeviceInfo costs more.
+ *
+ * @author Cyril Cauchois
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class XitiTagStartupBenchmark {
+
+	private boolean initialized;
+
+	@TearDown(Level.Invocation)
+	public void tearDown() {
+		if ( initialized ) {
+			XitiTag.terminate();
+			initialized = false;
+		}
+	}
+
+	@Benchmark
+	public XitiTag init() {
+		XitiTag tag = XitiTag.init(null, "bench", "1", null, new XitiTagConfig()
+				.setNetworkAware(false)
+				.setJournalEnabled(false));
+		initialized = true;
+		return tag;
+	}
+
+	@Benchmark
+	public String collectDeviceInfo() {
+		return new XitiTagDeviceInfo(null, null).getUrlSuffix();
+	}
+
+}
@@ -0,0 +1,140 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * End-to-end throughput of the tagging pipeline: tagPage / tagAction, queue, workers and the default Apache transport,
+ * against a local XitiTagStubServer answering after a fixed latency. One invocation tags HITS hits,
+ * PAGES pages each followed by its clicks (which are sent in order after their page), and waits until they are all sent.
+ * tagPagesAndSend tags HITS distinct pages instead, which can all be sent at once.
+ * With inFlight &gt; 0, the hits are sent on the tasks of a thread pool, at most inFlight at once (see XitiTagConfig.setAsyncSend).
+ *
+ * @author Cyril Cauchois
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class XitiTagThroughputBenchmark {
+
+	private final static int HITS = 200;
+
+	private final static int PAGES = 20;
+
+	@Param({ "1", "4" })
+	public int workers;
+
+	@Param({ "0", "5" })
+	public long latency;
+
+	@Param({ "0", "256" })
+	public int inFlight;
+
+	private XitiTagStubServer server;
+
+	private ExecutorService sendExecutor;
+
+	private String[] pages;
+
+	private String[] actions;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+
+		server = new XitiTagStubServer().setLatency(latency);
+
+		XitiTagConfig config = new XitiTagConfig()
+				.setWorkerCount(workers)
+				.setQueueCapacity(4 * HITS)
+				.setNetworkAware(false)
+				.setJournalEnabled(false)
+				.setMetricsEnabled(false);
+		if ( inFlight > 0 ) {
+			sendExecutor = Executors.newCachedThreadPool();
+			config.setAsyncSend(inFlight, sendExecutor);
+		}
+		config.setTransport(server.redirect(new XitiTagApacheTransport(Math.max(workers, inFlight),
+				config.getConnectTimeout(), config.getReadTimeout())));
+		XitiTag.init(null, "bench", "1", null, config);
+
+		pages = new String[HITS];
+		actions = new String[PAGES];
+		for ( int i = 0; i < HITS; i++ ) {
+			pages[i] = "chapitre::page_" + i;
+		}
+		for ( int i = 0; i < PAGES; i++ ) {
+			actions[i] = "bouton_" + i;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		XitiTag.terminate(10000);
+		server.stop();
+		if ( sendExecutor != null ) {
+			sendExecutor.shutdown();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(HITS)
+	public XitiTagFlushResult tagAndSend() {
+		for ( int page = 0; page < PAGES; page++ ) {
+			XitiTag.tagPage(pages[page]);
+			for ( int click = 1; click < HITS / PAGES; click++ ) {
+				XitiTag.tagAction(actions[page], XitiTagActionType.XitiTagActionTypeAction);
+			}
+		}
+		return XitiTag.flush(60000);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(HITS)
+	public XitiTagFlushResult tagPagesAndSend() {
+		for ( int page = 0; page < HITS; page++ ) {
+			XitiTag.tagPage(pages[page]);
+		}
+		return XitiTag.flush(60000);
+	}
+
+}
@@ -0,0 +1,123 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.awl.android.xiti;
+
+import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.util.Log;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * Cost of building the url of an action hit: XitiTag.buildUrl, appending the parameters of the hit to the prefix
+ * of its site and to the pre-encoded device parameters, next to the historical buildUrl, which appended
+ * the whole url to a new StringBuffer, url encoded each device parameter and logged the url.
+ * Run with -prof gc to compare the allocations per hit.
+ *
+ * @author Cyril Cauchois
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class XitiTagUrlBenchmark {
+
+	private final static String PAGE = "chapitre::bouton_valider";
+
+	private final static String SUBSITE = "7";
+
+	private XitiTag tag;
+
+	private XitiTagOperation operation;
+
+	private PhoneInformation phoneInfo;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		XitiTagConfig config = new XitiTagConfig()
+				.setNetworkAware(false)
+				.setJournalEnabled(false)
+				.setMetricsEnabled(false);
+		config.setTransport(new XitiTagSinkTransport());
+		tag = XitiTag.init(null, "bench", "1", null, config);
+		operation = new XitiTagOperation(PAGE, XitiTagActionType.XitiTagActionTypeAction, SUBSITE, PAGE, System.currentTimeMillis());
+
+		// values a device gives, PhoneInformation cannot read them without a context
+		phoneInfo = new PhoneInformation(null);
+		phoneInfo.put("mfmd", "[samsung]-[gt-i9000]");
+		phoneInfo.put("os", "[android]-[4.1.2]");
+		phoneInfo.put("tc", "wifi");
+		phoneInfo.put("apvr", "[2.3.1]");
+		phoneInfo.put("idclient", "9774d56d682e549c");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		XitiTag.terminate(1000);
+	}
+
+	@Benchmark
+	public String buildUrl() {
+		return tag.buildUrl(operation);
+	}
+
+	@Benchmark
+	@SuppressWarnings("deprecation")
+	public String historicalBuildUrl() {
+
+		StringBuffer buf = new StringBuffer("http://");
+
+		buf.append("bench")
+		   .append(".xiti.com/hit.xiti?s=").append("1")
+		   .append("&").append("p=" + PAGE + "&clic=A");
+
+		buf.append("&s2=").append(SUBSITE);
+
+		for ( String key : phoneInfo.keySet() ) {
+			if ( phoneInfo.get(key) != null ) {
+				buf.append("&").append(key).append("=").append(URLEncoder.encode(phoneInfo.get(key)));
+			}
+		}
+
+		buf.append("&na=").append(System.currentTimeMillis());
+
+		Log.d("AWLXITI", "XitiTag.BuildUrl returns : "+buf.toString());
+
+		return buf.toString();
+	}
+
+}
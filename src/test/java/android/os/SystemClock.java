@@ -0,0 +1,59 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package android.os;
+
+/**
+ * JVM replacement of the Android SystemClock for the unit tests: android.jar only holds stubs throwing "Stub!".
+ *
+ * @author Cyril Cauchois
+ */
+public final class SystemClock {
+
+	/**
+	 * Added to the elapsed time, see shift
+	 */
+	private static volatile long offset;
+
+	private SystemClock() {
+	}
+
+	/**
+	 * @return monotonic time (ms), from an arbitrary origin
+	 */
+	public static long elapsedRealtime() {
+		return System.nanoTime() / 1000000 + offset;
+	}
+
+	/**
+	 * Move the elapsed time, e.g. forward to simulate inactivity or back to simulate a reboot. Not part of the Android API.
+	 * @param delta time added to the elapsed time (ms)
+	 */
+	public static void shift(long delta) {
+		offset += delta;
+	}
+
+	/**
+	 * Cancel the shifts
+	 */
+	public static void reset() {
+		offset = 0;
+	}
+
+}
@@ -0,0 +1,49 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package android.util;
+
+/**
+ * JVM replacement of the Android Log for the unit tests: android.jar only holds stubs throwing "Stub!".
+ * Messages are dropped, unless the xititag.log system property is set, in which case they go to System.err.
+ *
+ * @author Cyril Cauchois
+ */
+public final class Log {
+
+	private final static boolean ENABLED = System.getProperty("xititag.log") != null;
+
+	private Log() {
+	}
+
+	public static int d(String tag, String msg) {
+		return d(tag, msg, null);
+	}
+
+	public static int d(String tag, String msg, Throwable tr) {
+		if ( ENABLED ) {
+			System.err.println("D/" + tag + ": " + msg);
+			if ( tr != null ) {
+				tr.printStackTrace();
+			}
+		}
+		return 0;
+	}
+
+}
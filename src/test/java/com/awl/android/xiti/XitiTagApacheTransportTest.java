@@ -0,0 +1,115 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Connection pool of XitiTagApacheTransport, against a local XitiTagStubServer
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagApacheTransportTest {
+
+	private XitiTagStubServer server;
+
+	private XitiTagApacheTransport transport;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new XitiTagStubServer();
+		transport = new XitiTagApacheTransport(2, 1000, 1000);
+	}
+
+	@After
+	public void tearDown() {
+		transport.close();
+		server.stop();
+	}
+
+	@Test(timeout = 10000)
+	public void consecutiveHitsReuseTheConnection() throws Exception {
+
+		for ( int i = 0; i < 20; i++ ) {
+			assertEquals(200, transport.send(server.getUrl() + "/hit.xiti?s=1&p='page_" + i + "'"));
+		}
+
+		assertEquals(20, server.getRequestCount());
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	@Test(timeout = 10000)
+	public void postsReuseTheConnection() throws Exception {
+
+		for ( int i = 0; i < 5; i++ ) {
+			assertEquals(200, transport.post(server.getUrl() + "/hit.xiti", new byte[] { 'a' }, "text/plain", null));
+		}
+
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	@Test(timeout = 10000)
+	public void workersShareThePool() throws Exception {
+
+		XitiTagConfig config = new XitiTagConfig()
+				.setWorkerCount(2)
+				.setNetworkAware(false)
+				.setJournalEnabled(false);
+		config.setTransport(server.redirect(transport));
+		XitiTag.init(null, "test", "1", null, config);
+
+		try {
+			for ( int i = 0; i < 50; i++ ) {
+				XitiTag.tagPage("page_" + i);
+			}
+			assertEquals(50, XitiTag.flush(5000).getSent());
+		} finally {
+			XitiTag.terminate(5000);
+		}
+
+		assertTrue("connections " + server.getConnectionCount(), server.getConnectionCount() <= 2);
+	}
+
+	@Test(timeout = 10000)
+	public void httpsIsSupported() throws Exception {
+
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+
+		// nobody listens: a network failure, which is retried, not an unknown scheme
+		try {
+			transport.post("https://127.0.0.1:" + port + "/hit.xiti", new byte[] { 'a' }, "text/plain", null);
+			fail("nobody listens on port " + port);
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * Duplicate hits dropped by XitiTagDeduplicator
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagDeduplicatorTest {
+
+	private final static long WINDOW = 1000;
+
+	private final static long T0 = 1300000000000L;
+
+	private final XitiTagDeduplicator deduplicator = new XitiTagDeduplicator(WINDOW);
+
+	private static XitiTagOperation hit(String page, XitiTagActionType actionType, String subsiteId, long time) {
+		return new XitiTagOperation(page, actionType, subsiteId, page, time);
+	}
+
+	@Test
+	public void identicalHitInTheWindowIsSuppressedAndCounted() {
+		assertFalse(deduplicator.isDuplicate(hit("accueil", null, "2", T0)));
+		assertTrue(deduplicator.isDuplicate(hit("accueil", null, "2", T0 + WINDOW - 1)));
+		assertTrue(deduplicator.isDuplicate(hit("accueil", null, "2", T0 + 10)));
+
+		assertEquals(2, deduplicator.getSuppressedCount());
+	}
+
+	@Test
+	public void hitAfterTheWindowGoesThrough() {
+		assertFalse(deduplicator.isDuplicate(hit("accueil", null, null, T0)));
+		assertFalse(deduplicator.isDuplicate(hit("accueil", null, null, T0 + WINDOW)));
+
+		assertEquals(0, deduplicator.getSuppressedCount());
+	}
+
+	@Test
+	public void differentHitsGoThrough() {
+		assertFalse(deduplicator.isDuplicate(hit("accueil", null, null, T0)));
+		assertFalse(deduplicator.isDuplicate(hit("liste", null, null, T0)));
+		assertFalse(deduplicator.isDuplicate(hit("accueil", XitiTagActionType.XitiTagActionTypeAction, null, T0)));
+		assertFalse(deduplicator.isDuplicate(hit("accueil", XitiTagActionType.XitiTagActionTypeExit, null, T0)));
+		assertFalse(deduplicator.isDuplicate(hit("accueil", null, "2", T0)));
+		assertFalse(deduplicator.isDuplicate(new XitiTagOperation(new XitiTagTracker("test", "2", null), "accueil", null, null, "accueil", T0)));
+
+		assertEquals(0, deduplicator.getSuppressedCount());
+	}
+
+	@Test
+	public void slotCollisionsDoNotSuppressDifferentHits() {
+		XitiTagOperation first = hit("page_0", null, null, T0);
+
+		// a different hit indexed in the same slot of the table
+		XitiTagOperation colliding = null;
+		for ( int i = 1; colliding == null; i++ ) {
+			XitiTagOperation candidate = hit("page_" + i, null, null, T0 + 1);
+			if ( ( candidate.hitHash() & 63 ) == ( first.hitHash() & 63 ) ) {
+				colliding = candidate;
+			}
+		}
+
+		assertFalse(deduplicator.isDuplicate(first));
+		assertFalse(deduplicator.isDuplicate(colliding));
+		// the slot now holds the colliding hit, which is still recognized
+		assertTrue(deduplicator.isDuplicate(hit(colliding.getPage(), null, null, T0 + 2)));
+		assertEquals(1, deduplicator.getSuppressedCount());
+	}
+
+}
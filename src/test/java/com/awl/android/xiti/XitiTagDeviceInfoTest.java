@@ -0,0 +1,115 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Lazy collection, connection type and refresh of XitiTagDeviceInfo
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagDeviceInfoTest {
+
+	private final Locale locale = Locale.getDefault();
+
+	@After
+	public void tearDown() {
+		Locale.setDefault(locale);
+	}
+
+	/**
+	 * Network state set by the test
+	 */
+	private static class Connectivity implements XitiTagConnectivity {
+
+		volatile boolean wifi;
+
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+
+		@Override
+		public boolean isWifi() {
+			return wifi;
+		}
+
+		@Override
+		public void setListener(Listener listener) {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	@Test
+	public void suffixIsCollectedOnce() {
+		XitiTagDeviceInfo info = new XitiTagDeviceInfo(null, null);
+
+		String suffix = info.getUrlSuffix();
+
+		assertTrue(suffix, suffix.startsWith("&") && suffix.contains("&lng="));
+		assertSame(suffix, info.getUrlSuffix());
+	}
+
+	@Test
+	public void connectionTypeFollowsTheConnectivity() {
+		Connectivity connectivity = new Connectivity();
+		XitiTagDeviceInfo info = new XitiTagDeviceInfo(null, connectivity);
+
+		String mobile = info.getUrlSuffix();
+		connectivity.wifi = true;
+		String wifi = info.getUrlSuffix();
+		connectivity.wifi = false;
+
+		assertTrue(mobile, mobile.endsWith("&tc=gsm"));
+		assertTrue(wifi, wifi.endsWith("&tc=wifi"));
+		assertEquals(mobile.substring(0, mobile.length() - 3), wifi.substring(0, wifi.length() - 4));
+		assertSame(mobile, info.getUrlSuffix());
+	}
+
+	@Test
+	public void refreshCollectsAgain() {
+		Locale.setDefault(Locale.GERMANY);
+		XitiTagDeviceInfo info = new XitiTagDeviceInfo(null, null);
+		String before = info.getUrlSuffix();
+
+		Locale.setDefault(Locale.FRANCE);
+		assertSame(before, info.getUrlSuffix());
+		info.refresh();
+		String after = info.getUrlSuffix();
+
+		assertNotSame(before, after);
+		assertTrue(before, before.contains("&lng=de_de"));
+		assertTrue(after, after.contains("&lng=fr_fr"));
+	}
+
+}
@@ -0,0 +1,265 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * Workers of XitiTagDispatcher against a local XitiTagStubServer
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagDispatcherTest {
+
+	private final static int PAGES = 20;
+
+	private final static int CLICKS = 9;
+
+	/**
+	 * Every action type, so that the clicks of a page spread over the lanes
+	 */
+	private final static XitiTagActionType[] ACTION_TYPES = XitiTagActionType.values();
+
+	private XitiTagStubServer server;
+
+	/**
+	 * Send executor of the async tests, null if none
+	 */
+	private ExecutorService sendExecutor;
+
+	/**
+	 * Sends started after the transport was closed
+	 */
+	private final AtomicInteger sendsAfterClose = new AtomicInteger();
+
+	/**
+	 * true once XitiTag closed its transport
+	 */
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	@After
+	public void tearDown() {
+		try {
+			XitiTag.terminate(10000);
+		} catch (IllegalStateException e) {
+			// terminated by the test
+		}
+		if ( server != null ) {
+			server.stop();
+		}
+		if ( sendExecutor != null ) {
+			sendExecutor.shutdownNow();
+		}
+	}
+
+	private void init(int workers, XitiTagConfig config) throws Exception {
+		init(workers, 5, config);
+	}
+
+	private void init(int workers, long latency, XitiTagConfig config) throws Exception {
+		server = new XitiTagStubServer().setLatency(latency);
+		config.setWorkerCount(workers)
+				.setQueueCapacity(4 * PAGES * (CLICKS + 1))
+				.setNetworkAware(false)
+				.setJournalEnabled(false);
+		final XitiTagTransport transport = server.redirect(new XitiTagApacheTransport(Math.max(workers, config.getMaxInFlight()),
+				config.getConnectTimeout(), config.getReadTimeout()));
+		config.setTransport(new XitiTagTransport() {
+
+			@Override
+			public void setTimeouts(int connectTimeout, int readTimeout) {
+				transport.setTimeouts(connectTimeout, readTimeout);
+			}
+
+			@Override
+			public int send(String url) throws IOException {
+				if ( closed.get() ) {
+					sendsAfterClose.incrementAndGet();
+				}
+				return transport.send(url);
+			}
+
+			@Override
+			public int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+				if ( closed.get() ) {
+					sendsAfterClose.incrementAndGet();
+				}
+				return transport.post(url, body, contentType, contentEncoding);
+			}
+
+			@Override
+			public void close() {
+				closed.set(true);
+				transport.close();
+			}
+		});
+		XitiTag.init(null, "test", "1", null, config);
+	}
+
+	private static void tagPages() {
+		for ( int page = 0; page < PAGES; page++ ) {
+			XitiTag.tagPage("page_" + page);
+			for ( int click = 0; click < CLICKS; click++ ) {
+				XitiTag.tagAction("page_" + page + "_click_" + click, ACTION_TYPES[click % ACTION_TYPES.length]);
+			}
+		}
+	}
+
+	/**
+	 * @return name of the page or action of a hit
+	 */
+	private static String nameOf(String hit) {
+		int start = hit.indexOf("p='") + 3;
+		return hit.substring(start, hit.indexOf('\'', start));
+	}
+
+	/**
+	 * Check that the hits of every page came in the order they were tagged: the page, then its clicks
+	 */
+	private void assertOrdered() {
+
+		Map<String, List<String>> byPage = new HashMap<String, List<String>>();
+		for ( String hit : server.getHits() ) {
+			String name = nameOf(hit);
+			int end = name.indexOf("_click_");
+			String page = end < 0 ? name : name.substring(0, end);
+			List<String> names = byPage.get(page);
+			if ( names == null ) {
+				names = new ArrayList<String>();
+				byPage.put(page, names);
+			}
+			names.add(name);
+		}
+
+		assertEquals(PAGES, byPage.size());
+		for ( int page = 0; page < PAGES; page++ ) {
+			List<String> expected = new ArrayList<String>();
+			expected.add("page_" + page);
+			for ( int click = 0; click < CLICKS; click++ ) {
+				expected.add("page_" + page + "_click_" + click);
+			}
+			assertEquals(expected, byPage.get("page_" + page));
+		}
+	}
+
+	@Test
+	public void workersSendPagesInParallelAndHitsOfAPageInOrder() throws Exception {
+
+		init(4, new XitiTagConfig());
+		tagPages();
+
+		XitiTagFlushResult result = XitiTag.flush(30000);
+		assertEquals(PAGES * (CLICKS + 1), result.getSent());
+		assertOrdered();
+		assertTrue("max in progress " + server.getMaxInProgress(), server.getMaxInProgress() > 1);
+	}
+
+	@Test
+	public void lingeringBatchesKeepTheOrder() throws Exception {
+
+		init(4, new XitiTagConfig().setBatchSize(8).setBatchLinger(20));
+		tagPages();
+
+		XitiTagFlushResult result = XitiTag.flush(30000);
+		assertEquals(PAGES * (CLICKS + 1), result.getSent());
+		assertOrdered();
+	}
+
+	@Test
+	public void oneWorkerKeepsTheOrder() throws Exception {
+
+		init(1, new XitiTagConfig());
+		tagPages();
+
+		XitiTagFlushResult result = XitiTag.flush(30000);
+		assertEquals(PAGES * (CLICKS + 1), result.getSent());
+		assertOrdered();
+		assertEquals(1, server.getMaxInProgress());
+	}
+
+	@Test(timeout = 30000)
+	public void asyncSendRunsMaxInFlightSendsAndKeepsTheOrder() throws Exception {
+
+		sendExecutor = Executors.newCachedThreadPool();
+		init(1, 50, new XitiTagConfig().setAsyncSend(8, sendExecutor));
+		tagPages();
+
+		XitiTagFlushResult result = XitiTag.flush(30000);
+		assertEquals(PAGES * (CLICKS + 1), result.getSent());
+		assertOrdered();
+		// 20 pages can be sent at once, the limit is the one of the configuration
+		assertEquals(8, server.getMaxInProgress());
+	}
+
+	@Test(timeout = 30000)
+	public void terminateWaitsForTheAsyncSendsBeforeClosingTheTransport() throws Exception {
+
+		sendExecutor = Executors.newCachedThreadPool();
+		init(2, 50, new XitiTagConfig().setAsyncSend(8, sendExecutor));
+		tagPages();
+
+		XitiTag.terminate();
+
+		assertTrue(server.awaitHits(PAGES * (CLICKS + 1), 20000));
+		long deadline = System.currentTimeMillis() + 5000;
+		while ( !closed.get() && System.currentTimeMillis() < deadline ) {
+			Thread.sleep(10);
+		}
+		assertTrue(closed.get());
+		assertOrdered();
+		assertEquals(0, sendsAfterClose.get());
+	}
+
+	@Test(timeout = 30000)
+	public void rejectedSendsRunOnTheWorkers() throws Exception {
+
+		init(2, 5, new XitiTagConfig().setAsyncSend(8, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("shut down");
+			}
+		}));
+		tagPages();
+
+		XitiTagFlushResult result = XitiTag.flush(30000);
+		assertEquals(PAGES * (CLICKS + 1), result.getSent());
+		assertOrdered();
+		assertTrue("max in progress " + server.getMaxInProgress(), server.getMaxInProgress() <= 2);
+	}
+
+}
@@ -0,0 +1,100 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+import com.awl.android.xiti.XitiTagConfig.XitiTagOverflowPolicy;
+
+/**
+ * tagPage and tagAction only capture the hit on the calling thread
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagEnqueueTest {
+
+	private XitiTagStubServer server;
+
+	@After
+	public void tearDown() {
+		XitiTag.terminate(200);
+		if ( server != null ) {
+			server.stop();
+		}
+	}
+
+	private static XitiTagConfig config() {
+		return new XitiTagConfig()
+				.setWorkerCount(1)
+				.setNetworkAware(false)
+				.setJournalEnabled(false);
+	}
+
+	@Test(timeout = 10000)
+	public void taggingDoesNotWaitWhenTheQueueIsFull() throws IOException {
+
+		server = new XitiTagStubServer().setLatency(2000);
+		XitiTagConfig config = config().setQueueCapacity(4);
+		config.setTransport(server.redirect(new XitiTagApacheTransport(1, config.getConnectTimeout(), config.getReadTimeout())));
+		XitiTag.init(null, "test", "1", null, config);
+
+		long start = System.currentTimeMillis();
+		for ( int i = 0; i < 200; i++ ) {
+			XitiTag.tagPage("page_" + i);
+			XitiTag.tagAction("bouton_" + i, XitiTagActionType.XitiTagActionTypeAction);
+		}
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("tagging took " + elapsed + " ms", elapsed < 1000);
+		assertTrue(XitiTag.getDroppedCount(XitiTagOverflowPolicy.XitiTagOverflowPolicyDropOldest) > 0);
+	}
+
+	@Test(timeout = 10000)
+	public void urlsAreBuiltByTheWorkers() {
+
+		final Thread caller = Thread.currentThread();
+		final AtomicReference<Thread> sender = new AtomicReference<Thread>();
+		XitiTagConfig config = config();
+		config.setTransport(new XitiTagSinkTransport() {
+			@Override
+			public synchronized int send(String url) throws IOException {
+				sender.set(Thread.currentThread());
+				return super.send(url);
+			}
+		});
+		XitiTag.init(null, "test", "1", null, config);
+
+		XitiTag.tagPage("accueil");
+
+		assertEquals(1, XitiTag.flush(5000).getSent());
+		assertNotSame(caller, sender.get());
+	}
+
+}
@@ -0,0 +1,210 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * Round trip of XitiTagHitCodec, and the size of the encoded hits against their urls
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagHitCodecTest {
+
+	private final static long T0 = 1700000000000L;
+
+	@After
+	public void tearDown() {
+		try {
+			XitiTag.terminate(5000);
+		} catch (IllegalStateException e) {
+			// not initialized
+		}
+	}
+
+	/**
+	 * Encode the hits in one stream, then decode them with a fresh codec
+	 * @param sizes receives the encoded size of each hit
+	 */
+	private static List<XitiTagOperation> roundTrip(List<XitiTagOperation> operations, List<Integer> sizes) throws Exception {
+
+		XitiTagHitCodec encoder = new XitiTagHitCodec();
+		List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+		for ( XitiTagOperation operation : operations ) {
+			int max = XitiTagHitCodec.maxEncodedSize(operation);
+			ByteBuffer out = ByteBuffer.allocate(max);
+			encoder.encode(operation, out);
+			assertTrue(out.position() <= max);
+			sizes.add(out.position());
+			out.flip();
+			records.add(out);
+		}
+
+		XitiTagHitCodec decoder = new XitiTagHitCodec();
+		List<XitiTagOperation> decoded = new ArrayList<XitiTagOperation>();
+		for ( ByteBuffer record : records ) {
+			decoded.add(decoder.decode(record));
+			assertEquals(0, record.remaining());
+		}
+		return decoded;
+	}
+
+	private static void assertSameHit(XitiTagOperation expected, XitiTagOperation actual) {
+		if ( expected.getTracker() == null ) {
+			assertNull(actual.getTracker());
+		} else {
+			assertEquals(expected.getTracker().getSubdomain(), actual.getTracker().getSubdomain());
+			assertEquals(expected.getTracker().getSiteId(), actual.getTracker().getSiteId());
+		}
+		assertEquals(expected.getPage(), actual.getPage());
+		assertSame(expected.getActionType(), actual.getActionType());
+		assertEquals(expected.getSubsiteId(), actual.getSubsiteId());
+		assertEquals(expected.getOrderingKey(), actual.getOrderingKey());
+		assertEquals(expected.getCreationTime(), actual.getCreationTime());
+		assertEquals(expected.getSampleRate(), actual.getSampleRate(), 1e-6f);
+		assertEquals(expected.getSessionId(), actual.getSessionId());
+		assertEquals(expected.getSessionSequence(), actual.getSessionSequence());
+		assertEquals(expected.getPreviousPage(), actual.getPreviousPage());
+		assertEquals(expected.getPreviousPageDuration(), actual.getPreviousPageDuration());
+	}
+
+	@Test
+	public void everyFieldSurvivesTheRoundTrip() throws Exception {
+
+		XitiTagTracker tracker = new XitiTagTracker("logc12", "123456", null);
+		List<XitiTagOperation> operations = new ArrayList<XitiTagOperation>();
+
+		// default tracker, page hit
+		operations.add(new XitiTagOperation(null, "home", null, null, null, T0));
+		// every action type, the time going back and forth
+		long time = T0;
+		for ( XitiTagActionType actionType : XitiTagActionType.values() ) {
+			time += actionType.ordinal() % 2 == 0 ? 1500 : -700;
+			operations.add(new XitiTagOperation(tracker, "click_" + actionType, actionType, "7", "key", time));
+		}
+		// far in the past, e.g. an old hit replayed after a newer one
+		operations.add(new XitiTagOperation(tracker, "home", null, "7", "key", T0 - 86400000L * 30));
+
+		XitiTagOperation sampled = new XitiTagOperation(tracker, "search", null, null, "search", T0 + 5000);
+		sampled.setSampleRate(0.125f);
+		operations.add(sampled);
+		XitiTagOperation rare = new XitiTagOperation(tracker, "search", null, null, "search", T0 + 6000);
+		rare.setSampleRate(0.000001f);
+		operations.add(rare);
+
+		XitiTagOperation first = new XitiTagOperation(tracker, "home", null, null, null, T0 + 7000);
+		first.setSession(Long.MAX_VALUE, 0, null, -1);
+		operations.add(first);
+		XitiTagOperation next = new XitiTagOperation(tracker, "cart", null, "7", null, T0 + 9000);
+		next.setSession(Long.MAX_VALUE, 1, "home", 2000);
+		operations.add(next);
+		XitiTagOperation immediate = new XitiTagOperation(tracker, "pay", null, null, null, T0 + 9000);
+		immediate.setSession(42, 2, "cart", 0);
+		operations.add(immediate);
+
+		// unicode names
+		operations.add(new XitiTagOperation(tracker, "résumé_日本", null, null, null, T0 + 10000));
+
+		List<XitiTagOperation> decoded = roundTrip(operations, new ArrayList<Integer>());
+		assertEquals(operations.size(), decoded.size());
+		for ( int i = 0; i < operations.size(); i++ ) {
+			assertSameHit(operations.get(i), decoded.get(i));
+		}
+
+		// the decoded hits of a site share their tracker
+		assertSame(decoded.get(1).getTracker(), decoded.get(2).getTracker());
+	}
+
+	@Test
+	public void hitsWrittenWithoutTheOptionalFieldsAreDecoded() throws Exception {
+
+		// the journals of the previous versions end each hit after the time
+		XitiTagHitCodec encoder = new XitiTagHitCodec();
+		ByteBuffer out = ByteBuffer.allocate(64);
+		encoder.encode(new XitiTagOperation(null, "home", null, null, null, T0), out);
+		out.flip();
+		out.limit(out.limit() - 1);
+
+		XitiTagOperation decoded = new XitiTagHitCodec().decode(out);
+		assertEquals("home", decoded.getPage());
+		assertEquals(T0, decoded.getCreationTime());
+		assertEquals(1f, decoded.getSampleRate(), 0f);
+		assertEquals(0, decoded.getSessionId());
+	}
+
+	@Test
+	public void typicalHitsAreAFewBytesInsteadOfTheirUrl() throws Exception {
+
+		XitiTagConfig config = new XitiTagConfig()
+				.setNetworkAware(false)
+				.setJournalEnabled(false);
+		config.setTransport(new XitiTagSinkTransport());
+		XitiTag.init(null, "logc12", "123456", "7", config);
+		XitiTag tag = XitiTag.current();
+
+		// an app going back and forth between a few pages, one hit every few seconds
+		String[] pages = { "home", "search", "product_detail", "cart" };
+		List<XitiTagOperation> operations = new ArrayList<XitiTagOperation>();
+		for ( int i = 0; i < 100; i++ ) {
+			operations.add(new XitiTagOperation(null, pages[i % pages.length], null, "7", pages[i % pages.length], T0 + i * 3000L));
+		}
+
+		List<Integer> sizes = new ArrayList<Integer>();
+		roundTrip(operations, sizes);
+
+		// the previous versions queued and journaled the url of each hit
+		long urlBytes = 0;
+		long encodedBytes = 0;
+		for ( int i = 0; i < operations.size(); i++ ) {
+			urlBytes += tag.buildUrl(operations.get(i)).length();
+			encodedBytes += sizes.get(i);
+			if ( i >= pages.length ) {
+				// names seen: the 8 to 10 bytes of the class documentation
+				assertTrue("hit " + i + ": " + sizes.get(i) + " bytes", sizes.get(i) >= 8 && sizes.get(i) <= 10);
+			}
+		}
+		assertTrue(urlBytes + " url bytes, " + encodedBytes + " encoded", encodedBytes * 10 < urlBytes);
+
+		// a session adds its random 63 bits id, sequence, previous page and time on it: still a fraction of the url
+		XitiTagOperation inSession = new XitiTagOperation(null, "cart", null, "7", "cart", T0);
+		inSession.setSession(Long.MAX_VALUE, 12, "product_detail", 3000);
+		List<XitiTagOperation> session = new ArrayList<XitiTagOperation>(operations.subList(0, pages.length));
+		session.add(inSession);
+		sizes.clear();
+		roundTrip(session, sizes);
+		int size = sizes.get(sizes.size() - 1);
+		assertTrue(size + " bytes", size <= 10 + 9 + 1 + 1 + 2);
+		String url = tag.buildUrl(inSession);
+		assertTrue(size + " bytes, url " + url.length(), size * 5 < url.length());
+	}
+
+}
@@ -0,0 +1,99 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Replay of XitiTagJournal
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static XitiTagOperation page(String page) {
+		return new XitiTagOperation(page, null, null, page, 0);
+	}
+
+	/**
+	 * Collects the replayed hits and the threads replaying them
+	 */
+	private static class Collector implements XitiTagJournal.Replay {
+
+		final List<String> pages = new ArrayList<String>();
+		final List<String> threads = new ArrayList<String>();
+
+		@Override
+		public synchronized void replay(XitiTagOperation operation) {
+			pages.add(operation.getPage());
+			threads.add(Thread.currentThread().getName());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void unacknowledgedHitsAreReplayedOnTheWriterThread() throws Exception {
+
+		XitiTagJournal journal = new XitiTagJournal(folder.getRoot(), 1, 10);
+		journal.open(new Collector());
+		XitiTagOperation home = page("home");
+		XitiTagOperation search = page("search");
+		XitiTagOperation cart = page("cart");
+		journal.append(home);
+		journal.append(search);
+		journal.append(cart);
+		journal.ack(search);
+		assertTrue(journal.sync(5000));
+		journal.close();
+
+		Collector collector = new Collector();
+		XitiTagJournal reopened = new XitiTagJournal(folder.getRoot(), 1, 10);
+		reopened.open(collector);
+
+		// appended while the journal opens: written after the replayed hits, not replayed
+		reopened.append(page("checkout"));
+		assertTrue(reopened.sync(5000));
+		reopened.close();
+
+		assertEquals(Arrays.asList("home", "cart"), collector.pages);
+		assertEquals(Arrays.asList("XitiTag-journal", "XitiTag-journal"), collector.threads);
+
+		// the sync is answered by the writer loop, once the hits are replayed
+		Collector next = new Collector();
+		XitiTagJournal third = new XitiTagJournal(folder.getRoot(), 1, 10);
+		third.open(next);
+		assertTrue(third.sync(5000));
+		third.close();
+
+		assertEquals(Arrays.asList("home", "cart", "checkout"), next.pages);
+	}
+
+}
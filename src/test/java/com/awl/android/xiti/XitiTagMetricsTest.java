@@ -0,0 +1,194 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import com.awl.android.xiti.XitiTagMetrics.HistogramSnapshot;
+import com.awl.android.xiti.XitiTagRetryPolicy.Outcome;
+
+/**
+ * Counters, histograms, snapshots and reporter of XitiTagMetrics
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagMetricsTest {
+
+	private static XitiTagOperation hit(long creationTime) {
+		return new XitiTagOperation("accueil", null, null, "accueil", creationTime);
+	}
+
+	@Test
+	public void countersAddUpOverThreads() throws InterruptedException {
+		final XitiTagMetrics metrics = new XitiTagMetrics(true);
+
+		Thread[] threads = new Thread[8];
+		for ( int i = 0; i < threads.length; i++ ) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for ( int j = 0; j < 1000; j++ ) {
+						metrics.recordTagged();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for ( Thread thread : threads ) {
+			thread.join();
+		}
+
+		assertEquals(8000, metrics.snapshot(0, 0, 0, 0, 0).getTagged());
+	}
+
+	@Test
+	public void snapshotHoldsTheRecordedValues() {
+		XitiTagMetrics metrics = new XitiTagMetrics(true);
+		long now = System.currentTimeMillis();
+
+		metrics.recordTagged();
+		metrics.recordTagged();
+		metrics.recordSend(hit(now - 100), Outcome.RETRYABLE_FAILURE, metrics.startTimer());
+		metrics.recordRetry();
+		metrics.recordSend(hit(now - 100), Outcome.SENT, metrics.startTimer());
+		metrics.recordSend(hit(now), Outcome.PERMANENT_FAILURE, metrics.startTimer());
+		metrics.recordError();
+		metrics.recordBytes(3, 300);
+
+		XitiTagMetrics.Snapshot snapshot = metrics.snapshot(5, 6, 7, 8, 9);
+		assertTrue(snapshot.isEnabled());
+		assertEquals(5, snapshot.getQueueSize());
+		assertEquals(6, snapshot.getDropped());
+		assertEquals(7, snapshot.getSuppressed());
+		assertEquals(8, snapshot.getSampledOut());
+		assertEquals(9, snapshot.getRateLimited());
+		assertEquals(2, snapshot.getTagged());
+		assertEquals(1, snapshot.getSent());
+		assertEquals(1, snapshot.getRetried());
+		assertEquals(1, snapshot.getRetryableFailures());
+		assertEquals(1, snapshot.getPermanentFailures());
+		assertEquals(1, snapshot.getErrors());
+		assertEquals(300, snapshot.getBytesSent());
+
+		assertEquals(3, snapshot.getSendLatency().getCount());
+		assertEquals(1, snapshot.getQueueLatency().getCount());
+		assertTrue(snapshot.getQueueLatency().getMax() >= 100);
+		assertEquals(3, snapshot.getHitBytes().getCount());
+		assertEquals(100, snapshot.getHitBytes().getMean(), 0);
+	}
+
+	@Test
+	public void bucketsBoundTheValuesWithin12Percent() {
+		for ( long value = 0; value < 1000000; value += 1 + value / 100 ) {
+			long highest = XitiTagMetrics.Histogram.highestValue(XitiTagMetrics.Histogram.bucket(value));
+			assertTrue(value + " -> " + highest, highest >= value);
+			assertTrue(value + " -> " + highest, highest - value <= value / 8);
+		}
+		assertTrue(XitiTagMetrics.Histogram.highestValue(XitiTagMetrics.Histogram.bucket(Long.MAX_VALUE)) >= Long.MAX_VALUE / 8 * 7);
+	}
+
+	@Test
+	public void percentilesOfAHistogram() {
+		XitiTagMetrics.Histogram histogram = new XitiTagMetrics.Histogram();
+		for ( long value = 1; value <= 1000; value++ ) {
+			histogram.record(value);
+		}
+		histogram.record(-5); // counted as 0
+
+		HistogramSnapshot snapshot = histogram.snapshot();
+		assertEquals(1001, snapshot.getCount());
+		assertEquals(1000, snapshot.getMax());
+		assertEquals(500500 / 1001.0, snapshot.getMean(), 0.001);
+		assertEquals(0, snapshot.getValueAtPercentile(0));
+		long p50 = snapshot.getValueAtPercentile(50);
+		assertTrue("p50 " + p50, p50 >= 500 && p50 <= 500 * 9 / 8);
+		long p99 = snapshot.getValueAtPercentile(99);
+		assertTrue("p99 " + p99, p99 >= 990 && p99 <= 1000);
+		assertEquals(1000, snapshot.getValueAtPercentile(100));
+		assertEquals(0, new XitiTagMetrics.Histogram().snapshot().getValueAtPercentile(50));
+	}
+
+	@Test
+	public void disabledMetricsRecordNothing() {
+		XitiTagMetrics metrics = new XitiTagMetrics(false);
+
+		assertEquals(0, metrics.startTimer());
+		metrics.recordTagged();
+		metrics.recordSend(hit(System.currentTimeMillis()), Outcome.SENT, 0);
+		metrics.recordRetry();
+		metrics.recordError();
+		metrics.recordBytes(1, 100);
+
+		XitiTagMetrics.Snapshot snapshot = metrics.snapshot(2, 3, 0, 0, 0);
+		assertFalse(snapshot.isEnabled());
+		assertEquals(2, snapshot.getQueueSize());
+		assertEquals(3, snapshot.getDropped());
+		assertEquals(0, snapshot.getTagged());
+		assertEquals(0, snapshot.getSent());
+		assertEquals(0, snapshot.getRetried());
+		assertEquals(0, snapshot.getErrors());
+		assertEquals(0, snapshot.getBytesSent());
+		assertEquals(0, snapshot.getSendLatency().getCount());
+		assertEquals(0, snapshot.getHitBytes().getCount());
+	}
+
+	@Test(timeout = 10000)
+	public void reporterReceivesTheSnapshots() throws InterruptedException {
+		final List<XitiTagMetrics.Snapshot> reports = new CopyOnWriteArrayList<XitiTagMetrics.Snapshot>();
+		XitiTagConfig config = new XitiTagConfig()
+				.setNetworkAware(false)
+				.setJournalEnabled(false)
+				.setMetricsReportInterval(50)
+				.setMetricsReporter(new XitiTagMetricsReporter() {
+					@Override
+					public void report(XitiTagMetrics.Snapshot snapshot) {
+						reports.add(snapshot);
+					}
+				});
+		config.setTransport(new XitiTagSinkTransport());
+		XitiTag.init(null, "test", "1", null, config);
+
+		for ( int i = 0; i < 3; i++ ) {
+			XitiTag.tagPage("page_" + i);
+		}
+		Thread.sleep(200);
+		assertFalse(reports.isEmpty());
+		XitiTag.terminate(5000);
+
+		// a last report is made when the workers stop
+		long deadline = System.currentTimeMillis() + 5000;
+		while ( reports.get(reports.size() - 1).getSent() < 3 && System.currentTimeMillis() < deadline ) {
+			Thread.sleep(10);
+		}
+		XitiTagMetrics.Snapshot last = reports.get(reports.size() - 1);
+		assertEquals(3, last.getTagged());
+		assertEquals(3, last.getSent());
+		assertEquals(3, last.getHitBytes().getCount());
+	}
+
+}
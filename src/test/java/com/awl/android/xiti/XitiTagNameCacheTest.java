@@ -0,0 +1,103 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Interning, lazy forms and CLOCK eviction of XitiTagNameCache
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagNameCacheTest {
+
+	@Test
+	public void internSharesOneInstanceOfEachName() {
+		XitiTagNameCache cache = new XitiTagNameCache(4);
+
+		String name = cache.intern(new String("accueil")).name;
+
+		assertSame(name, cache.intern(new String("accueil")).name);
+		assertSame(name, cache.get(new String("accueil")).name);
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void formsAreComputedWhenRead() {
+		XitiTagNameCache cache = new XitiTagNameCache(4);
+		String name = "Page d'été & co";
+
+		XitiTagNameCache.Entry entry = cache.intern(name);
+
+		assertEquals(XitiTagEscaper.escapePageName(name), entry.escaped());
+		assertEquals("Page%20d%27%C3%A9t%C3%A9%20%26%20co", entry.encoded());
+		assertSame(entry.encoded(), entry.encoded());
+	}
+
+	@Test
+	public void internOnlyAdmitsOnceTheCapacityIsWaiting() {
+		XitiTagNameCache cache = new XitiTagNameCache(4);
+
+		for ( int i = 0; i < 7; i++ ) {
+			cache.intern("page_" + i);
+		}
+		assertEquals(0, cache.getEvictions());
+
+		for ( int i = 7; i < 11; i++ ) {
+			cache.intern("page_" + i);
+		}
+		assertEquals(4, cache.getEvictions());
+	}
+
+	@Test
+	public void getKeepsTheCacheBounded() {
+		XitiTagNameCache cache = new XitiTagNameCache(4);
+
+		for ( int i = 0; i < 12; i++ ) {
+			cache.get("page_" + i);
+		}
+
+		assertEquals(8, cache.getEvictions());
+	}
+
+	@Test
+	public void entriesReadAgainAreNotEvicted() {
+		XitiTagNameCache cache = new XitiTagNameCache(4);
+
+		XitiTagNameCache.Entry a = cache.get("a");
+		XitiTagNameCache.Entry b = cache.get("b");
+		cache.get("c");
+		cache.get("d");
+		cache.get("a");
+
+		cache.get("e");
+
+		assertEquals(1, cache.getEvictions());
+		assertSame(a, cache.get("a"));
+		assertNotSame(b, cache.get("b"));
+	}
+
+}
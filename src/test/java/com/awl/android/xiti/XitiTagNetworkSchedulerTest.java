@@ -0,0 +1,191 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * XitiTagNetworkScheduler driven by a simulated network
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagNetworkSchedulerTest {
+
+	/**
+	 * Network state set by the test
+	 */
+	private static class Connectivity implements XitiTagConnectivity {
+
+		volatile boolean connected;
+		volatile boolean wifi;
+		volatile Listener listener;
+		volatile boolean closed;
+
+		void change(boolean connected, boolean wifi) {
+			this.connected = connected;
+			this.wifi = wifi;
+			Listener current = listener;
+			if ( current != null ) {
+				current.onConnectivityChanged();
+			}
+		}
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+		@Override
+		public boolean isWifi() {
+			return wifi;
+		}
+
+		@Override
+		public void setListener(Listener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	private final Connectivity connectivity = new Connectivity();
+
+	private XitiTagSinkTransport transport;
+
+	@Before
+	public void setUp() {
+		connectivity.connected = true;
+	}
+
+	@After
+	public void tearDown() {
+		try {
+			XitiTag.terminate(1000);
+		} catch (IllegalStateException e) {
+			// terminated by the test
+		}
+	}
+
+	private void init(long wifiMaxDelay) {
+		transport = new XitiTagSinkTransport();
+		XitiTagConfig config = new XitiTagConfig()
+				.setWorkerCount(1)
+				.setJournalEnabled(false)
+				.setNetworkAware(true)
+				.setConnectivity(connectivity)
+				.setWifiMaxDelay(wifiMaxDelay);
+		config.setTransport(transport);
+		XitiTag.init(null, "test", "1", null, config);
+	}
+
+	/**
+	 * @return true if count hits were sent within timeout ms
+	 */
+	private boolean awaitSent(int count, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while ( transport.getSentCount() < count ) {
+			if ( System.currentTimeMillis() >= deadline ) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	@Test(timeout = 10000)
+	public void hitsAreHeldOfflineAndFlushedOnReconnect() throws InterruptedException {
+
+		connectivity.connected = false;
+		init(0);
+		for ( int i = 0; i < 5; i++ ) {
+			XitiTag.tagPage("page_" + i);
+		}
+
+		Thread.sleep(300);
+		assertEquals(0, transport.getSentCount());
+
+		connectivity.change(true, false);
+		assertTrue(awaitSent(5, 2000));
+	}
+
+	@Test(timeout = 10000)
+	public void mobileHitsWaitForWifiUpToTheMaxDelay() throws InterruptedException {
+
+		init(800);
+		long start = System.currentTimeMillis();
+		XitiTag.tagPage("accueil");
+
+		Thread.sleep(300);
+		assertEquals(0, transport.getSentCount());
+
+		assertTrue(awaitSent(1, 3000));
+		assertTrue(System.currentTimeMillis() - start >= 800);
+
+		// the radio is awake after a send: the next hit does not wait
+		long next = System.currentTimeMillis();
+		XitiTag.tagPage("liste");
+		assertTrue(awaitSent(2, 3000));
+		assertTrue(System.currentTimeMillis() - next < 800);
+	}
+
+	@Test(timeout = 10000)
+	public void wifiReleasesTheHeldHits() throws InterruptedException {
+
+		init(60000);
+		XitiTag.tagPage("accueil");
+
+		Thread.sleep(300);
+		assertEquals(0, transport.getSentCount());
+
+		connectivity.change(true, true);
+		assertTrue(awaitSent(1, 2000));
+	}
+
+	@Test(timeout = 10000)
+	public void applicationConnectivityIsKeptForTheNextInit() throws InterruptedException {
+
+		init(0);
+		XitiTag.terminate();
+
+		assertFalse(connectivity.closed);
+		assertNull(connectivity.listener);
+
+		// held offline, flushed when the same connectivity reconnects
+		connectivity.connected = false;
+		init(0);
+		XitiTag.tagPage("accueil");
+		Thread.sleep(300);
+		assertEquals(0, transport.getSentCount());
+		connectivity.change(true, false);
+		assertTrue(awaitSent(1, 2000));
+	}
+
+}
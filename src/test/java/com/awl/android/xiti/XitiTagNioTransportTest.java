@@ -0,0 +1,98 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * XitiTagNioTransport against a local XitiTagStubServer
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagNioTransportTest {
+
+	private XitiTagStubServer server;
+
+	private XitiTagNioTransport transport;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new XitiTagStubServer();
+		transport = new XitiTagNioTransport(1000, 1000);
+	}
+
+	@After
+	public void tearDown() {
+		transport.close();
+		server.stop();
+	}
+
+	@Test(timeout = 10000)
+	public void sendReusesTheConnection() throws Exception {
+		for ( int i = 0; i < 3; i++ ) {
+			assertEquals(200, transport.send(server.getUrl() + "/hit.xiti?s=1&p='page_" + i + "'"));
+		}
+		assertEquals(3, server.getHits().size());
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	@Test(timeout = 10000)
+	public void unresolvedHostFails() {
+		try {
+			transport.send("http://unresolved.invalid/hit.xiti?s=1");
+			fail("an unresolved host must fail");
+		} catch (UnknownHostException e) {
+			// expected, and the selector thread keeps serving
+		} catch (IOException e) {
+			fail("the name must not be resolved: " + e);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void namesAreResolvedOnce() throws Exception {
+		String url = server.getUrl().replace("127.0.0.1", "localhost") + "/hit.xiti?s=1&p='page'";
+		for ( int i = 0; i < 3; i++ ) {
+			assertEquals(200, transport.send(url));
+		}
+		assertEquals(3, server.getHits().size());
+		// the cached address reaches the idle connection of the first request
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	@Test(timeout = 10000)
+	public void slowServerTimesOut() throws Exception {
+		server.setLatency(3000);
+		try {
+			transport.send(server.getUrl() + "/hit.xiti?s=1");
+			fail("a server slower than the read timeout must fail");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
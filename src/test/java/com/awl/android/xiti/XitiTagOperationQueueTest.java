@@ -0,0 +1,103 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+import com.awl.android.xiti.XitiTagConfig.XitiTagPriority;
+
+/**
+ * Lanes of XitiTagOperationQueue
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagOperationQueueTest {
+
+	private static XitiTagOperation page(String page) {
+		return new XitiTagOperation(page, null, null, page, 0);
+	}
+
+	private static XitiTagOperation click(String page, XitiTagActionType actionType) {
+		return new XitiTagOperation("click", actionType, null, page, 0);
+	}
+
+	@Test
+	public void higherPriorityHitsGoFirst() throws InterruptedException {
+
+		XitiTagOperationQueue queue = new XitiTagOperationQueue(new XitiTagConfig());
+		queue.setStrictPriority(true);
+
+		XitiTagOperation home = page("Home");
+		XitiTagOperation download = click("Search", XitiTagActionType.XitiTagActionTypeDownload);
+		queue.put(home);
+		queue.put(download);
+
+		assertSame(download, queue.take());
+		assertSame(home, queue.take());
+	}
+
+	@Test
+	public void actionStaysBehindItsPage() throws InterruptedException {
+
+		XitiTagOperationQueue queue = new XitiTagOperationQueue(new XitiTagConfig());
+		queue.setStrictPriority(true);
+
+		XitiTagOperation home = page("Home");
+		XitiTagOperation download = click("Home", XitiTagActionType.XitiTagActionTypeDownload);
+		XitiTagOperation exit = click("Home", XitiTagActionType.XitiTagActionTypeExit);
+		queue.put(home);
+		queue.put(download);
+		queue.put(exit);
+
+		assertEquals(3, queue.size(XitiTagPriority.XitiTagPriorityNormal));
+		assertSame(home, queue.take());
+		assertSame(download, queue.take());
+		assertSame(exit, queue.take());
+		assertNull(queue.poll());
+
+		// once the page hit is gone, the actions of the key have their own lane again
+		queue.put(click("Home", XitiTagActionType.XitiTagActionTypeDownload));
+		assertEquals(1, queue.size(XitiTagPriority.XitiTagPriorityHigh));
+	}
+
+	@Test
+	public void keyLaneSurvivesDroppedHits() throws InterruptedException {
+
+		XitiTagOperationQueue queue = new XitiTagOperationQueue(new XitiTagConfig());
+
+		XitiTagOperation navigation = click("Home", XitiTagActionType.XitiTagActionTypeNavigation);
+		XitiTagOperation download = click("Home", XitiTagActionType.XitiTagActionTypeDownload);
+		queue.put(navigation);
+		queue.put(download);
+
+		assertSame(navigation, queue.pollLowest(page("Other")));
+		assertEquals(1, queue.size(XitiTagPriority.XitiTagPriorityLow));
+		assertEquals(true, queue.remove(download));
+
+		queue.put(download);
+		assertEquals(1, queue.size(XitiTagPriority.XitiTagPriorityHigh));
+	}
+
+}
@@ -0,0 +1,238 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.awl.android.xiti.XitiTagConfig.XitiTagPostMode;
+
+/**
+ * Gzip posts of XitiTagConfig.setPostMode, against a local XitiTagStubServer
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagPostTest {
+
+	private final static String POST_URL = "http://collector.example.com/hits";
+
+	private XitiTagStubServer server;
+
+	/**
+	 * Urls and bodies as given by XitiTag, before the redirection to the server
+	 */
+	private final List<String> urls = new ArrayList<String>();
+
+	private final List<byte[]> bodies = new ArrayList<byte[]>();
+
+	@Before
+	public void setUp() throws Exception {
+		server = new XitiTagStubServer();
+	}
+
+	@After
+	public void tearDown() {
+		try {
+			XitiTag.terminate(5000);
+		} catch (IllegalStateException e) {
+			// not initialized
+		}
+		server.stop();
+	}
+
+	private void init(XitiTagConfig config) {
+		final XitiTagTransport transport = server.redirect(new XitiTagApacheTransport(1, 1000, 1000));
+		config.setNetworkAware(false)
+				.setJournalEnabled(false)
+				.setTransport(new XitiTagTransport() {
+
+					@Override
+					public void setTimeouts(int connectTimeout, int readTimeout) {
+						transport.setTimeouts(connectTimeout, readTimeout);
+					}
+
+					@Override
+					public int send(String url) throws IOException {
+						synchronized ( urls ) {
+							urls.add(url);
+							bodies.add(null);
+						}
+						return transport.send(url);
+					}
+
+					@Override
+					public int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+						assertEquals("gzip", contentEncoding);
+						synchronized ( urls ) {
+							urls.add(url);
+							bodies.add(body);
+						}
+						return transport.post(url, body, contentType, contentEncoding);
+					}
+
+					@Override
+					public void close() {
+						transport.close();
+					}
+				});
+		XitiTag.init(null, "test", "1", null, config);
+	}
+
+	private static List<String> lines(byte[] body) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(body)), "UTF-8"));
+		List<String> lines = new ArrayList<String>();
+		String line;
+		while ( (line = reader.readLine()) != null ) {
+			lines.add(line);
+		}
+		return lines;
+	}
+
+	/**
+	 * @return size of the scheme and host of url, sent in the Host header rather than in the request line
+	 */
+	private static int originLength(String url) {
+		return url.indexOf('/', url.indexOf("://") + 3);
+	}
+
+	@Test(timeout = 10000)
+	public void batchIsPostedAsDeviceLineThenOneLinePerHit() throws Exception {
+
+		init(new XitiTagConfig()
+				.setWorkerCount(1)
+				.setBatchSize(5)
+				.setBatchLinger(2000)
+				.setPostMode(XitiTagPostMode.XitiTagPostModeBatch, POST_URL));
+
+		for ( int i = 0; i < 5; i++ ) {
+			XitiTag.tagPage("page_" + i);
+		}
+		assertTrue(server.awaitHits(5, 5000));
+
+		assertEquals(1, server.getRequestCount());
+		assertEquals(POST_URL, urls.get(0));
+
+		List<String> lines = lines(bodies.get(0));
+		assertEquals(6, lines.size());
+		assertTrue("device line " + lines.get(0), lines.get(0).startsWith("&") && !lines.get(0).contains("://"));
+		for ( int i = 0; i < 5; i++ ) {
+			String hit = lines.get(i + 1);
+			assertTrue(hit, hit.startsWith("http://"));
+			assertTrue(hit, hit.contains("p='page_" + i));
+			// the device parameters are not repeated
+			assertFalse(hit, hit.endsWith(lines.get(0)));
+		}
+
+		// hits in order on the collector side
+		List<String> hits = server.getHits();
+		for ( int i = 0; i < 5; i++ ) {
+			assertTrue(hits.get(i), hits.get(i).contains("p='page_" + i));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void oversizedGetIsPosted() throws Exception {
+
+		init(new XitiTagConfig()
+				.setWorkerCount(1)
+				.setMaxUrlLength(300)
+				.setPostMode(XitiTagPostMode.XitiTagPostModeOversized, POST_URL));
+
+		StringBuilder longName = new StringBuilder("long_");
+		while ( longName.length() < 400 ) {
+			longName.append("abcdefghij");
+		}
+
+		XitiTag.tagPage("short");
+		XitiTag.tagPage(longName.toString());
+		assertEquals(2, XitiTag.flush(5000).getSent());
+
+		assertEquals(2, server.getRequestCount());
+		String get = urls.get(0);
+		assertTrue(get, get.length() <= 300 && get.contains("p='short'"));
+		assertEquals(null, bodies.get(0));
+		assertEquals(POST_URL, urls.get(1));
+
+		// the collector rebuilds the GET by appending the device line to the hit line
+		List<String> lines = lines(bodies.get(1));
+		assertEquals(2, lines.size());
+		assertTrue(get, get.endsWith(lines.get(0)));
+		String rebuilt = lines.get(1) + lines.get(0);
+		assertTrue(rebuilt, rebuilt.contains("p='" + longName));
+		assertTrue(rebuilt, rebuilt.length() > 300);
+
+		assertTrue(server.getHits().get(1).contains("p='" + longName));
+	}
+
+	@Test(timeout = 10000)
+	public void bytesSentMatchWhatTheServerReceived() throws Exception {
+
+		init(new XitiTagConfig()
+				.setWorkerCount(1)
+				.setBatchSize(4)
+				.setBatchLinger(500)
+				.setMaxUrlLength(300)
+				.setPostMode(XitiTagPostMode.XitiTagPostModeBatch, POST_URL));
+
+		StringBuilder longName = new StringBuilder("long_");
+		while ( longName.length() < 400 ) {
+			longName.append("abcdefghij");
+		}
+
+		for ( int i = 0; i < 10; i++ ) {
+			XitiTag.tagPage(i == 3 ? longName.toString() : "page_" + i);
+		}
+		assertEquals(10, XitiTag.flush(5000).getSent());
+		assertTrue(server.awaitHits(10, 5000));
+
+		// the metric counts the whole url, the server sees the request line: only the origins differ
+		long origins = 0;
+		long compressed = 0;
+		long raw = 0;
+		for ( int i = 0; i < urls.size(); i++ ) {
+			origins += originLength(urls.get(i));
+			if ( bodies.get(i) != null ) {
+				compressed += bodies.get(i).length;
+				for ( String line : lines(bodies.get(i)) ) {
+					raw += line.length() + 1;
+				}
+			}
+		}
+		assertEquals(urls.size(), server.getRequestCount());
+		assertEquals(server.getReceivedBytes() + origins, XitiTag.getMetrics().getBytesSent());
+
+		// gzip pays off on the wire
+		assertTrue(compressed + " compressed, " + raw + " raw", compressed < raw);
+	}
+
+}
@@ -0,0 +1,65 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * XitiTagReplay tool, replaying hits through the default transport to its local collector
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagReplayTest {
+
+	@Test(timeout = 30000)
+	public void hitsAreReplayedOverHttp() throws Exception {
+
+		XitiTagTracker site = new XitiTagTracker("replay", "42", null);
+		List<XitiTagOperation> hits = new ArrayList<XitiTagOperation>();
+		for ( int i = 0; i < 20; i++ ) {
+			hits.add(new XitiTagOperation(site, "page_" + i, null, null, null, 1000 + i));
+			hits.add(new XitiTagOperation(site, "click_" + i, XitiTagActionType.XitiTagActionTypeAction, null, null, 1000 + i));
+		}
+
+		XitiTagConfig config = new XitiTagConfig().setWorkerCount(2);
+		XitiTagReplay.Report report = new XitiTagReplay(hits).setSpeed(0).setCollectorLatency(1).run(null, config);
+
+		assertEquals(40, report.getReplayed());
+		assertEquals(40, report.getReceived());
+		assertTrue(report.getRequests() >= 40);
+		assertTrue(report.getReceivedBytes() > 0);
+		assertTrue(report.getFlushResult().isComplete());
+
+		// the configuration evaluated is left as it was
+		assertNull(config.getTransport());
+		assertTrue(config.isNetworkAware());
+		assertTrue(config.isJournalEnabled());
+	}
+
+}
@@ -0,0 +1,148 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * Retries and circuit breaker of XitiTagDispatcher, with errors injected by a local XitiTagStubServer
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagRetryTest {
+
+	private XitiTagStubServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new XitiTagStubServer();
+	}
+
+	@After
+	public void tearDown() {
+		XitiTag.terminate(5000);
+		server.stop();
+	}
+
+	private void init(XitiTagConfig config) {
+		config.setWorkerCount(2)
+				.setNetworkAware(false)
+				.setJournalEnabled(false)
+				.setRetryBaseDelay(10)
+				.setRetryMaxDelay(1000);
+		config.setTransport(server.redirect(new XitiTagApacheTransport(2, config.getConnectTimeout(), config.getReadTimeout())));
+		XitiTag.init(null, "test", "1", null, config);
+	}
+
+	@Test(timeout = 10000)
+	public void retryableFailuresAreRetried() {
+
+		init(new XitiTagConfig());
+		server.inject(2, 503);
+		XitiTag.tagPage("home");
+
+		XitiTagFlushResult result = XitiTag.flush(5000);
+		assertEquals(1, result.getSent());
+		assertEquals(3, server.getRequestCount());
+		assertEquals(1, server.getHits().size());
+	}
+
+	@Test(timeout = 10000)
+	public void droppedConnectionIsRetried() {
+
+		init(new XitiTagConfig());
+		server.inject(1, XitiTagStubServer.DROP);
+		XitiTag.tagPage("home");
+
+		XitiTagFlushResult result = XitiTag.flush(5000);
+		assertEquals(1, result.getSent());
+		assertEquals(1, server.getHits().size());
+	}
+
+	@Test(timeout = 10000)
+	public void permanentFailureIsDropped() {
+
+		init(new XitiTagConfig());
+		server.inject(1, 400);
+		XitiTag.tagPage("home");
+
+		XitiTagFlushResult result = XitiTag.flush(5000);
+		assertEquals(0, result.getSent());
+		assertEquals(1, result.getDropped());
+		assertEquals(1, server.getRequestCount());
+	}
+
+	@Test(timeout = 10000)
+	public void circuitOpensThenProbes() throws InterruptedException {
+
+		init(new XitiTagConfig().setCircuitFailureThreshold(2).setCircuitOpenDuration(500).setMaxAttempts(10));
+		server.inject(3, 503);
+		XitiTag.tagPage("home");
+
+		// two failures open the circuit: no request while it is open
+		long deadline = System.currentTimeMillis() + 2000;
+		while ( server.getRequestCount() < 2 && System.currentTimeMillis() < deadline ) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(200);
+		assertEquals(2, server.getRequestCount());
+
+		// the failed probe opens it again for twice as long, the next probe goes through
+		XitiTagFlushResult result = XitiTag.flush(5000);
+		assertEquals(1, result.getSent());
+		assertEquals(4, server.getRequestCount());
+	}
+
+	@Test(timeout = 10000)
+	public void uncheckedExceptionIsAFailure() {
+
+		init(new XitiTagConfig().setCircuitFailureThreshold(1).setCircuitOpenDuration(100));
+
+		final AtomicInteger failures = new AtomicInteger(1);
+		XitiTagTracker tracker = new XitiTagTracker("test", "2", null) {
+			@Override
+			String getUrlPrefix() {
+				if ( failures.getAndDecrement() > 0 ) {
+					throw new IllegalStateException("injected");
+				}
+				return super.getUrlPrefix();
+			}
+		};
+
+		// the click is handed over behind the page: the key must be released, and the probe too
+		tracker.tagPage("home");
+		tracker.tagAction("click", XitiTagActionType.XitiTagActionTypeAction);
+
+		XitiTagFlushResult result = XitiTag.flush(5000);
+		assertTrue(result.isComplete());
+		assertEquals(2, result.getSent());
+		assertEquals(2, server.getHits().size());
+	}
+
+}
@@ -0,0 +1,59 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Formatting of the sample rate of the hits
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagSampleRateTest {
+
+	private static String format(float rate) {
+		StringBuilder buf = new StringBuilder();
+		XitiTag.appendSampleRate(rate, buf);
+		return buf.toString();
+	}
+
+	@Test
+	public void smallRatesAreNotInScientificNotation() {
+		assertEquals("0.0001", format(0.0001f));
+		assertEquals("0.000001", format(0.000001f));
+		assertEquals("0.00025", format(0.00025f));
+	}
+
+	@Test
+	public void ratesAreTrimmed() {
+		assertEquals("0.5", format(0.5f));
+		assertEquals("0.1", format(0.1f));
+		assertEquals("0.123457", format(0.1234567f));
+		assertEquals("1", format(1f));
+	}
+
+	@Test
+	public void ratesBelowAMillionthAreRoundedUp() {
+		assertEquals("0.000001", format(0.0000001f));
+	}
+}
@@ -0,0 +1,167 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import android.os.SystemClock;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * Sessions of XitiTagSession, with the elapsed time moved by the SystemClock of the tests
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagSessionTest {
+
+	private final static long TIMEOUT = 30 * 60 * 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@After
+	public void tearDown() {
+		SystemClock.reset();
+	}
+
+	private static XitiTagOperation page(XitiTagSession session, String page) {
+		XitiTagOperation operation = new XitiTagOperation(page, null, null, page, System.currentTimeMillis());
+		session.onHit(operation);
+		return operation;
+	}
+
+	private static XitiTagOperation click(XitiTagSession session, String action) {
+		XitiTagOperation operation = new XitiTagOperation(action, XitiTagActionType.XitiTagActionTypeAction, null, action, System.currentTimeMillis());
+		session.onHit(operation);
+		return operation;
+	}
+
+	private File stateFile() {
+		return new File(new File(folder.getRoot(), "xititag"), "session.state");
+	}
+
+	@Test
+	public void hitsAreSequencedWithTheirPreviousPage() {
+		XitiTagSession session = new XitiTagSession(null, TIMEOUT);
+
+		XitiTagOperation home = page(session, "accueil");
+		SystemClock.shift(5000);
+		XitiTagOperation click = click(session, "bouton");
+		XitiTagOperation list = page(session, "liste");
+
+		assertTrue(home.getSessionId() != 0);
+		assertEquals(1, home.getSessionSequence());
+		assertNull(home.getPreviousPage());
+		assertEquals(-1, home.getPreviousPageDuration());
+
+		// an action is made on the current page
+		assertEquals(home.getSessionId(), click.getSessionId());
+		assertEquals(2, click.getSessionSequence());
+		assertEquals("accueil", click.getPreviousPage());
+		assertTrue(click.getPreviousPageDuration() >= 5000);
+
+		assertEquals(3, list.getSessionSequence());
+		assertEquals("accueil", list.getPreviousPage());
+	}
+
+	@Test
+	public void sessionRollsOverAfterTheTimeout() {
+		XitiTagSession session = new XitiTagSession(null, TIMEOUT);
+
+		XitiTagOperation first = page(session, "accueil");
+		SystemClock.shift(TIMEOUT - 1000);
+		XitiTagOperation sameSession = page(session, "liste");
+		SystemClock.shift(TIMEOUT);
+		XitiTagOperation next = page(session, "fiche");
+
+		assertEquals(first.getSessionId(), sameSession.getSessionId());
+		assertNotEquals(first.getSessionId(), next.getSessionId());
+		assertEquals(1, next.getSessionSequence());
+		assertNull(next.getPreviousPage());
+	}
+
+	@Test
+	public void stateIsRestoredFromTheFile() {
+		XitiTagSession session = new XitiTagSession(stateFile(), TIMEOUT);
+		session.open();
+		XitiTagOperation home = page(session, "accueil");
+		page(session, "liste");
+		session.close();
+
+		XitiTagSession restarted = new XitiTagSession(stateFile(), TIMEOUT);
+		restarted.open();
+		XitiTagOperation next = page(restarted, "fiche");
+
+		assertEquals(home.getSessionId(), next.getSessionId());
+		assertEquals(3, next.getSessionSequence());
+		assertEquals("liste", next.getPreviousPage());
+	}
+
+	@Test
+	public void nothingIsWrittenBeforeOpen() {
+		XitiTagSession session = new XitiTagSession(stateFile(), TIMEOUT);
+		XitiTagOperation home = page(session, "accueil");
+
+		assertFalse(stateFile().exists());
+
+		// the session started in memory is written when the file is mapped
+		session.open();
+		session.close();
+		XitiTagSession restarted = new XitiTagSession(stateFile(), TIMEOUT);
+		restarted.open();
+		XitiTagOperation next = page(restarted, "liste");
+
+		assertEquals(home.getSessionId(), next.getSessionId());
+		assertEquals(2, next.getSessionSequence());
+		assertEquals("accueil", next.getPreviousPage());
+	}
+
+	@Test
+	public void rebootStartsANewSession() {
+		XitiTagSession session = new XitiTagSession(stateFile(), TIMEOUT);
+		session.open();
+		XitiTagOperation home = page(session, "accueil");
+		session.close();
+
+		// the elapsed time restarted while the wall clock went on
+		SystemClock.shift(-10 * 60 * 1000);
+		XitiTagSession rebooted = new XitiTagSession(stateFile(), TIMEOUT);
+		rebooted.open();
+		XitiTagOperation next = page(rebooted, "accueil");
+
+		assertNotEquals(home.getSessionId(), next.getSessionId());
+		assertEquals(1, next.getSessionSequence());
+		assertNull(next.getPreviousPage());
+	}
+
+}
@@ -0,0 +1,355 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the Xiti collector, used by the tests, the benchmarks and the replay tool.
+ *
+ * It answers every request with 200 (keep-alive), or the status given to setStatus, after an optional latency,
+ * and records the hits it accepts (status 200) in arrival order: the path and query of a GET,
+ * or each hit line of a gzip POST body. A Listener sees every hit received, whatever the answer. Errors can be injected:
+ * the next requests may be answered with a given status, or have their connection closed without response.
+ * The number of distinct client connections tells whether the transports reuse them.
+ *
+ * The hits are sent to *.xiti.com: redirect(transport) gives a transport sending them to this server instead.
+ *
+ * @author Cyril Cauchois
+ */
+public final class XitiTagStubServer implements HttpHandler {
+
+	/**
+	 * Status injected to close the connection without answering
+	 */
+	public final static int DROP = -1;
+
+	/**
+	 * Notified of every hit received, whatever the answer
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on the thread of the request
+		 * @param hit path and query of the hit
+		 */
+		void onHit(String hit);
+	}
+
+	private final HttpServer server;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private volatile long latency;
+
+	private volatile int status = 200;
+
+	private volatile Listener listener;
+
+	/**
+	 * Statuses of the next requests, answered before falling back to status
+	 */
+	private final List<Integer> injected = new ArrayList<Integer>();
+
+	private final List<String> hits = new ArrayList<String>();
+
+	private final Set<String> connections = new HashSet<String>();
+
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private final AtomicLong receivedBytes = new AtomicLong();
+
+	private final AtomicInteger inProgress = new AtomicInteger();
+
+	private final AtomicInteger maxInProgress = new AtomicInteger();
+
+	public XitiTagStubServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 256);
+		server.createContext("/", this);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @return base url of the server, e.g. http://127.0.0.1:12345
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * @param latency time taken to answer each request (ms)
+	 * @return this server
+	 */
+	public XitiTagStubServer setLatency(long latency) {
+		this.latency = latency;
+		return this;
+	}
+
+	/**
+	 * @param status status answered to the requests, unless injected (200 by default)
+	 * @return this server
+	 */
+	public XitiTagStubServer setStatus(int status) {
+		this.status = status;
+		return this;
+	}
+
+	/**
+	 * @param listener notified of every hit received, null for none
+	 * @return this server
+	 */
+	public XitiTagStubServer setListener(Listener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * Answer the next count requests with status (DROP to close their connection without response)
+	 * @return this server
+	 */
+	public synchronized XitiTagStubServer inject(int count, int status) {
+		for ( int i = 0; i < count; i++ ) {
+			injected.add(status);
+		}
+		return this;
+	}
+
+	/**
+	 * @return copy of the hits received so far, in arrival order (path and query, e.g. /hit.xiti?s=1&amp;p='home'...)
+	 */
+	public synchronized List<String> getHits() {
+		return new ArrayList<String>(hits);
+	}
+
+	/**
+	 * @return number of requests received so far (GET and POST)
+	 */
+	public int getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return size of the request uris and bodies received so far
+	 */
+	public long getReceivedBytes() {
+		return receivedBytes.get();
+	}
+
+	/**
+	 * @return number of distinct client connections seen so far
+	 */
+	public synchronized int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * @return largest number of requests answered at the same time
+	 */
+	public int getMaxInProgress() {
+		return maxInProgress.get();
+	}
+
+	/**
+	 * Wait until count hits were received
+	 * @return false if they were not received within timeout (ms)
+	 */
+	public boolean awaitHits(int count, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized ( this ) {
+			while ( hits.size() < count ) {
+				long wait = deadline - System.currentTimeMillis();
+				if ( wait <= 0 ) {
+					return false;
+				}
+				wait(wait);
+			}
+		}
+		return true;
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+
+		boolean counted = true;
+		int current = inProgress.incrementAndGet();
+		int max;
+		while ( current > (max = maxInProgress.get()) && !maxInProgress.compareAndSet(max, current) ) {
+			// raised by another request meanwhile
+		}
+
+		try {
+			requests.incrementAndGet();
+			byte[] body = readFully(exchange.getRequestBody());
+			receivedBytes.addAndGet(exchange.getRequestURI().toString().length() + body.length);
+
+			int answer;
+			synchronized ( this ) {
+				connections.add(exchange.getRemoteAddress().toString());
+				answer = injected.isEmpty() ? status : injected.remove(0);
+			}
+
+			if ( latency > 0 ) {
+				try {
+					Thread.sleep(latency);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			record(exchange, body, answer == 200);
+
+			// done before answering, the client may send its next request as soon as it has the answer
+			counted = false;
+			inProgress.decrementAndGet();
+
+			if ( answer == DROP ) {
+				exchange.close();
+				return;
+			}
+
+			exchange.sendResponseHeaders(answer, -1);
+			exchange.close();
+		} finally {
+			if ( counted ) {
+				inProgress.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @param accepted true to add the hits of the request to getHits
+	 */
+	private void record(HttpExchange exchange, byte[] body, boolean accepted) throws IOException {
+
+		Listener current = listener;
+		if ( !accepted && current == null ) {
+			return;
+		}
+
+		List<String> received = new ArrayList<String>();
+		if ( "POST".equals(exchange.getRequestMethod()) ) {
+			InputStream in = new ByteArrayInputStream(body);
+			if ( "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding")) ) {
+				in = new GZIPInputStream(in);
+			}
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+			reader.readLine(); // the device parameters, then one hit per line
+			String line;
+			while ( (line = reader.readLine()) != null ) {
+				received.add(line.substring(line.indexOf('/', line.indexOf("://") + 3)));
+			}
+		} else {
+			received.add(exchange.getRequestURI().getRawPath() + "?" + exchange.getRequestURI().getRawQuery());
+		}
+
+		if ( current != null ) {
+			for ( String hit : received ) {
+				current.onHit(hit);
+			}
+		}
+
+		if ( accepted ) {
+			synchronized ( this ) {
+				hits.addAll(received);
+				notifyAll();
+			}
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ( (read = in.read(buffer)) >= 0 ) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * @param transport transport to wrap
+	 * @return transport sending the requests to this server instead of the host of their url
+	 */
+	public XitiTagTransport redirect(final XitiTagTransport transport) {
+		return new XitiTagTransport() {
+
+			@Override
+			public void setTimeouts(int connectTimeout, int readTimeout) {
+				transport.setTimeouts(connectTimeout, readTimeout);
+			}
+
+			@Override
+			public int send(String url) throws IOException {
+				return transport.send(rewrite(url));
+			}
+
+			@Override
+			public int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+				return transport.post(rewrite(url), body, contentType, contentEncoding);
+			}
+
+			@Override
+			public void close() {
+				transport.close();
+			}
+		};
+	}
+
+	/**
+	 * @return url with the scheme and host of this server
+	 */
+	public String rewrite(String url) {
+		int path = url.indexOf('/', url.indexOf("://") + 3);
+		return getUrl() + ( path >= 0 ? url.substring(path) : "/" );
+	}
+
+}
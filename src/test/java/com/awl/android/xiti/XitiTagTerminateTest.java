@@ -0,0 +1,92 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * terminate with a full queue and a collector too slow to drain it
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagTerminateTest {
+
+	private final static int CAPACITY = 4;
+
+	/**
+	 * Answer time of the collector (ms), far longer than the waits allowed to terminate
+	 */
+	private final static long LATENCY = 3000;
+
+	private XitiTagStubServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new XitiTagStubServer().setLatency(LATENCY);
+		init();
+		for ( int page = 0; page < 2 * CAPACITY; page++ ) {
+			XitiTag.tagPage("page_" + page);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	private void init() {
+		XitiTagConfig config = new XitiTagConfig()
+				.setWorkerCount(1)
+				.setQueueCapacity(CAPACITY)
+				.setNetworkAware(false)
+				.setJournalEnabled(false);
+		config.setTransport(server.redirect(new XitiTagApacheTransport(1, config.getConnectTimeout(), config.getReadTimeout())));
+		XitiTag.init(null, "test", "1", null, config);
+	}
+
+	@Test(timeout = 10000)
+	public void terminateKeepsItsDeadlineWhenTheQueueIsFull() {
+
+		long start = System.currentTimeMillis();
+		XitiTagFlushResult result = XitiTag.terminate(200);
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("terminate took " + elapsed + " ms", elapsed < LATENCY / 2);
+		assertFalse(result.isComplete());
+	}
+
+	@Test(timeout = 10000)
+	public void terminateDoesNotWaitForTheQueue() {
+
+		long start = System.currentTimeMillis();
+		XitiTag.terminate();
+		init();
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("terminate and init took " + elapsed + " ms", elapsed < LATENCY / 2);
+		XitiTag.terminate();
+	}
+
+}
@@ -0,0 +1,153 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Trackers of several sites sharing the dispatcher of XitiTag
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagTrackerTest {
+
+	@After
+	public void tearDown() {
+		try {
+			XitiTag.terminate(5000);
+		} catch (IllegalStateException e) {
+			// not initialized
+		}
+	}
+
+	private static XitiTagSinkTransport init() {
+		XitiTagSinkTransport transport = new XitiTagSinkTransport();
+		XitiTagConfig config = new XitiTagConfig()
+				.setWorkerCount(2)
+				.setNetworkAware(false)
+				.setJournalEnabled(false);
+		config.setTransport(transport);
+		XitiTag.init(null, "logc1", "1", null, config);
+		return transport;
+	}
+
+	/**
+	 * @return number of live threads started by XitiTag
+	 */
+	private static int xitiThreads() {
+		int count = 0;
+		for ( Thread thread : Thread.getAllStackTraces().keySet() ) {
+			if ( thread.isAlive() && thread.getName().startsWith("XitiTag") ) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static int count(List<String> urls, String prefix) {
+		int count = 0;
+		for ( String url : urls ) {
+			if ( url.startsWith(prefix) ) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void nullSubdomainOrSiteIdIsRejected() {
+
+		try {
+			new XitiTagTracker(null, "1", null);
+			fail("null subdomain");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		// the previous versions accepted them and sent every hit to http://null.xiti.com
+		try {
+			XitiTag.init(null, "logc1", null, null, new XitiTagConfig().setNetworkAware(false).setJournalEnabled(false));
+			fail("null siteId");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		// nothing was started
+		try {
+			XitiTag.current();
+			fail("initialized");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void trackersShareTheDispatcher() {
+
+		XitiTagSinkTransport transport = init();
+		XitiTag.tagPage("home");
+		assertTrue(XitiTag.flush(5000).isComplete());
+		int threads = xitiThreads();
+
+		XitiTagTracker second = new XitiTagTracker("logc2", "2", null);
+		XitiTagTracker third = new XitiTagTracker("logc3", "3", "30");
+		for ( int i = 0; i < 10; i++ ) {
+			second.tagPage("page_" + i);
+			third.tagPage("page_" + i);
+		}
+		assertEquals(20, XitiTag.flush(5000).getSent());
+
+		assertEquals(threads, xitiThreads());
+		List<String> urls = transport.getUrls();
+		assertEquals(21, urls.size());
+		assertEquals(1, count(urls, "http://logc1.xiti.com/hit.xiti?s=1&"));
+		assertEquals(10, count(urls, "http://logc2.xiti.com/hit.xiti?s=2&"));
+		assertEquals(10, count(urls, "http://logc3.xiti.com/hit.xiti?s=3&"));
+	}
+
+	@Test(timeout = 10000)
+	public void trackerOutlivesTerminate() {
+
+		// created before init, kept by the app across terminate / init
+		XitiTagTracker tracker = new XitiTagTracker("logc2", "2", null);
+
+		XitiTagSinkTransport first = init();
+		tracker.tagPage("before");
+		assertEquals(1, XitiTag.flush(5000).getSent());
+		XitiTag.terminate(5000);
+
+		XitiTagSinkTransport second = init();
+		tracker.tagPage("after");
+		assertEquals(1, XitiTag.flush(5000).getSent());
+
+		assertEquals(1, first.getUrls().size());
+		assertTrue(first.getUrls().get(0).contains("p='before'"));
+		assertEquals(1, second.getUrls().size());
+		assertTrue(second.getUrls().get(0), second.getUrls().get(0).startsWith("http://logc2.xiti.com/hit.xiti?s=2&p='after'"));
+	}
+
+}
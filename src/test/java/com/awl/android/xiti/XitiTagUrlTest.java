@@ -0,0 +1,107 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.awl.android.xiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * Urls of the hits: prefix of the site, parameters of the hit, then the device parameters
+ *
+ * @author Cyril Cauchois
+ */
+public class XitiTagUrlTest {
+
+	private XitiTagStubServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new XitiTagStubServer();
+		XitiTagConfig config = new XitiTagConfig()
+				.setNetworkAware(false)
+				.setJournalEnabled(false);
+		config.setTransport(server.redirect(new XitiTagApacheTransport(1, config.getConnectTimeout(), config.getReadTimeout())));
+		XitiTag.init(null, "test", "1", null, config);
+	}
+
+	@After
+	public void tearDown() {
+		XitiTag.terminate(5000);
+		server.stop();
+	}
+
+	private List<String> send() {
+		XitiTagFlushResult result = XitiTag.flush(5000);
+		assertEquals(0, result.getDropped());
+		return server.getHits();
+	}
+
+	/**
+	 * @return the device parameters, after the na parameter closing the parameters of the hit
+	 */
+	private static String deviceSuffix(String hit) {
+		int na = hit.indexOf("&na=");
+		int end = hit.indexOf('&', na + 1);
+		return end >= 0 ? hit.substring(end) : "";
+	}
+
+	@Test(timeout = 10000)
+	public void pageNameIsUrlEncoded() {
+
+		XitiTag.tagPage("Page d'été & co");
+
+		String hit = send().get(0);
+		assertTrue(hit, hit.startsWith("/hit.xiti?s=1&p='Page%20d%27%C3%A9t%C3%A9%20%26%20co'&na="));
+		assertFalse(hit, hit.contains("&clic="));
+	}
+
+	@Test(timeout = 10000)
+	public void actionCarriesItsTypeAndSubsite() {
+
+		XitiTag.tagAction("chapitre::bouton", XitiTagActionType.XitiTagActionTypeDownload, "7");
+
+		String hit = send().get(0);
+		assertTrue(hit, hit.startsWith("/hit.xiti?s=1&p='chapitre::bouton'&clic='T'&s2=7&na="));
+	}
+
+	@Test(timeout = 10000)
+	public void deviceParametersAreAppendedToEveryHit() {
+
+		XitiTag.tagPage("accueil");
+		XitiTag.tagPage("liste");
+
+		List<String> hits = send();
+		assertEquals(2, hits.size());
+		String suffix = deviceSuffix(hits.get(0));
+		assertTrue(suffix, suffix.startsWith("&") && suffix.contains("&lng="));
+		assertEquals(suffix, deviceSuffix(hits.get(1)));
+	}
+
+}
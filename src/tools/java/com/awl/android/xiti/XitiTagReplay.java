@@ -0,0 +1,650 @@
+// Copyright 2010 Atos Worldline
+//
+// Inspired from Backelite bkxititag library for iPhone
+// Copyright 2009 Backelite
+// see http://code.google.com/p/bkxititag/
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.awl.android.xiti;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.content.Context;
+
+import com.awl.android.xiti.XitiTag.XitiTagActionType;
+
+/**
+ * Offline replay of recorded hits through the tagging pipeline, to size the workers, the batches and the queue
+ * (see XitiTagConfig) before shipping.
+ *
+ * The hits are read from a journal directory (see XitiTagJournal) or from the file of a XitiTagSinkTransport (one url per line),
+ * then tagged again through XitiTagTracker.tagPage and tagAction at their original pace, N times faster or as fast as possible.
+ * They are sent over http, by the transport of the configuration or the default one, to a local XitiTagStubServer
+ * answering every request after a given latency.
+ * The report gives the throughput, the latency percentiles from tag to collector, the queue depth over time and the hits lost.
+ *
+ * A development tool, kept out of the library: it is built with the tests. run can be called from a test with the configuration
+ * to evaluate, main runs the replay headless on the JVM:
+ *<pre>
+ * mvn -Preplay test-compile exec:exec -Dreplay.args="&lt;journal directory or sink file&gt; [speed] [workers] [queue capacity] [batch size] [collector latency]"
+ *</pre>
+ * XitiTag must not be initialized when run is called: it is initialized with the configuration to evaluate, then terminated.
+ *
+ * @author Cyril Cauchois
+ */
+public final class XitiTagReplay {
+
+	private final static String CHARSET = "UTF-8";
+
+	/**
+	 * Subdomain and site id of the default tracker when no replayed hit has a site
+	 */
+	private final static String DEFAULT_SUBDOMAIN = "replay";
+	private final static String DEFAULT_SITE_ID = "0";
+
+	/**
+	 * Default interval between two samples of the queue depth (ms)
+	 */
+	public final static long DEFAULT_SAMPLE_INTERVAL = 100;
+
+	/**
+	 * Default time given to the pipeline to send the replayed hits (ms)
+	 */
+	public final static long DEFAULT_DRAIN_TIMEOUT = 60000;
+
+	private final List<XitiTagOperation> hits;
+
+	private double speed = 1;
+
+	private long collectorLatency = 0;
+
+	private int collectorStatus = 200;
+
+	private long sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+
+	private long drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+
+	/**
+	 * Trackers of the replayed sites, by subdomain and site id
+	 */
+	private final HashMap<String, XitiTagTracker> trackers = new HashMap<String, XitiTagTracker>();
+
+	/**
+	 * @param hits hits to replay, in order (see readJournal and readSink)
+	 */
+	public XitiTagReplay(List<XitiTagOperation> hits) {
+		this.hits = hits;
+	}
+
+	/**
+	 * Read the hits of a journal directory, acknowledged or not. The journal is left untouched.
+	 * @param directory journal directory, e.g. the xititag directory of the files of an application
+	 * @return hits in their original order
+	 */
+	public static List<XitiTagOperation> readJournal(File directory) {
+		return XitiTagJournal.read(directory);
+	}
+
+	/**
+	 * Read the hits of a file written by a XitiTagSinkTransport.
+	 * The posted batches are skipped, as their lines do not hold the hits.
+	 * @param file file holding one url per line
+	 * @return hits in their original order
+	 * @throws IOException if the file cannot be read
+	 */
+	public static List<XitiTagOperation> readSink(File file) throws IOException {
+
+		List<XitiTagOperation> result = new ArrayList<XitiTagOperation>();
+		HashMap<String, XitiTagTracker> sites = new HashMap<String, XitiTagTracker>();
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+		try {
+			String line;
+			long time = 0;
+			while ( (line = in.readLine()) != null ) {
+				XitiTagOperation operation = parseUrl(line, sites, time);
+				if ( operation != null ) {
+					result.add(operation);
+					time = operation.getCreationTime();
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Rebuild a hit from its url
+	 * @param url url of the hit
+	 * @param sites trackers already built, by subdomain and site id
+	 * @param previousTime time of the previous hit, used if the url has none
+	 * @return the hit, null if the line is not the url of a hit
+	 */
+	private static XitiTagOperation parseUrl(String url, HashMap<String, XitiTagTracker> sites, long previousTime) {
+
+		int hostStart = url.indexOf("://");
+		int hostEnd = url.indexOf(".xiti.com/");
+		int pageStart = url.indexOf("&p='");
+		if ( hostStart < 0 || hostEnd < hostStart || pageStart < 0 ) {
+			return null; // posted batch, or not a hit
+		}
+		int pageEnd = url.indexOf("'&", pageStart + 4);
+		if ( pageEnd < 0 ) {
+			pageEnd = url.lastIndexOf('\'');
+			if ( pageEnd < pageStart + 4 ) {
+				return null;
+			}
+		}
+
+		String subdomain = url.substring(hostStart + 3, hostEnd);
+		String siteId = parameter(url, "?s=", hostEnd);
+		if ( siteId == null ) {
+			return null;
+		}
+		String page = url.substring(pageStart + 4, pageEnd);
+		try {
+			page = URLDecoder.decode(page, CHARSET); // encoded by the name cache
+		} catch (Exception e) {
+			// recorded before the names were encoded
+		}
+
+		XitiTagActionType actionType = null;
+		String clic = parameter(url, "&clic=", pageEnd);
+		if ( clic != null && clic.length() == 3 ) {
+			actionType = actionTypeForChar(clic.charAt(1));
+		}
+
+		String time = parameter(url, "&na=", pageEnd);
+		long creationTime = previousTime;
+		if ( time != null ) {
+			try {
+				creationTime = Long.parseLong(time);
+			} catch (NumberFormatException e) {}
+		}
+
+		String key = subdomain + '/' + siteId;
+		XitiTagTracker tracker = sites.get(key);
+		if ( tracker == null ) {
+			tracker = new XitiTagTracker(subdomain, siteId, null);
+			sites.put(key, tracker);
+		}
+
+		return new XitiTagOperation(tracker, XitiTagHitCodec.intern(page), actionType,
+				XitiTagHitCodec.intern(parameter(url, "&s2=", pageEnd)), null, creationTime);
+	}
+
+	/**
+	 * @return value of the parameter found after from, up to the next '&amp;', null if absent
+	 */
+	private static String parameter(String url, String name, int from) {
+
+		int start = url.indexOf(name, from);
+		if ( start < 0 ) {
+			return null;
+		}
+		start += name.length();
+
+		int end = url.indexOf('&', start);
+		return url.substring(start, end >= 0 ? end : url.length());
+	}
+
+	/**
+	 * @return action type sent as c (see XitiTag.stringForActionType), null if unknown
+	 */
+	private static XitiTagActionType actionTypeForChar(char c) {
+		switch ( c ) {
+		case 'A' : return XitiTagActionType.XitiTagActionTypeAction;
+		case 'T' : return XitiTagActionType.XitiTagActionTypeDownload;
+		case 'S' : return XitiTagActionType.XitiTagActionTypeExit;
+		case 'N' : return XitiTagActionType.XitiTagActionTypeNavigation;
+		}
+		return null;
+	}
+
+	/**
+	 * @param speed 1 (default) to replay the hits at their original pace, N to replay them N times faster,
+	 * 0 to replay them as fast as possible
+	 * @return this replay
+	 */
+	public XitiTagReplay setSpeed(double speed) {
+		if ( speed < 0 ) {
+			throw new IllegalArgumentException("speed must not be negative");
+		}
+		this.speed = speed;
+		return this;
+	}
+
+	/**
+	 * @param collectorLatency time the stub collector takes to answer a request (ms), 0 by default
+	 * @return this replay
+	 */
+	public XitiTagReplay setCollectorLatency(long collectorLatency) {
+		if ( collectorLatency < 0 ) {
+			throw new IllegalArgumentException("collectorLatency must not be negative");
+		}
+		this.collectorLatency = collectorLatency;
+		return this;
+	}
+
+	/**
+	 * @param collectorStatus status code answered by the stub collector, 200 by default
+	 * @return this replay
+	 */
+	public XitiTagReplay setCollectorStatus(int collectorStatus) {
+		this.collectorStatus = collectorStatus;
+		return this;
+	}
+
+	/**
+	 * @param sampleInterval interval between two samples of the queue depth (ms, must be > 0)
+	 * @return this replay
+	 */
+	public XitiTagReplay setSampleInterval(long sampleInterval) {
+		if ( sampleInterval <= 0 ) {
+			throw new IllegalArgumentException("sampleInterval must be > 0");
+		}
+		this.sampleInterval = sampleInterval;
+		return this;
+	}
+
+	/**
+	 * @param drainTimeout time given to the pipeline to send the hits once they are all tagged (ms)
+	 * @return this replay
+	 */
+	public XitiTagReplay setDrainTimeout(long drainTimeout) {
+		if ( drainTimeout < 0 ) {
+			throw new IllegalArgumentException("drainTimeout must not be negative");
+		}
+		this.drainTimeout = drainTimeout;
+		return this;
+	}
+
+	/**
+	 * Replay the hits: initialize XitiTag with config, tag the hits, wait until they are sent (or drainTimeout elapsed)
+	 * and terminate XitiTag.
+	 * The hits are sent to a local stub collector, through the transport of config or the default transport.
+	 * Without context, the network awareness, the journal and the sessions are disabled. config itself is left unchanged.
+	 * @param context application context, null on a JVM
+	 * @param config configuration to evaluate
+	 * @return report of the replay
+	 * @throws IOException if the stub collector cannot be started
+	 */
+	public Report run(Context context, XitiTagConfig config) throws IOException {
+
+		Collector collector = new Collector();
+		XitiTagStubServer server = new XitiTagStubServer().setLatency(collectorLatency).setStatus(collectorStatus).setListener(collector);
+
+		config = config.copy();
+		XitiTagTransport transport = config.getTransport();
+		if ( transport == null ) {
+			// the default transport of XitiTag
+			transport = new XitiTagApacheTransport(Math.max(config.getWorkerCount(), config.getMaxInFlight()),
+					config.getConnectTimeout(), config.getReadTimeout());
+		}
+		config.setTransport(server.redirect(transport));
+		if ( context == null ) {
+			config.setNetworkAware(false).setJournalEnabled(false).setSessionTimeout(0);
+		}
+
+		XitiTagTracker site = null;
+		for ( XitiTagOperation operation : hits ) {
+			if ( operation.getTracker() != null ) {
+				site = operation.getTracker();
+				break;
+			}
+		}
+
+		trackers.clear();
+		XitiTag.init(context, site != null ? site.getSubdomain() : DEFAULT_SUBDOMAIN,
+				site != null ? site.getSiteId() : DEFAULT_SITE_ID, null, config);
+
+		QueueSampler sampler = new QueueSampler(sampleInterval);
+		Thread samplerThread = new Thread(sampler, "XitiTag-replay-sampler");
+		samplerThread.setDaemon(true);
+
+		long start = System.nanoTime();
+		samplerThread.start();
+
+		int replayed = 0;
+		long firstTime = hits.isEmpty() ? 0 : hits.get(0).getCreationTime();
+		for ( XitiTagOperation operation : hits ) {
+
+			if ( operation.getPage() == null ) {
+				continue;
+			}
+
+			if ( speed > 0 ) {
+				long due = start + (long) ((operation.getCreationTime() - firstTime) * 1000000 / speed);
+				long wait;
+				while ( (wait = due - System.nanoTime()) > 0 ) {
+					LockSupport.parkNanos(wait);
+				}
+			}
+
+			XitiTagTracker tracker = trackerFor(operation.getTracker());
+			if ( operation.getActionType() == null ) {
+				tracker.tagPage(operation.getPage(), operation.getSubsiteId());
+			} else {
+				tracker.tagAction(operation.getPage(), operation.getActionType(), operation.getSubsiteId());
+			}
+			replayed++;
+		}
+		long tagged = System.nanoTime();
+
+		XitiTagFlushResult flushResult = XitiTag.flush(drainTimeout);
+		long end = System.nanoTime();
+
+		XitiTagMetrics.Snapshot metrics = XitiTag.getMetrics();
+		sampler.stop();
+		try {
+			samplerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		XitiTag.terminate(drainTimeout);
+		server.stop();
+
+		return new Report(replayed, server, collector, (tagged - start) / 1000000, (end - start) / 1000000, sampler, metrics, flushResult);
+	}
+
+	/**
+	 * @param recorded tracker of a recorded hit, null for the default tracker
+	 * @return tracker of the same site in the replay
+	 */
+	private XitiTagTracker trackerFor(XitiTagTracker recorded) {
+
+		XitiTagTracker defaultTracker = XitiTag.getDefaultTracker();
+		if ( recorded == null || recorded.isSameSite(defaultTracker) ) {
+			return defaultTracker;
+		}
+
+		String key = recorded.getSubdomain() + '/' + recorded.getSiteId();
+		XitiTagTracker tracker = trackers.get(key);
+		if ( tracker == null ) {
+			tracker = new XitiTagTracker(recorded.getSubdomain(), recorded.getSiteId(), null);
+			trackers.put(key, tracker);
+		}
+		return tracker;
+	}
+
+	/**
+	 * Replay the hits of a journal directory or of a sink file, and print the report
+	 * @param args &lt;journal directory or sink file&gt; [speed] [workers] [queue capacity] [batch size] [collector latency]
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if ( args.length < 1 ) {
+			System.err.println("Usage: XitiTagReplay <journal directory or sink file> [speed] [workers] [queue capacity] [batch size] [collector latency]");
+			return;
+		}
+
+		File source = new File(args[0]);
+		XitiTagReplay replay = new XitiTagReplay(source.isDirectory() ? readJournal(source) : readSink(source));
+		XitiTagConfig config = new XitiTagConfig();
+
+		if ( args.length > 1 ) {
+			replay.setSpeed(Double.parseDouble(args[1]));
+		}
+		if ( args.length > 2 ) {
+			config.setWorkerCount(Integer.parseInt(args[2]));
+		}
+		if ( args.length > 3 ) {
+			config.setQueueCapacity(Integer.parseInt(args[3]));
+		}
+		if ( args.length > 4 ) {
+			config.setBatchSize(Integer.parseInt(args[4]));
+		}
+		if ( args.length > 5 ) {
+			replay.setCollectorLatency(Long.parseLong(args[5]));
+		}
+
+		System.out.println(replay.run(null, config));
+	}
+
+	/**
+	 * Measures the latency of the hits received by the stub collector, from their time (na parameter) to their reception
+	 */
+	private static final class Collector implements XitiTagStubServer.Listener {
+
+		private final AtomicLong received = new AtomicLong();
+		private final XitiTagMetrics.Histogram hitLatency = new XitiTagMetrics.Histogram();
+
+		@Override
+		public void onHit(String hit) {
+
+			received.incrementAndGet();
+
+			String time = parameter(hit, "&na=", 0);
+			if ( time != null ) {
+				try {
+					hitLatency.record(System.currentTimeMillis() - Long.parseLong(time));
+				} catch (NumberFormatException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Samples the queue depth at a fixed interval
+	 */
+	private static final class QueueSampler implements Runnable {
+
+		private final long interval;
+		private final long start = System.nanoTime();
+
+		private volatile boolean stopped;
+
+		private long[] times = new long[64];
+		private int[] depths = new int[64];
+		private int count;
+
+		QueueSampler(long interval) {
+			this.interval = interval;
+		}
+
+		void stop() {
+			stopped = true;
+		}
+
+		@Override
+		public void run() {
+
+			while ( !stopped ) {
+				sample();
+				LockSupport.parkNanos(interval * 1000000);
+			}
+			sample();
+		}
+
+		private synchronized void sample() {
+
+			if ( count == times.length ) {
+				times = Arrays.copyOf(times, count * 2);
+				depths = Arrays.copyOf(depths, count * 2);
+			}
+			times[count] = (System.nanoTime() - start) / 1000000;
+			depths[count] = XitiTag.getMetrics().getQueueSize();
+			count++;
+		}
+
+		synchronized long[] getTimes() {
+			return Arrays.copyOf(times, count);
+		}
+
+		synchronized int[] getDepths() {
+			return Arrays.copyOf(depths, count);
+		}
+	}
+
+	/**
+	 * Result of a replay
+	 */
+	public static final class Report {
+
+		private final int replayed;
+		private final long requests;
+		private final long received;
+		private final long receivedBytes;
+		private final long tagDuration;
+		private final long duration;
+		private final XitiTagMetrics.HistogramSnapshot latency;
+		private final long[] queueDepthTimes;
+		private final int[] queueDepths;
+		private final XitiTagMetrics.Snapshot metrics;
+		private final XitiTagFlushResult flushResult;
+
+		private Report(int replayed, XitiTagStubServer server, Collector collector, long tagDuration, long duration, QueueSampler sampler,
+				XitiTagMetrics.Snapshot metrics, XitiTagFlushResult flushResult) {
+			this.replayed = replayed;
+			this.requests = server.getRequestCount();
+			this.received = collector.received.get();
+			this.receivedBytes = server.getReceivedBytes();
+			this.tagDuration = tagDuration;
+			this.duration = duration;
+			this.latency = collector.hitLatency.snapshot();
+			this.queueDepthTimes = sampler.getTimes();
+			this.queueDepths = sampler.getDepths();
+			this.metrics = metrics;
+			this.flushResult = flushResult;
+		}
+
+		/**
+		 * @return number of hits tagged
+		 */
+		public int getReplayed() {
+			return replayed;
+		}
+
+		/**
+		 * @return number of requests received by the collector (urls and posts)
+		 */
+		public long getRequests() {
+			return requests;
+		}
+
+		/**
+		 * @return number of hits received by the collector
+		 */
+		public long getReceived() {
+			return received;
+		}
+
+		/**
+		 * @return size of the urls and of the bodies received by the collector
+		 */
+		public long getReceivedBytes() {
+			return receivedBytes;
+		}
+
+		/**
+		 * @return time taken to tag the hits (ms)
+		 */
+		public long getTagDuration() {
+			return tagDuration;
+		}
+
+		/**
+		 * @return time from the first hit tagged to the last hit sent, or to the drain timeout (ms)
+		 */
+		public long getDuration() {
+			return duration;
+		}
+
+		/**
+		 * @return hits received by the collector per second
+		 */
+		public double getThroughput() {
+			return duration > 0 ? received * 1000.0 / duration : 0;
+		}
+
+		/**
+		 * @return latency of the hits from tag to collector (ms)
+		 */
+		public XitiTagMetrics.HistogramSnapshot getLatency() {
+			return latency;
+		}
+
+		/**
+		 * @return times of the queue depth samples, from the beginning of the replay (ms)
+		 */
+		public long[] getQueueDepthTimes() {
+			return queueDepthTimes.clone();
+		}
+
+		/**
+		 * @return queue depth at the times of getQueueDepthTimes
+		 */
+		public int[] getQueueDepths() {
+			return queueDepths.clone();
+		}
+
+		/**
+		 * @return largest sampled queue depth
+		 */
+		public int getMaxQueueDepth() {
+			int max = 0;
+			for ( int depth : queueDepths ) {
+				max = Math.max(max, depth);
+			}
+			return max;
+		}
+
+		/**
+		 * @return metrics of the pipeline once the hits were sent: hits dropped, suppressed, sampled out, rate limited...
+		 */
+		public XitiTagMetrics.Snapshot getMetrics() {
+			return metrics;
+		}
+
+		/**
+		 * @return hits sent, and hits left unsent at the drain timeout
+		 */
+		public XitiTagFlushResult getFlushResult() {
+			return flushResult;
+		}
+
+		@Override
+		public String toString() {
+
+			StringBuilder buf = new StringBuilder();
+			buf.append("replayed=").append(replayed).append(" received=").append(received).append(" requests=").append(requests)
+					.append(" receivedBytes=").append(receivedBytes).append('\n');
+			buf.append("tagDuration=").append(tagDuration).append("ms duration=").append(duration)
+					.append("ms throughput=").append(Math.round(getThroughput())).append(" hits/s\n");
+			buf.append("latency={").append(latency).append("}\n");
+			buf.append("queueDepth max=").append(getMaxQueueDepth()).append(" samples=");
+			for ( int i = 0; i < queueDepths.length; i++ ) {
+				buf.append(i > 0 ? " " : "").append(queueDepthTimes[i]).append(':').append(queueDepths[i]);
+			}
+			buf.append('\n');
+			buf.append("metrics={").append(metrics).append("}\n");
+			buf.append("flush={").append(flushResult).append("}");
+			return buf.toString();
+		}
+	}
+
+}